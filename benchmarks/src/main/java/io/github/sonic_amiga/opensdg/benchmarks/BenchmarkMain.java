@@ -0,0 +1,47 @@
+package io.github.sonic_amiga.opensdg.benchmarks;
+
+import java.io.IOException;
+
+import org.openjdk.jmh.profile.GCProfiler;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.CommandLineOptionException;
+import org.openjdk.jmh.runner.options.CommandLineOptions;
+import org.openjdk.jmh.runner.options.Options;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+import org.openjdk.jmh.runner.options.ProfilerConfig;
+
+/**
+ * Entry point of benchmarks.jar
+ *
+ * Accepts the usual JMH command line, but always adds the GC profiler, so that
+ * every benchmark reports allocation rate along with throughput. We are mostly
+ * interested in garbage produced per packet, so it's pointless to run without it.
+ *
+ * @author Pavel Fedin
+ */
+public class BenchmarkMain {
+    public static void main(String[] args) throws RunnerException, CommandLineOptionException, IOException {
+        CommandLineOptions cmdLine = new CommandLineOptions(args);
+
+        if (cmdLine.shouldHelp() || cmdLine.shouldList() || cmdLine.shouldListProfilers()
+                || cmdLine.shouldListResultFormats() || hasGCProfiler(cmdLine)) {
+            // Nothing to add, let the original JMH code handle it
+            org.openjdk.jmh.Main.main(args);
+            return;
+        }
+
+        Options opts = new OptionsBuilder().parent(cmdLine).addProfiler(GCProfiler.class).build();
+
+        new Runner(opts).run();
+    }
+
+    private static boolean hasGCProfiler(CommandLineOptions cmdLine) {
+        for (ProfilerConfig prof : cmdLine.getProfilers()) {
+            if (prof.getKlass().equals("gc") || prof.getKlass().equals(GCProfiler.class.getName())) {
+                return true;
+            }
+        }
+        return false;
+    }
+}
@@ -0,0 +1,69 @@
+package io.github.sonic_amiga.opensdg.internal;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.neilalexander.jnacl.crypto.curve25519;
+
+import io.github.sonic_amiga.opensdg.java.SDG;
+import io.github.sonic_amiga.opensdg.protocol.Identity;
+
+/**
+ * curve25519 multiplication of the base point: jnacl versus {@link X25519}
+ *
+ * This is what creating an {@link Identity} (SDG.calcPublicKey()), making a short-term
+ * key pair and the first step of pairing (crypto_scalarmult_base() of the tunnel's
+ * beforeNm) all cost. The former two are also measured as a whole; for pairing see
+ * PairingBenchmark, where it's one of four multiplications.
+ *
+ * @author Pavel Fedin
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Thread)
+public class ScalarMultBaseBenchmark {
+    private final byte[] q = new byte[X25519.BYTES];
+    private byte[] n;
+
+    @Setup
+    public void setup() {
+        n = SDG.createPrivateKey();
+        // Don't measure building the table
+        X25519.scalarmultBase(q, n);
+    }
+
+    @Benchmark
+    public byte[] jnacl() {
+        curve25519.crypto_scalarmult_base(q, n);
+        return q;
+    }
+
+    @Benchmark
+    public byte[] fixedBase() {
+        X25519.scalarmultBase(q, n);
+        return q;
+    }
+
+    @Benchmark
+    public Identity identity() {
+        return new Identity(n);
+    }
+
+    @Benchmark
+    public KeyPairPool.KeyPair keyPair() {
+        return KeyPairPool.generate();
+    }
+}
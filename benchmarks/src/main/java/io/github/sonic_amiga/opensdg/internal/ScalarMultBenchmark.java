@@ -0,0 +1,70 @@
+package io.github.sonic_amiga.opensdg.internal;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.neilalexander.jnacl.crypto.curve25519;
+import com.neilalexander.jnacl.crypto.curve25519xsalsa20poly1305;
+
+import io.github.sonic_amiga.opensdg.java.SDG;
+
+/**
+ * curve25519 multiplication of an arbitrary point: jnacl versus {@link X25519}
+ *
+ * Every handshake does it for crypto_box_beforenm() several times, pairing does it
+ * three times. See also HandshakeBenchmark and PairingBenchmark for the whole picture.
+ *
+ * @author Pavel Fedin
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Thread)
+public class ScalarMultBenchmark {
+    private final byte[] q = new byte[X25519.BYTES];
+    private final byte[] k = new byte[curve25519xsalsa20poly1305.crypto_secretbox_BEFORENMBYTES];
+    private byte[] n;
+    private byte[] p;
+
+    @Setup
+    public void setup() {
+        n = SDG.createPrivateKey();
+        p = SDG.calcPublicKey(SDG.createPrivateKey());
+    }
+
+    @Benchmark
+    public byte[] jnacl() {
+        curve25519.crypto_scalarmult(q, n, p);
+        return q;
+    }
+
+    @Benchmark
+    public byte[] ladder() {
+        X25519.scalarmult(q, n, p);
+        return q;
+    }
+
+    @Benchmark
+    public byte[] jnaclBeforenm() {
+        curve25519xsalsa20poly1305.crypto_box_beforenm(k, p, n);
+        return k;
+    }
+
+    @Benchmark
+    public byte[] beforenm() {
+        Utils.crypto_box_beforenm(k, p, n);
+        return k;
+    }
+}
@@ -0,0 +1,74 @@
+package io.github.sonic_amiga.opensdg.java;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.google.protobuf.ByteString;
+
+import io.github.sonic_amiga.opensdg.internal.Utils;
+import io.github.sonic_amiga.opensdg.protocol.Control;
+import io.github.sonic_amiga.opensdg.protocol.generated.ControlProtocol.ConnectToPeer;
+import io.github.sonic_amiga.opensdg.protocol.generated.ControlProtocol.PeerInfo;
+import io.github.sonic_amiga.opensdg.protocol.generated.ControlProtocol.PeerReply;
+
+/**
+ * Protobuf encoding and decoding of {@link GridConnection} control messages
+ *
+ * Encoding is building MSG_CALL_REMOTE request and serializing it into MESG payload.
+ * Decoding is parsing MSG_REMOTE_REPLY by {@link GridConnection#onDataPacket}, up to
+ * looking up the {@link ForwardRequest} to complete.
+ *
+ * @author Pavel Fedin
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Thread)
+public class ControlMessageBenchmark {
+    private GridConnection grid;
+    private String peerId;
+    private byte[] reply;
+    private int requestId;
+
+    @Setup
+    public void setup() {
+        grid = new GridConnection(SDG.createPrivateKey());
+        peerId = SDG.bin2hex(Utils.randomBytes(SDG.KEY_SIZE));
+
+        PeerInfo.Endpoint server = PeerInfo.Endpoint.newBuilder().setHost("77.66.11.90").setPort(443).build();
+        PeerInfo info = PeerInfo.newBuilder().setPeerId(peerId).setServer(server)
+                .setTunnelId(ByteString.copyFrom(Utils.randomBytes(16))).build();
+
+        reply = GridConnection.encodeMESG(Control.MSG_REMOTE_REPLY,
+                PeerReply.newBuilder().setId(1).setResult(0).setPeer(info).build());
+    }
+
+    @Benchmark
+    public byte[] encode() {
+        ConnectToPeer.Builder msg = ConnectToPeer.newBuilder();
+
+        msg.setId(requestId++);
+        msg.setPeerId(peerId);
+        msg.setProtocol("dominion-1.0");
+
+        return GridConnection.encodeMESG(Control.MSG_CALL_REMOTE, msg.build());
+    }
+
+    @Benchmark
+    public void decode() throws Exception {
+        grid.onDataPacket(ByteBuffer.wrap(reply));
+    }
+}
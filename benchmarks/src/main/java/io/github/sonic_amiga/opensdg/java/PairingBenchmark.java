@@ -0,0 +1,108 @@
+package io.github.sonic_amiga.opensdg.java;
+
+import static io.github.sonic_amiga.opensdg.internal.Utils.SCALARMULT_BYTES;
+
+import java.io.ByteArrayInputStream;
+import java.io.InputStream;
+import java.util.ArrayDeque;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import io.github.sonic_amiga.opensdg.protocol.Pairing.ChallengePacket;
+import io.github.sonic_amiga.opensdg.protocol.Pairing.ResultPacket;
+import io.github.sonic_amiga.opensdg.protocol.generated.ControlProtocol.PeerReply;
+
+/**
+ * Computing the response to MSG_PAIRING_CHALLENGE by {@link PairingConnection}
+ *
+ * Uses the same test vectors as PairingResponseTest. The pairing is first run once
+ * from the beginning to the end and verified, then only the challenge is replayed.
+ *
+ * @author Pavel Fedin
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Thread)
+public class PairingBenchmark {
+    static final byte[] clientPrivkey = SDG.hex2bin(
+            "97BF03FADD1DC842856368A44F84EA3B399F9A96C0BB2835BE00C11D4934F495529B3955D4BA7A76AEF2D1F9ACFE24D1ABD771E70A5D8779646DBF6192329ED0");
+    static final byte[] X = SDG.hex2bin("5D4F9A5980C946224C33A400932716131E9560558E9F4154F7740A4642BAFC5D");
+    static final byte[] nonce = SDG.hex2bin("1B28D7480ADA3AA9BDC5933570E997DFC1EBF7A036F9E646AC0A111765B55D93");
+    static final byte[] Y = SDG.hex2bin("96C0B7AEF0CE9DBEA3CDC47957A9219FF8038D36550A1BF983F5510946B09A3F");
+    static final String otp = "1234567";
+    static final byte[] result = SDG.hex2bin("b41058b5eb737cb6003d9d670752efbc97c571fe6bf44579798895c7bfc67af2");
+
+    static class BenchPairingConnection extends PairingConnection {
+        private final ArrayDeque<byte[]> injectedData = new ArrayDeque<byte[]>();
+        // Only the verification run needs a known salt
+        boolean fixedSalt = true;
+        byte[] lastResponse;
+
+        @Override
+        protected void startForwarding(PeerReply reply) {
+            // Do nothing here
+        }
+
+        @Override
+        protected byte[] getSalt() {
+            if (!fixedSalt) {
+                return super.getSalt();
+            }
+
+            byte[] data = new byte[SCALARMULT_BYTES];
+
+            for (int i = 0; i < SCALARMULT_BYTES; i++) {
+                data[i] = (byte) i;
+            }
+            return data;
+        }
+
+        @Override
+        public InputStream receiveData() {
+            return new ByteArrayInputStream(injectedData.remove());
+        }
+
+        @Override
+        public void sendData(byte[] data) {
+            lastResponse = data;
+        }
+
+        byte[] respond(byte[] challenge) {
+            onDataReceived(new ByteArrayInputStream(challenge));
+            return lastResponse;
+        }
+    }
+
+    private BenchPairingConnection pairing;
+    private byte[] challenge;
+
+    @Setup
+    public void setup() throws Exception {
+        challenge = new ChallengePacket(X, nonce, Y).getData();
+        pairing = new BenchPairingConnection();
+        pairing.injectedData.add(challenge);
+        pairing.injectedData.add(new ResultPacket(result).getData());
+
+        // Throws if our response doesn't match the expected result
+        pairing.pairWithRemote(new MockGrid(clientPrivkey), otp);
+        pairing.fixedSalt = false;
+    }
+
+    @Benchmark
+    public byte[] challenge() {
+        return pairing.respond(challenge);
+    }
+}
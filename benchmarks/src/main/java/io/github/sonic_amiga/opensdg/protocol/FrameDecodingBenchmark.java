@@ -0,0 +1,83 @@
+package io.github.sonic_amiga.opensdg.protocol;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+import io.github.sonic_amiga.opensdg.java.Connection.ReadResult;
+
+/**
+ * Splitting a stream of raw data into frames by {@link RawProtocol}
+ *
+ * A single operation is receiving {@link #STREAM_SIZE} bytes of frames of the given size,
+ * the way they would come from the socket: in reads, as large as the read buffer allows.
+ *
+ * @author Pavel Fedin
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Thread)
+public class FrameDecodingBenchmark {
+    static final int STREAM_SIZE = 65536;
+
+    @Param({ "16", "256", "1400" })
+    int frameSize;
+
+    private byte[] stream;
+    private RawProtocol protocol;
+    private Blackhole sink;
+
+    @Setup
+    public void setup(Blackhole bh) {
+        int frames = STREAM_SIZE / frameSize;
+
+        stream = new byte[frames * frameSize];
+        for (int i = 0; i < frames; i++) {
+            // Length doesn't include the length field itself
+            ByteBuffer.wrap(stream, i * frameSize, 2).putShort((short) (frameSize - 2));
+        }
+
+        sink = bh;
+        protocol = new RawProtocol(null) {
+            @Override
+            protected ReadResult onPacketReceived(ByteBuffer data) {
+                sink.consume(data);
+                return ReadResult.CONTINUE;
+            }
+        };
+    }
+
+    @Benchmark
+    public void decode() throws Exception {
+        int offset = 0;
+
+        while (offset < stream.length) {
+            ByteBuffer buffer = protocol.getBuffer();
+            int size = Math.min(buffer.remaining(), stream.length - offset);
+
+            buffer.put(stream, offset, size);
+            offset += size;
+
+            if (protocol.onRawDataReceived(size) == ReadResult.DONE) {
+                while (protocol.hasPendingPacket()) {
+                    protocol.onPacketReceived();
+                }
+            }
+        }
+    }
+}
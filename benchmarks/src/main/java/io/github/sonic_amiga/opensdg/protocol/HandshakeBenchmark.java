@@ -0,0 +1,50 @@
+package io.github.sonic_amiga.opensdg.protocol;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import io.github.sonic_amiga.opensdg.java.SDG;
+
+/**
+ * Complete {@link MDGBinary} handshake, TELL to REDY
+ *
+ * A new tunnel is created from the parent connection's credentials, the same way
+ * as every peer connection does. Note that the result includes server's work,
+ * which is two curve25519 operations, while the client does five.
+ *
+ * @author Pavel Fedin
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Thread)
+public class HandshakeBenchmark {
+    private MDGBinaryServer.Keys serverKeys;
+    private LoopbackConnection parent;
+
+    @Setup
+    public void setup() {
+        serverKeys = new MDGBinaryServer.Keys();
+        parent = new LoopbackConnection(new MDGBinaryServer(serverKeys, false), SDG.createPrivateKey());
+    }
+
+    @Benchmark
+    public LoopbackConnection handshake() throws Exception {
+        LoopbackConnection connection = new LoopbackConnection(new MDGBinaryServer(serverKeys, false), parent);
+
+        connection.establish();
+        return connection;
+    }
+}
@@ -0,0 +1,165 @@
+package io.github.sonic_amiga.opensdg.protocol;
+
+import java.io.IOException;
+import java.net.ProtocolException;
+import java.nio.Buffer;
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeoutException;
+
+import io.github.sonic_amiga.opensdg.internal.Utils;
+import io.github.sonic_amiga.opensdg.java.Connection;
+
+/**
+ * A {@link Connection}, talking to a {@link MDGBinaryServer} in memory
+ *
+ * Packets, sent by the client during the handshake, are processed by the server
+ * immediately; after the handshake they are simply dropped. Packets,
+ * sent by the server, go through the same receive path as data, read from a
+ * socket: they are copied into the protocol's read buffer, split into frames
+ * and decrypted there.
+ *
+ * @author Pavel Fedin
+ */
+class LoopbackConnection extends Connection {
+    private final MDGBinaryServer server;
+    private final ArrayDeque<ByteBuffer> replies = new ArrayDeque<ByteBuffer>();
+    private boolean ready;
+    private int received;
+    private ByteBuffer lastSent;
+
+    LoopbackConnection(MDGBinaryServer server, byte[] privateKey) {
+        this.server = server;
+        tunnel = new MDGBinary(this, privateKey);
+    }
+
+    /**
+     * Create a connection, inheriting credentials from another one
+     *
+     * This is what all peer connections do, so it's cheaper than creating
+     * a new {@link MDGBinary} from the private key.
+     *
+     * @param server a server to talk to
+     * @param parent a connection to take client keys from
+     */
+    LoopbackConnection(MDGBinaryServer server, LoopbackConnection parent) {
+        this.server = server;
+        tunnel = parent.tunnel.makePeerTunnel(this);
+    }
+
+    EncryptedProtocol getTunnel() {
+        return tunnel;
+    }
+
+    ByteBuffer getLastSent() {
+        return lastSent;
+    }
+
+    /**
+     * Perform the whole handshake
+     *
+     * @throws IOException if protocol fails
+     * @throws ExecutionException if the underlying I/O threw an exception
+     * @throws InterruptedException if the current thread was interrupted
+     * @throws TimeoutException if the operation has timed out
+     */
+    void establish() throws IOException, InterruptedException, ExecutionException, TimeoutException {
+        tunnel.beginEstablish();
+
+        while (!ready) {
+            ByteBuffer reply = replies.poll();
+
+            if (reply == null) {
+                throw new ProtocolException("Handshake stalled");
+            }
+            deliver(reply);
+        }
+    }
+
+    /**
+     * Receive data from the server
+     *
+     * The data is fed to the protocol in chunks, the way reads from a socket
+     * would do. The buffer itself is not modified.
+     *
+     * @param data raw data, must have a backing array
+     * @return number of payload bytes, received in MESG packets
+     * @throws IOException if protocol fails
+     * @throws ExecutionException if the underlying I/O threw an exception
+     * @throws InterruptedException if the current thread was interrupted
+     * @throws TimeoutException if the operation has timed out
+     */
+    int deliver(ByteBuffer data) throws IOException, InterruptedException, ExecutionException, TimeoutException {
+        byte[] array = data.array();
+        int offset = data.arrayOffset() + data.position();
+        int left = data.remaining();
+
+        received = 0;
+
+        while (left > 0) {
+            ByteBuffer buffer = tunnel.getBuffer();
+            int size = Math.min(buffer.remaining(), left);
+
+            buffer.put(array, offset, size);
+            offset += size;
+            left -= size;
+
+            if (tunnel.onRawDataReceived(size) == ReadResult.DONE) {
+                while (tunnel.hasPendingPacket()) {
+                    tunnel.onPacketReceived();
+                }
+            }
+        }
+
+        return received;
+    }
+
+    @Override
+    protected void doSendRawData(ByteBuffer data) throws IOException {
+        if (ready) {
+            // We only want to measure the client, so after the handshake the
+            // server stops listening. Keep the packet, so that the JIT can't
+            // throw away its encryption.
+            lastSent = data;
+            return;
+        }
+
+        // The whole buffer, from 0 to its capacity, is a packet, the same way as
+        // the write queue treats it
+        ByteBuffer frame = ByteBuffer.allocate(data.capacity());
+        ByteBuffer src = data.duplicate();
+
+        ((Buffer) src).clear();
+        frame.put(src);
+        ((Buffer) frame).flip();
+
+        ByteBuffer reply = server.onPacket(frame);
+
+        if (reply != null) {
+            replies.add(reply);
+        }
+    }
+
+    @Override
+    protected CompletableFuture<Void> doSendRawDataAsync(ByteBuffer data) {
+        // MESG packets come here, through MDGBinary's SendSequencer
+        try {
+            doSendRawData(data);
+        } catch (IOException e) {
+            return Utils.failedFuture(e);
+        }
+        return CompletableFuture.completedFuture(null);
+    }
+
+    @Override
+    protected void onReadyPacket() {
+        ready = true;
+    }
+
+    @Override
+    protected void onDataPacket(ByteBuffer data) {
+        received += data.remaining();
+    }
+}
@@ -0,0 +1,71 @@
+package io.github.sonic_amiga.opensdg.protocol;
+
+import java.nio.Buffer;
+import java.nio.ByteBuffer;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import io.github.sonic_amiga.opensdg.java.SDG;
+
+/**
+ * Encryption and decryption of {@link MDGBinary} MESG packets
+ *
+ * Both directions go through the complete path of an established connection:
+ * encryption includes building the packet and handing it over to the connection;
+ * decryption includes copying the packet into the read buffer, framing and
+ * passing the payload to the connection.
+ *
+ * @author Pavel Fedin
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Thread)
+public class MESGBenchmark {
+    @Param({ "16", "256", "1400", "16384" })
+    int payloadSize;
+
+    private LoopbackConnection connection;
+    private ByteBuffer payload;
+    private ByteBuffer incoming;
+
+    @Setup
+    public void setup() throws Exception {
+        MDGBinaryServer server = new MDGBinaryServer(new MDGBinaryServer.Keys(), false);
+
+        connection = new LoopbackConnection(server, SDG.createPrivateKey());
+        connection.establish();
+
+        byte[] data = new byte[payloadSize];
+
+        payload = ByteBuffer.wrap(data);
+        incoming = server.sealMESG(data, 0, data.length);
+    }
+
+    @Benchmark
+    public ByteBuffer encrypt() throws Exception {
+        // Sending consumes the buffer. Binary incompatibility workaround,
+        // see MDGBinary.Packet.setPosition()
+        ((Buffer) payload).rewind();
+        connection.getTunnel().sendData(payload);
+        return connection.getLastSent();
+    }
+
+    @Benchmark
+    public int decrypt() throws Exception {
+        return connection.deliver(incoming);
+    }
+}
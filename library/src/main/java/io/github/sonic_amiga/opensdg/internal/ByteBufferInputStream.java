@@ -0,0 +1,66 @@
+package io.github.sonic_amiga.opensdg.internal;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.Buffer;
+import java.nio.ByteBuffer;
+
+//Huge thanks to Stack Overflow for this code
+public class ByteBufferInputStream extends InputStream {
+    private ByteBuffer buf;
+    // Just like ByteArrayInputStream, reset() without mark() returns to the beginning
+    private int mark;
+
+    public ByteBufferInputStream(ByteBuffer buf) {
+        this.buf = buf;
+        mark = buf.position();
+    }
+
+    @Override
+    public int read() throws IOException {
+        if (!buf.hasRemaining()) {
+            return -1;
+        }
+        return buf.get() & 0xFF;
+    }
+
+    @Override
+    public int read(byte[] bytes, int off, int len) throws IOException {
+        if (!buf.hasRemaining()) {
+            return -1;
+        }
+
+        int res = Math.min(len, buf.remaining());
+
+        buf.get(bytes, off, res);
+        return res;
+    }
+
+    @Override
+    public long skip(long n) {
+        int res = (int) Math.max(Math.min(n, buf.remaining()), 0);
+
+        ((Buffer) buf).position(buf.position() + res);
+        return res;
+    }
+
+    @Override
+    public int available() {
+        return buf.remaining();
+    }
+
+    @Override
+    public boolean markSupported() {
+        return true;
+    }
+
+    @Override
+    public synchronized void mark(int readlimit) {
+        mark = buf.position();
+    }
+
+    @Override
+    public synchronized void reset() {
+        ((Buffer) buf).position(mark);
+    }
+}
@@ -0,0 +1,302 @@
+package io.github.sonic_amiga.opensdg.internal;
+
+/**
+ * Arithmetic modulo 2^255 - 19
+ *
+ * An element is a long[5], holding 51 bits per limb, least significant first. Limbs
+ * may temporarily be a bit longer, results of {@link #mul}, {@link #sq} and {@link #sub}
+ * fit in 52 bits, results of {@link #add} fit in 53 bits; all operations accept either.
+ * Only {@link #toBytes} gives the unique representation.
+ *
+ * A product of two limbs takes up to 110 bits. It's split at bit 51 using
+ * {@link WideMath#multiplyHigh}, then both halves of five such products are summed up
+ * in plain longs.
+ *
+ * Nothing here branches on, or indexes memory with, the values, so secret data is fine.
+ * Output may be the same array as any input.
+ *
+ * @author Pavel Fedin
+ */
+final class Field25519 {
+    static final int LIMBS = 5;
+
+    private static final long MASK = (1L << 51) - 1;
+    // 4 * p, for subtraction without going negative
+    private static final long P4_0 = 0x1FFFFFFFFFFFB4L;
+    private static final long P4_N = 0x1FFFFFFFFFFFFCL;
+
+    private Field25519() {
+    }
+
+    static long[] create() {
+        return new long[LIMBS];
+    }
+
+    static void zero(long[] r) {
+        r[0] = 0;
+        r[1] = 0;
+        r[2] = 0;
+        r[3] = 0;
+        r[4] = 0;
+    }
+
+    static void one(long[] r) {
+        r[0] = 1;
+        r[1] = 0;
+        r[2] = 0;
+        r[3] = 0;
+        r[4] = 0;
+    }
+
+    static void copy(long[] r, long[] f) {
+        System.arraycopy(f, 0, r, 0, LIMBS);
+    }
+
+    static void add(long[] r, long[] f, long[] g) {
+        r[0] = f[0] + g[0];
+        r[1] = f[1] + g[1];
+        r[2] = f[2] + g[2];
+        r[3] = f[3] + g[3];
+        r[4] = f[4] + g[4];
+    }
+
+    static void sub(long[] r, long[] f, long[] g) {
+        carry(r, f[0] + P4_0 - g[0], f[1] + P4_N - g[1], f[2] + P4_N - g[2], f[3] + P4_N - g[3],
+                f[4] + P4_N - g[4]);
+    }
+
+    static void neg(long[] r, long[] f) {
+        carry(r, P4_0 - f[0], P4_N - f[1], P4_N - f[2], P4_N - f[3], P4_N - f[4]);
+    }
+
+    /**
+     * Replace r with f if b == 1, leave as it is if b == 0; in constant time
+     */
+    static void cmov(long[] r, long[] f, int b) {
+        long mask = -b;
+
+        r[0] ^= mask & (r[0] ^ f[0]);
+        r[1] ^= mask & (r[1] ^ f[1]);
+        r[2] ^= mask & (r[2] ^ f[2]);
+        r[3] ^= mask & (r[3] ^ f[3]);
+        r[4] ^= mask & (r[4] ^ f[4]);
+    }
+
+    /**
+     * Swap f and g if b == 1, leave them as they are if b == 0; in constant time
+     */
+    static void cswap(long[] f, long[] g, int b) {
+        long mask = -b;
+
+        for (int i = 0; i < LIMBS; i++) {
+            long x = mask & (f[i] ^ g[i]);
+
+            f[i] ^= x;
+            g[i] ^= x;
+        }
+    }
+
+    // Lower 51 bits of a * b
+    private static long lo(long a, long b) {
+        return (a * b) & MASK;
+    }
+
+    // The rest of a * b, shifted down by 51 bits
+    private static long hi(long a, long b) {
+        return (WideMath.multiplyHigh(a, b) << 13) | ((a * b) >>> 51);
+    }
+
+    static void mul(long[] r, long[] f, long[] g) {
+        long f0 = f[0], f1 = f[1], f2 = f[2], f3 = f[3], f4 = f[4];
+        long g0 = g[0], g1 = g[1], g2 = g[2], g3 = g[3], g4 = g[4];
+        // 2^255 == 19, so limbs, which wrap around, are multiplied by 19
+        long g1_19 = 19 * g1, g2_19 = 19 * g2, g3_19 = 19 * g3, g4_19 = 19 * g4;
+
+        long l0 = lo(f0, g0) + lo(f1, g4_19) + lo(f2, g3_19) + lo(f3, g2_19) + lo(f4, g1_19);
+        long l1 = lo(f0, g1) + lo(f1, g0) + lo(f2, g4_19) + lo(f3, g3_19) + lo(f4, g2_19);
+        long l2 = lo(f0, g2) + lo(f1, g1) + lo(f2, g0) + lo(f3, g4_19) + lo(f4, g3_19);
+        long l3 = lo(f0, g3) + lo(f1, g2) + lo(f2, g1) + lo(f3, g0) + lo(f4, g4_19);
+        long l4 = lo(f0, g4) + lo(f1, g3) + lo(f2, g2) + lo(f3, g1) + lo(f4, g0);
+
+        long h0 = hi(f0, g0) + hi(f1, g4_19) + hi(f2, g3_19) + hi(f3, g2_19) + hi(f4, g1_19);
+        long h1 = hi(f0, g1) + hi(f1, g0) + hi(f2, g4_19) + hi(f3, g3_19) + hi(f4, g2_19);
+        long h2 = hi(f0, g2) + hi(f1, g1) + hi(f2, g0) + hi(f3, g4_19) + hi(f4, g3_19);
+        long h3 = hi(f0, g3) + hi(f1, g2) + hi(f2, g1) + hi(f3, g0) + hi(f4, g4_19);
+        long h4 = hi(f0, g4) + hi(f1, g3) + hi(f2, g2) + hi(f3, g1) + hi(f4, g0);
+
+        carry(r, l0 + 19 * h4, l1 + h0, l2 + h1, l3 + h2, l4 + h3);
+    }
+
+    /**
+     * r = f * c, where c is less than 2^20
+     */
+    static void mulSmall(long[] r, long[] f, long c) {
+        long f0 = f[0], f1 = f[1], f2 = f[2], f3 = f[3], f4 = f[4];
+
+        carry(r, lo(f0, c) + 19 * hi(f4, c), lo(f1, c) + hi(f0, c), lo(f2, c) + hi(f1, c), lo(f3, c) + hi(f2, c),
+                lo(f4, c) + hi(f3, c));
+    }
+
+    static void sq(long[] r, long[] f) {
+        long f0 = f[0], f1 = f[1], f2 = f[2], f3 = f[3], f4 = f[4];
+        long f0_2 = 2 * f0, f1_2 = 2 * f1;
+        long f3_19 = 19 * f3, f4_19 = 19 * f4, f3_38 = 2 * f3_19, f4_38 = 2 * f4_19;
+
+        long l0 = lo(f0, f0) + lo(f1_2, f4_19) + lo(f2, f3_38);
+        long l1 = lo(f0_2, f1) + lo(f2, f4_38) + lo(f3, f3_19);
+        long l2 = lo(f0_2, f2) + lo(f1, f1) + lo(f3, f4_38);
+        long l3 = lo(f0_2, f3) + lo(f1_2, f2) + lo(f4, f4_19);
+        long l4 = lo(f0_2, f4) + lo(f1_2, f3) + lo(f2, f2);
+
+        long h0 = hi(f0, f0) + hi(f1_2, f4_19) + hi(f2, f3_38);
+        long h1 = hi(f0_2, f1) + hi(f2, f4_38) + hi(f3, f3_19);
+        long h2 = hi(f0_2, f2) + hi(f1, f1) + hi(f3, f4_38);
+        long h3 = hi(f0_2, f3) + hi(f1_2, f2) + hi(f4, f4_19);
+        long h4 = hi(f0_2, f4) + hi(f1_2, f3) + hi(f2, f2);
+
+        carry(r, l0 + 19 * h4, l1 + h0, l2 + h1, l3 + h2, l4 + h3);
+    }
+
+    // r = f^(2^n)
+    static void sq(long[] r, long[] f, int n) {
+        sq(r, f);
+        for (int i = 1; i < n; i++) {
+            sq(r, r);
+        }
+    }
+
+    /**
+     * r = 1 / z, computed as z^(p - 2)
+     */
+    static void invert(long[] r, long[] z) {
+        long[] t0 = create();
+        long[] t1 = create();
+        long[] t2 = create();
+        long[] t3 = create();
+
+        sq(t0, z); // 2
+        sq(t1, t0, 2); // 8
+        mul(t1, z, t1); // 9
+        mul(t0, t0, t1); // 11
+        sq(t2, t0); // 22
+        mul(t1, t1, t2); // 2^5 - 1
+        sq(t2, t1, 5);
+        mul(t1, t2, t1); // 2^10 - 1
+        sq(t2, t1, 10);
+        mul(t2, t2, t1); // 2^20 - 1
+        sq(t3, t2, 20);
+        mul(t2, t3, t2); // 2^40 - 1
+        sq(t2, t2, 10);
+        mul(t1, t2, t1); // 2^50 - 1
+        sq(t2, t1, 50);
+        mul(t2, t2, t1); // 2^100 - 1
+        sq(t3, t2, 100);
+        mul(t2, t3, t2); // 2^200 - 1
+        sq(t2, t2, 50);
+        mul(t1, t2, t1); // 2^250 - 1
+        sq(t1, t1, 5); // 2^255 - 32
+        mul(r, t1, t0); // 2^255 - 21
+    }
+
+    /**
+     * Deserialize from 32 bytes, little-endian
+     *
+     * The top bit is not ignored, unlike RFC 7748 says. The number is taken as it is,
+     * modulo p, like jnacl does.
+     */
+    static void fromBytes(long[] h, byte[] s) {
+        long w0 = load(s, 0);
+        long w1 = load(s, 8);
+        long w2 = load(s, 16);
+        long w3 = load(s, 24);
+
+        h[0] = (w0 & MASK) + 19 * (w3 >>> 63); // 2^255 == 19
+        h[1] = ((w0 >>> 51) | (w1 << 13)) & MASK;
+        h[2] = ((w1 >>> 38) | (w2 << 26)) & MASK;
+        h[3] = ((w2 >>> 25) | (w3 << 39)) & MASK;
+        h[4] = (w3 >>> 12) & MASK;
+    }
+
+    private static long load(byte[] s, int offset) {
+        long v = 0;
+
+        for (int i = 7; i >= 0; i--) {
+            v = (v << 8) | (s[offset + i] & 0xFF);
+        }
+        return v;
+    }
+
+    /**
+     * Serialize as 32 bytes, little-endian, fully reduced
+     */
+    static void toBytes(byte[] s, long[] f) {
+        long h0 = f[0], h1 = f[1], h2 = f[2], h3 = f[3], h4 = f[4];
+
+        // Two passes, so that every limb fits in 51 bits
+        for (int i = 0; i < 2; i++) {
+            h1 += h0 >>> 51;
+            h0 &= MASK;
+            h2 += h1 >>> 51;
+            h1 &= MASK;
+            h3 += h2 >>> 51;
+            h2 &= MASK;
+            h4 += h3 >>> 51;
+            h3 &= MASK;
+            h0 += 19 * (h4 >>> 51);
+            h4 &= MASK;
+        }
+
+        // Now h < 2^255, q = 1 if h >= p
+        long q = (h0 + 19) >>> 51;
+        q = (h1 + q) >>> 51;
+        q = (h2 + q) >>> 51;
+        q = (h3 + q) >>> 51;
+        q = (h4 + q) >>> 51;
+
+        // h - q * p = h + 19 * q - q * 2^255
+        h0 += 19 * q;
+        h1 += h0 >>> 51;
+        h0 &= MASK;
+        h2 += h1 >>> 51;
+        h1 &= MASK;
+        h3 += h2 >>> 51;
+        h2 &= MASK;
+        h4 += h3 >>> 51;
+        h3 &= MASK;
+        h4 &= MASK;
+
+        store(s, 0, h0 | (h1 << 51));
+        store(s, 8, (h1 >>> 13) | (h2 << 38));
+        store(s, 16, (h2 >>> 26) | (h3 << 25));
+        store(s, 24, (h3 >>> 39) | (h4 << 12));
+    }
+
+    private static void store(byte[] s, int offset, long v) {
+        for (int i = 0; i < 8; i++) {
+            s[offset + i] = (byte) (v >>> (i * 8));
+        }
+    }
+
+    // Propagate carries, so that limbs fit in 51 bits again, except r[1], which may get a few more.
+    // All the arguments must be non-negative.
+    private static void carry(long[] r, long h0, long h1, long h2, long h3, long h4) {
+        h1 += h0 >>> 51;
+        h0 &= MASK;
+        h2 += h1 >>> 51;
+        h1 &= MASK;
+        h3 += h2 >>> 51;
+        h2 &= MASK;
+        h4 += h3 >>> 51;
+        h3 &= MASK;
+        h0 += 19 * (h4 >>> 51);
+        h4 &= MASK;
+        h1 += h0 >>> 51;
+        h0 &= MASK;
+
+        r[0] = h0;
+        r[1] = h1;
+        r[2] = h2;
+        r[3] = h3;
+        r[4] = h4;
+    }
+}
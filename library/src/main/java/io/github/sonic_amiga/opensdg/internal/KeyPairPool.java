@@ -0,0 +1,132 @@
+package io.github.sonic_amiga.opensdg.internal;
+
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * A pool of ready-made short-term key pairs
+ *
+ * Every handshake needs a fresh key pair, which costs a curve25519 scalar multiplication.
+ * After a Grid outage all the connections reconnect at once, and doing that on the I/O
+ * thread stalls everything else. So key pairs are made in advance by a background thread;
+ * a handshake only takes one. If the pool has run dry, a key pair is made in place.
+ *
+ * The pool is refilled when it drops to a half. The refilling thread only lives while
+ * there's work to do.
+ *
+ * Please do not use from outside of the library!
+ *
+ * @author Pavel Fedin
+ */
+public class KeyPairPool {
+    public static final int DEFAULT_SIZE = 64;
+    private static final int KEY_SIZE = Utils.SCALARMULT_BYTES;
+
+    private static final KeyPairPool shared = new KeyPairPool(DEFAULT_SIZE);
+
+    /**
+     * A curve25519 key pair
+     */
+    public static class KeyPair {
+        public final byte[] publicKey;
+        public final byte[] secretKey;
+
+        KeyPair(byte[] publicKey, byte[] secretKey) {
+            this.publicKey = publicKey;
+            this.secretKey = secretKey;
+        }
+    }
+
+    private final ArrayBlockingQueue<KeyPair> pool;
+    private final int refillMark;
+    private final AtomicBoolean refilling = new AtomicBoolean();
+    private final ThreadPoolExecutor refiller;
+
+    /**
+     * Creates a pool
+     *
+     * The pool starts empty, it's filled after the first {@link #take()}.
+     *
+     * @param size maximum number of key pairs to keep
+     */
+    public KeyPairPool(int size) {
+        pool = new ArrayBlockingQueue<KeyPair>(size);
+        refillMark = size / 2;
+        refiller = new ThreadPoolExecutor(0, 1, 10, TimeUnit.SECONDS, new LinkedBlockingQueue<Runnable>(), r -> {
+            Thread t = new Thread(r, "SDG key generator");
+
+            t.setDaemon(true);
+            // Only matters when it's running ahead of time
+            t.setPriority(Thread.MIN_PRIORITY);
+            return t;
+        });
+    }
+
+    /**
+     * @return the pool, shared by all the connections
+     */
+    public static KeyPairPool getShared() {
+        return shared;
+    }
+
+    /**
+     * Make a new key pair, bypassing the pool
+     *
+     * The same as jnacl's crypto_box_keypair(), but using {@link Utils#randomBytes(int)}
+     *
+     * @return a new key pair
+     */
+    public static KeyPair generate() {
+        byte[] secretKey = Utils.randomBytes(KEY_SIZE);
+
+        return new KeyPair(Utils.crypto_scalarmult_base(secretKey), secretKey);
+    }
+
+    /**
+     * Take a key pair
+     *
+     * Every key pair is only given out once.
+     *
+     * @return a key pair
+     */
+    public KeyPair take() {
+        KeyPair kp = pool.poll();
+
+        if (pool.size() <= refillMark) {
+            refill();
+        }
+        return kp != null ? kp : generate();
+    }
+
+    /**
+     * @return number of key pairs, ready to be taken
+     */
+    public int available() {
+        return pool.size();
+    }
+
+    private void refill() {
+        if (!refilling.compareAndSet(false, true)) {
+            return;
+        }
+
+        try {
+            refiller.execute(() -> {
+                try {
+                    while (pool.remainingCapacity() > 0 && pool.offer(generate())) {
+                        // Keep going
+                    }
+                } finally {
+                    refilling.set(false);
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            // Can't really happen, but take() copes with an empty pool anyway
+            refilling.set(false);
+        }
+    }
+}
@@ -0,0 +1,383 @@
+package io.github.sonic_amiga.opensdg.internal;
+
+/**
+ * An in-place implementation of NaCl crypto_secretbox (XSalsa20 + Poly1305)
+ *
+ * jnacl only works with whole arrays, requiring zero padding in front of the data,
+ * so every packet has to be copied back and forth. This implementation encrypts
+ * and decrypts data in place at arbitrary offset, so a packet can be built and
+ * parsed inside a single buffer.
+ *
+ * Additionally our protocol uses 24-byte nonces, made of a fixed 16-byte prefix
+ * and a 64-bit counter. XSalsa20 uses the first 16 bytes of the nonce only for
+ * deriving a subkey, so we do it once per connection instead of every packet.
+ *
+ * Results are bit-to-bit identical to jnacl's crypto_box_afternm() and
+ * crypto_box_open_afternm() with the same key and full nonce.
+ *
+ * Please do not use from outside of the library!
+ *
+ * @author Pavel Fedin
+ */
+public class SecretBox {
+    public static final int KEY_SIZE = 32;
+    public static final int PREFIX_SIZE = 16;
+    public static final int TAG_SIZE = 16;
+
+    // "expand 32-byte k"
+    private static final int SIGMA0 = 0x61707865;
+    private static final int SIGMA1 = 0x3320646e;
+    private static final int SIGMA2 = 0x79622d32;
+    private static final int SIGMA3 = 0x6b206574;
+
+    private static final long MASK26 = 0x3ffffff;
+
+    /**
+     * Precompute a subkey for the given key and nonce prefix
+     *
+     * @param key shared key (result of crypto_box_beforenm)
+     * @param prefix the first 16 bytes of nonce
+     * @return subkey to be used with {@link #seal} and {@link #open}
+     */
+    public static int[] subkey(byte[] key, byte[] prefix) {
+        int x0 = SIGMA0, x1 = load32(key, 0), x2 = load32(key, 4), x3 = load32(key, 8);
+        int x4 = load32(key, 12), x5 = SIGMA1, x6 = load32(prefix, 0), x7 = load32(prefix, 4);
+        int x8 = load32(prefix, 8), x9 = load32(prefix, 12), x10 = SIGMA2, x11 = load32(key, 16);
+        int x12 = load32(key, 20), x13 = load32(key, 24), x14 = load32(key, 28), x15 = SIGMA3;
+
+        // HSalsa20 is Salsa20 core without the final addition
+        for (int i = 0; i < 10; i++) {
+            x4 ^= Integer.rotateLeft(x0 + x12, 7);
+            x8 ^= Integer.rotateLeft(x4 + x0, 9);
+            x12 ^= Integer.rotateLeft(x8 + x4, 13);
+            x0 ^= Integer.rotateLeft(x12 + x8, 18);
+            x9 ^= Integer.rotateLeft(x5 + x1, 7);
+            x13 ^= Integer.rotateLeft(x9 + x5, 9);
+            x1 ^= Integer.rotateLeft(x13 + x9, 13);
+            x5 ^= Integer.rotateLeft(x1 + x13, 18);
+            x14 ^= Integer.rotateLeft(x10 + x6, 7);
+            x2 ^= Integer.rotateLeft(x14 + x10, 9);
+            x6 ^= Integer.rotateLeft(x2 + x14, 13);
+            x10 ^= Integer.rotateLeft(x6 + x2, 18);
+            x3 ^= Integer.rotateLeft(x15 + x11, 7);
+            x7 ^= Integer.rotateLeft(x3 + x15, 9);
+            x11 ^= Integer.rotateLeft(x7 + x3, 13);
+            x15 ^= Integer.rotateLeft(x11 + x7, 18);
+            x1 ^= Integer.rotateLeft(x0 + x3, 7);
+            x2 ^= Integer.rotateLeft(x1 + x0, 9);
+            x3 ^= Integer.rotateLeft(x2 + x1, 13);
+            x0 ^= Integer.rotateLeft(x3 + x2, 18);
+            x6 ^= Integer.rotateLeft(x5 + x4, 7);
+            x7 ^= Integer.rotateLeft(x6 + x5, 9);
+            x4 ^= Integer.rotateLeft(x7 + x6, 13);
+            x5 ^= Integer.rotateLeft(x4 + x7, 18);
+            x11 ^= Integer.rotateLeft(x10 + x9, 7);
+            x8 ^= Integer.rotateLeft(x11 + x10, 9);
+            x9 ^= Integer.rotateLeft(x8 + x11, 13);
+            x10 ^= Integer.rotateLeft(x9 + x8, 18);
+            x12 ^= Integer.rotateLeft(x15 + x14, 7);
+            x13 ^= Integer.rotateLeft(x12 + x15, 9);
+            x14 ^= Integer.rotateLeft(x13 + x12, 13);
+            x15 ^= Integer.rotateLeft(x14 + x13, 18);
+        }
+
+        return new int[] { x0, x5, x10, x15, x6, x7, x8, x9 };
+    }
+
+    /**
+     * Encrypt data in place
+     *
+     * @param subkey a subkey, obtained from {@link #subkey(byte[], byte[])}
+     * @param nonce the last 8 bytes of nonce as a bigendian number
+     * @param buf buffer, containing 16 bytes of space for the tag, followed by the data
+     * @param offset offset of the tag in the buffer
+     * @param length length of the data, not including the tag
+     */
+    public static void seal(int[] subkey, long nonce, byte[] buf, int offset, int length) {
+        int[] block = new int[16];
+        int[] authKey = new int[8];
+
+        streamXor(subkey, nonce, block, authKey, buf, offset + TAG_SIZE, length);
+        poly1305(authKey, buf, offset + TAG_SIZE, length, buf, offset);
+    }
+
+    /**
+     * Verify and decrypt data in place
+     *
+     * @param subkey a subkey, obtained from {@link #subkey(byte[], byte[])}
+     * @param nonce the last 8 bytes of nonce as a bigendian number
+     * @param buf buffer, containing 16 bytes of the tag, followed by the data
+     * @param offset offset of the tag in the buffer
+     * @param length length of the data, not including the tag
+     * @return false if verification has failed; the data is then left untouched
+     */
+    public static boolean open(int[] subkey, long nonce, byte[] buf, int offset, int length) {
+        int[] block = new int[16];
+        int[] authKey = new int[8];
+        byte[] tag = new byte[TAG_SIZE];
+
+        // The first half of the first block is Poly1305 key
+        salsa20(subkey, nonce, 0, block);
+        System.arraycopy(block, 0, authKey, 0, 8);
+        poly1305(authKey, buf, offset + TAG_SIZE, length, tag, 0);
+
+        int diff = 0;
+        for (int i = 0; i < TAG_SIZE; i++) {
+            diff |= tag[i] ^ buf[offset + i];
+        }
+        if (diff != 0) {
+            return false;
+        }
+
+        streamXor(subkey, nonce, block, authKey, buf, offset + TAG_SIZE, length);
+        return true;
+    }
+
+    private static void streamXor(int[] subkey, long nonce, int[] block, int[] authKey, byte[] buf, int offset,
+            int length) {
+        salsa20(subkey, nonce, 0, block);
+        System.arraycopy(block, 0, authKey, 0, 8);
+
+        // The second half of the first block encrypts the beginning of the data
+        int done = xorBlock(block, 8, buf, offset, length);
+        long counter = 1;
+
+        while (done < length) {
+            salsa20(subkey, nonce, counter++, block);
+            done += xorBlock(block, 0, buf, offset + done, length - done);
+        }
+    }
+
+    // XOR up to length bytes of data with the keystream block, starting from the given word
+    private static int xorBlock(int[] block, int firstWord, byte[] buf, int offset, int length) {
+        int n = Math.min(length, (16 - firstWord) * 4);
+        int i = 0;
+
+        for (int w = firstWord; i + 4 <= n; w++, i += 4) {
+            int k = block[w];
+
+            buf[offset + i] ^= (byte) k;
+            buf[offset + i + 1] ^= (byte) (k >>> 8);
+            buf[offset + i + 2] ^= (byte) (k >>> 16);
+            buf[offset + i + 3] ^= (byte) (k >>> 24);
+        }
+
+        if (i < n) {
+            int k = block[firstWord + i / 4];
+
+            for (; i < n; i++) {
+                buf[offset + i] ^= (byte) k;
+                k >>>= 8;
+            }
+        }
+
+        return n;
+    }
+
+    private static void salsa20(int[] k, long nonce, long counter, int[] out) {
+        // Nonce is bigendian in our packets, but Salsa20 loads words as little endian
+        int j0 = SIGMA0, j1 = k[0], j2 = k[1], j3 = k[2], j4 = k[3], j5 = SIGMA1;
+        int j6 = Integer.reverseBytes((int) (nonce >>> 32)), j7 = Integer.reverseBytes((int) nonce);
+        int j8 = (int) counter, j9 = (int) (counter >>> 32), j10 = SIGMA2, j11 = k[4];
+        int j12 = k[5], j13 = k[6], j14 = k[7], j15 = SIGMA3;
+
+        int x0 = j0, x1 = j1, x2 = j2, x3 = j3, x4 = j4, x5 = j5, x6 = j6, x7 = j7;
+        int x8 = j8, x9 = j9, x10 = j10, x11 = j11, x12 = j12, x13 = j13, x14 = j14, x15 = j15;
+
+        for (int i = 0; i < 10; i++) {
+            x4 ^= Integer.rotateLeft(x0 + x12, 7);
+            x8 ^= Integer.rotateLeft(x4 + x0, 9);
+            x12 ^= Integer.rotateLeft(x8 + x4, 13);
+            x0 ^= Integer.rotateLeft(x12 + x8, 18);
+            x9 ^= Integer.rotateLeft(x5 + x1, 7);
+            x13 ^= Integer.rotateLeft(x9 + x5, 9);
+            x1 ^= Integer.rotateLeft(x13 + x9, 13);
+            x5 ^= Integer.rotateLeft(x1 + x13, 18);
+            x14 ^= Integer.rotateLeft(x10 + x6, 7);
+            x2 ^= Integer.rotateLeft(x14 + x10, 9);
+            x6 ^= Integer.rotateLeft(x2 + x14, 13);
+            x10 ^= Integer.rotateLeft(x6 + x2, 18);
+            x3 ^= Integer.rotateLeft(x15 + x11, 7);
+            x7 ^= Integer.rotateLeft(x3 + x15, 9);
+            x11 ^= Integer.rotateLeft(x7 + x3, 13);
+            x15 ^= Integer.rotateLeft(x11 + x7, 18);
+            x1 ^= Integer.rotateLeft(x0 + x3, 7);
+            x2 ^= Integer.rotateLeft(x1 + x0, 9);
+            x3 ^= Integer.rotateLeft(x2 + x1, 13);
+            x0 ^= Integer.rotateLeft(x3 + x2, 18);
+            x6 ^= Integer.rotateLeft(x5 + x4, 7);
+            x7 ^= Integer.rotateLeft(x6 + x5, 9);
+            x4 ^= Integer.rotateLeft(x7 + x6, 13);
+            x5 ^= Integer.rotateLeft(x4 + x7, 18);
+            x11 ^= Integer.rotateLeft(x10 + x9, 7);
+            x8 ^= Integer.rotateLeft(x11 + x10, 9);
+            x9 ^= Integer.rotateLeft(x8 + x11, 13);
+            x10 ^= Integer.rotateLeft(x9 + x8, 18);
+            x12 ^= Integer.rotateLeft(x15 + x14, 7);
+            x13 ^= Integer.rotateLeft(x12 + x15, 9);
+            x14 ^= Integer.rotateLeft(x13 + x12, 13);
+            x15 ^= Integer.rotateLeft(x14 + x13, 18);
+        }
+
+        out[0] = x0 + j0;
+        out[1] = x1 + j1;
+        out[2] = x2 + j2;
+        out[3] = x3 + j3;
+        out[4] = x4 + j4;
+        out[5] = x5 + j5;
+        out[6] = x6 + j6;
+        out[7] = x7 + j7;
+        out[8] = x8 + j8;
+        out[9] = x9 + j9;
+        out[10] = x10 + j10;
+        out[11] = x11 + j11;
+        out[12] = x12 + j12;
+        out[13] = x13 + j13;
+        out[14] = x14 + j14;
+        out[15] = x15 + j15;
+    }
+
+    // Poly1305 with 26-bit limbs, after poly1305-donna
+    private static void poly1305(int[] key, byte[] m, int offset, int length, byte[] out, int outOffset) {
+        long t0 = key[0] & 0xffffffffL;
+        long t1 = key[1] & 0xffffffffL;
+        long t2 = key[2] & 0xffffffffL;
+        long t3 = key[3] & 0xffffffffL;
+
+        // Clamp r
+        long r0 = t0 & 0x3ffffff;
+        long r1 = ((t0 >>> 26) | (t1 << 6)) & 0x3ffff03;
+        long r2 = ((t1 >>> 20) | (t2 << 12)) & 0x3ffc0ff;
+        long r3 = ((t2 >>> 14) | (t3 << 18)) & 0x3f03fff;
+        long r4 = (t3 >>> 8) & 0x00fffff;
+
+        long s1 = r1 * 5;
+        long s2 = r2 * 5;
+        long s3 = r3 * 5;
+        long s4 = r4 * 5;
+
+        long h0 = 0, h1 = 0, h2 = 0, h3 = 0, h4 = 0;
+        byte[] last = null;
+
+        for (int pos = 0; pos < length; pos += 16) {
+            byte[] b = m;
+            int p = offset + pos;
+            long hibit = 1L << 24;
+
+            if (length - pos < 16) {
+                // The final partial block is padded with 1 followed by zeroes
+                int left = length - pos;
+
+                last = new byte[16];
+                System.arraycopy(m, p, last, 0, left);
+                last[left] = 1;
+                b = last;
+                p = 0;
+                hibit = 0;
+            }
+
+            long m0 = load32(b, p) & 0xffffffffL;
+            long m1 = load32(b, p + 4) & 0xffffffffL;
+            long m2 = load32(b, p + 8) & 0xffffffffL;
+            long m3 = load32(b, p + 12) & 0xffffffffL;
+
+            h0 += m0 & 0x3ffffff;
+            h1 += ((m0 >>> 26) | (m1 << 6)) & 0x3ffffff;
+            h2 += ((m1 >>> 20) | (m2 << 12)) & 0x3ffffff;
+            h3 += ((m2 >>> 14) | (m3 << 18)) & 0x3ffffff;
+            h4 += (m3 >>> 8) | hibit;
+
+            long d0 = h0 * r0 + h1 * s4 + h2 * s3 + h3 * s2 + h4 * s1;
+            long d1 = h0 * r1 + h1 * r0 + h2 * s4 + h3 * s3 + h4 * s2;
+            long d2 = h0 * r2 + h1 * r1 + h2 * r0 + h3 * s4 + h4 * s3;
+            long d3 = h0 * r3 + h1 * r2 + h2 * r1 + h3 * r0 + h4 * s4;
+            long d4 = h0 * r4 + h1 * r3 + h2 * r2 + h3 * r1 + h4 * r0;
+
+            long c = d0 >>> 26;
+            h0 = d0 & MASK26;
+            d1 += c;
+            c = d1 >>> 26;
+            h1 = d1 & MASK26;
+            d2 += c;
+            c = d2 >>> 26;
+            h2 = d2 & MASK26;
+            d3 += c;
+            c = d3 >>> 26;
+            h3 = d3 & MASK26;
+            d4 += c;
+            c = d4 >>> 26;
+            h4 = d4 & MASK26;
+            h0 += c * 5;
+            c = h0 >>> 26;
+            h0 &= MASK26;
+            h1 += c;
+        }
+
+        // Fully carry h
+        long c = h1 >>> 26;
+        h1 &= MASK26;
+        h2 += c;
+        c = h2 >>> 26;
+        h2 &= MASK26;
+        h3 += c;
+        c = h3 >>> 26;
+        h3 &= MASK26;
+        h4 += c;
+        c = h4 >>> 26;
+        h4 &= MASK26;
+        h0 += c * 5;
+        c = h0 >>> 26;
+        h0 &= MASK26;
+        h1 += c;
+
+        // Compute h + -p
+        long g0 = h0 + 5;
+        c = g0 >>> 26;
+        g0 &= MASK26;
+        long g1 = h1 + c;
+        c = g1 >>> 26;
+        g1 &= MASK26;
+        long g2 = h2 + c;
+        c = g2 >>> 26;
+        g2 &= MASK26;
+        long g3 = h3 + c;
+        c = g3 >>> 26;
+        g3 &= MASK26;
+        long g4 = h4 + c - (1L << 26);
+
+        // Select h if h < p, or h + -p if h >= p, in constant time
+        long mask = (g4 >>> 63) - 1;
+        h0 = (h0 & ~mask) | (g0 & mask);
+        h1 = (h1 & ~mask) | (g1 & mask);
+        h2 = (h2 & ~mask) | (g2 & mask);
+        h3 = (h3 & ~mask) | (g3 & mask);
+        h4 = (h4 & ~mask) | (g4 & mask);
+
+        // h = h % 2^128
+        h0 = (h0 | (h1 << 26)) & 0xffffffffL;
+        h1 = ((h1 >>> 6) | (h2 << 20)) & 0xffffffffL;
+        h2 = ((h2 >>> 12) | (h3 << 14)) & 0xffffffffL;
+        h3 = ((h3 >>> 18) | (h4 << 8)) & 0xffffffffL;
+
+        // mac = (h + pad) % 2^128
+        long f = h0 + (key[4] & 0xffffffffL);
+        store32(out, outOffset, (int) f);
+        f = h1 + (key[5] & 0xffffffffL) + (f >>> 32);
+        store32(out, outOffset + 4, (int) f);
+        f = h2 + (key[6] & 0xffffffffL) + (f >>> 32);
+        store32(out, outOffset + 8, (int) f);
+        f = h3 + (key[7] & 0xffffffffL) + (f >>> 32);
+        store32(out, outOffset + 12, (int) f);
+    }
+
+    private static int load32(byte[] b, int off) {
+        return (b[off] & 0xff) | ((b[off + 1] & 0xff) << 8) | ((b[off + 2] & 0xff) << 16) | (b[off + 3] << 24);
+    }
+
+    private static void store32(byte[] b, int off, int v) {
+        b[off] = (byte) v;
+        b[off + 1] = (byte) (v >>> 8);
+        b[off + 2] = (byte) (v >>> 16);
+        b[off + 3] = (byte) (v >>> 24);
+    }
+}
@@ -0,0 +1,36 @@
+package io.github.sonic_amiga.opensdg.internal;
+
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Thread utilities, which depend on Java version
+ *
+ * This is the Java 8 version, there's another one for Java 21+ in the multi-release part
+ * of the jar. Both must have the same public methods.
+ *
+ * Please do not use from outside of the library!
+ *
+ * @author Pavel Fedin
+ */
+public class Threads {
+    /**
+     * Create an executor, running every task in a new thread
+     *
+     * @param name thread name prefix
+     * @return an {@link ExecutorService}
+     */
+    public static ExecutorService newThreadPerTaskExecutor(String name) {
+        AtomicInteger number = new AtomicInteger(1);
+
+        // Reusing idle threads is the best we can do with platform threads
+        return Executors.newCachedThreadPool(r -> {
+            Thread t = new Thread(r, name + "." + number.getAndIncrement());
+
+            // Like virtual threads are
+            t.setDaemon(true);
+            return t;
+        });
+    }
+}
@@ -1,8 +1,11 @@
 package io.github.sonic_amiga.opensdg.internal;
 
+import java.security.NoSuchAlgorithmException;
 import java.security.SecureRandom;
+import java.util.concurrent.CompletableFuture;
 
-import com.neilalexander.jnacl.crypto.curve25519;
+import com.neilalexander.jnacl.crypto.hsalsa20;
+import com.neilalexander.jnacl.crypto.xsalsa20;
 
 import io.github.sonic_amiga.opensdg.java.SDG;
 
@@ -14,24 +17,86 @@ import io.github.sonic_amiga.opensdg.java.SDG;
  * @author Pavel Fedin
  */
 public class Utils {
-    static SecureRandom rnd = new SecureRandom();
+    // SecureRandom.nextBytes() is synchronized, and the default NativePRNG even
+    // shares one lock JVM-wide. So there are several independent generators, and
+    // each thread always uses the same one. Not a ThreadLocal, because there can
+    // be thousands of virtual threads, each seeding its own generator.
+    // A power of two, at least twice the number of CPUs.
+    private static final SecureRandom[] rnd = new SecureRandom[Integer
+            .highestOneBit(Runtime.getRuntime().availableProcessors() * 4 - 1)];
+
+    static {
+        for (int i = 0; i < rnd.length; i++) {
+            rnd[i] = newSecureRandom();
+        }
+    }
+
+    private static SecureRandom newSecureRandom() {
+        // Java 9+, seeded from the system, doesn't touch the shared NativePRNG afterwards
+        try {
+            return SecureRandom.getInstance("DRBG");
+        } catch (NoSuchAlgorithmException e) {
+            // Java 8
+        }
+        try {
+            return SecureRandom.getInstance("SHA1PRNG");
+        } catch (NoSuchAlgorithmException e) {
+            return new SecureRandom();
+        }
+    }
 
     public static byte[] randomBytes(int size) {
         byte[] data = new byte[size];
 
-        rnd.nextBytes(data);
+        rnd[(int) Thread.currentThread().getId() & (rnd.length - 1)].nextBytes(data);
         return data;
     }
 
-    public static final int SCALARMULT_BYTES = 32;
+    public static final int SCALARMULT_BYTES = X25519.BYTES;
 
     public static byte[] crypto_scalarmult_base(byte[] n) {
         byte[] q = new byte[SCALARMULT_BYTES];
 
-        curve25519.crypto_scalarmult_base(q, n);
+        X25519.scalarmultBase(q, n);
         return q;
     }
 
+    public static byte[] crypto_scalarmult(byte[] n, byte[] p) {
+        byte[] q = new byte[SCALARMULT_BYTES];
+
+        X25519.scalarmult(q, n, p);
+        return q;
+    }
+
+    /**
+     * The same as jnacl's curve25519xsalsa20poly1305.crypto_box_beforenm(), but using {@link X25519}
+     *
+     * @param k result, 32 bytes
+     * @param pk their public key
+     * @param sk our private key
+     */
+    public static void crypto_box_beforenm(byte[] k, byte[] pk, byte[] sk) {
+        byte[] s = new byte[SCALARMULT_BYTES];
+
+        X25519.scalarmult(s, sk, pk);
+        hsalsa20.crypto_core(k, null, s, xsalsa20.sigma);
+    }
+
+    /**
+     * Create an exceptionally completed {@link CompletableFuture}
+     *
+     * A replacement for CompletableFuture.failedFuture(), which doesn't exist in Java 8
+     *
+     * @param exc an error
+     * @return a failed future
+     */
+    public static <T> CompletableFuture<T> failedFuture(Throwable exc) {
+        CompletableFuture<T> f = new CompletableFuture<T>();
+
+        f.completeExceptionally(exc);
+        return f;
+    }
+
     /**
      * An easy-to-use utility for printing hex dumps
      *
@@ -0,0 +1,35 @@
+package io.github.sonic_amiga.opensdg.internal;
+
+/**
+ * Arithmetic utilities, which depend on Java version
+ *
+ * This is the Java 8 version, there's another one for Java 9+ in the multi-release part
+ * of the jar. Both must have the same public methods.
+ *
+ * Please do not use from outside of the library!
+ *
+ * @author Pavel Fedin
+ */
+public class WideMath {
+    /**
+     * Upper 64 bits of a 128-bit product of two signed longs
+     *
+     * The same as Math.multiplyHigh(), which only appeared in Java 9. Doesn't branch on
+     * the arguments, so it's fine for secret data.
+     *
+     * @param x first factor
+     * @param y second factor
+     * @return upper half of x * y
+     */
+    public static long multiplyHigh(long x, long y) {
+        long x1 = x >> 32;
+        long x2 = x & 0xFFFFFFFFL;
+        long y1 = y >> 32;
+        long y2 = y & 0xFFFFFFFFL;
+        long z2 = x2 * y2;
+        long t = x1 * y2 + (z2 >>> 32);
+        long z1 = (t & 0xFFFFFFFFL) + x2 * y1;
+
+        return x1 * y1 + (t >> 32) + (z1 >> 32);
+    }
+}
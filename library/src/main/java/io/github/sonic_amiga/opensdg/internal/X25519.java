@@ -0,0 +1,334 @@
+package io.github.sonic_amiga.opensdg.internal;
+
+import static io.github.sonic_amiga.opensdg.internal.Field25519.*;
+
+/**
+ * curve25519 scalar multiplication, giving the same results as jnacl
+ *
+ * jnacl runs the Montgomery ladder over 8-bit limbs, allocating temporary arrays all the
+ * way. Here the ladder works on {@link Field25519}, 51-bit limbs, with all the temporaries
+ * allocated up front.
+ *
+ * Multiplication of the base point, which never changes, is done on the birationally
+ * equivalent Edwards curve instead, using a table of its
+ * multiples: (1..8) * 256^i * B for i = 0..31. The scalar is split into 64 signed 4-bit
+ * digits, so the multiplication takes 64 table lookups and additions and only 4
+ * doublings. The table is about 40 KB, it's built on first use and shared JVM-wide.
+ *
+ * The ladder swaps with masks instead of branches, lookups go through the whole row of
+ * the table, and additions are complete, so timing doesn't depend on the secret scalar.
+ *
+ * Please do not use from outside of the library!
+ *
+ * @author Pavel Fedin
+ */
+public final class X25519 {
+    public static final int BYTES = 32;
+
+    // 2 * d, where d = -121665 / 121666 is the Edwards curve constant
+    private static final long[] D2 = { 0x69B9426B2F159L, 0x35050762ADD7AL, 0x3CF44C0038052L, 0x6738CC7407977L,
+            0x2406D9DC56DFFL };
+    // (A - 2) / 4, where A = 486662 is the Montgomery curve constant
+    private static final long A24 = 121665;
+    // The Edwards base point, corresponding to u = 9; y = 4 / 5
+    private static final long[] BX = { 0x62D608F25D51AL, 0x412A4B4F6592AL, 0x75B7171A4B31DL, 0x1FF60527118FEL,
+            0x216936D3CD6E5L };
+    private static final long[] BY = { 0x6666666666658L, 0x4CCCCCCCCCCCCL, 0x1999999999999L, 0x3333333333333L,
+            0x6666666666666L };
+
+    // Extended coordinates: x = X / Z, y = Y / Z, x * y = T / Z.
+    // Also used for intermediate results, where x = X / Z, y = Y / T.
+    private static final class Point {
+        final long[] x = create();
+        final long[] y = create();
+        final long[] z = create();
+        final long[] t = create();
+    }
+
+    // An affine point, prepared for addition
+    private static final class Precomp {
+        final long[] yPlusX = create();
+        final long[] yMinusX = create();
+        final long[] xy2d = create();
+    }
+
+    // Created on first use only
+    private static class Table {
+        // base[i][j] = (j + 1) * 256^i * B
+        static final Precomp[][] base = buildTable();
+    }
+
+    private X25519() {
+    }
+
+    /**
+     * q = n * p, the same as jnacl's curve25519.crypto_scalarmult()
+     *
+     * @param q result, 32 bytes
+     * @param n scalar, 32 bytes; clamped like by jnacl, the array itself isn't modified
+     * @param p u coordinate of a point, 32 bytes
+     */
+    public static void scalarmult(byte[] q, byte[] n, byte[] p) {
+        long[] x1 = create();
+        long[] x2 = create();
+        long[] z2 = create();
+        long[] x3 = create();
+        long[] z3 = create();
+        long[] a = create();
+        long[] aa = create();
+        long[] b = create();
+        long[] bb = create();
+        long[] e = create();
+        long[] c = create();
+        long[] d = create();
+        int swap = 0;
+
+        fromBytes(x1, p);
+        one(x2);
+        copy(x3, x1);
+        one(z3);
+
+        // RFC 7748, section 5. Bits 255 and 0..2 of a clamped scalar are known,
+        // so bit 254 is the first one to look at.
+        for (int pos = 254; pos >= 0; pos--) {
+            int bit = (n[pos >>> 3] >>> (pos & 7)) & 1;
+
+            if (pos == 254) {
+                bit = 1;
+            } else if (pos < 3) {
+                bit = 0;
+            }
+
+            swap ^= bit;
+            cswap(x2, x3, swap);
+            cswap(z2, z3, swap);
+            swap = bit;
+
+            add(a, x2, z2);
+            sq(aa, a);
+            sub(b, x2, z2);
+            sq(bb, b);
+            sub(e, aa, bb);
+            add(c, x3, z3);
+            sub(d, x3, z3);
+            mul(d, d, a); // DA
+            mul(c, c, b); // CB
+            add(x3, d, c);
+            sq(x3, x3);
+            sub(z3, d, c);
+            sq(z3, z3);
+            mul(z3, z3, x1);
+            mul(x2, aa, bb);
+            mulSmall(z2, e, A24);
+            add(z2, z2, aa);
+            mul(z2, z2, e);
+        }
+        cswap(x2, x3, swap);
+        cswap(z2, z3, swap);
+
+        invert(z2, z2);
+        mul(x2, x2, z2);
+        toBytes(q, x2);
+
+        // Points of small order give zero, which jnacl encodes as p
+        int bits = 0;
+        for (int i = 0; i < BYTES; i++) {
+            bits |= q[i];
+        }
+        int zero = -(((bits & 0xFF) - 1) >>> 31);
+        q[0] |= zero & 0xED;
+        for (int i = 1; i < BYTES - 1; i++) {
+            q[i] |= zero;
+        }
+        q[BYTES - 1] |= zero & 0x7F;
+    }
+
+    /**
+     * q = n * 9, the same as jnacl's curve25519.crypto_scalarmult_base()
+     *
+     * @param q result, 32 bytes
+     * @param n scalar, 32 bytes; clamped like by jnacl, the array itself isn't modified
+     */
+    public static void scalarmultBase(byte[] q, byte[] n) {
+        byte[] e = new byte[64];
+        Precomp[][] base = Table.base;
+
+        // Clamp and split into 64 4-bit digits in range [-8, 8)
+        for (int i = 0; i < BYTES; i++) {
+            int b = n[i] & 0xFF;
+
+            if (i == 0) {
+                b &= 248;
+            } else if (i == BYTES - 1) {
+                b = (b & 127) | 64;
+            }
+            e[2 * i] = (byte) (b & 15);
+            e[2 * i + 1] = (byte) (b >>> 4);
+        }
+        int carry = 0;
+        for (int i = 0; i < 63; i++) {
+            e[i] += carry;
+            carry = (e[i] + 8) >> 4;
+            e[i] -= carry << 4;
+        }
+        e[63] += carry;
+
+        Point h = new Point();
+        Point r = new Point();
+        Precomp t = new Precomp();
+        Precomp minus = new Precomp();
+        long[] tmp = create();
+
+        one(h.y);
+        one(h.z);
+
+        // Odd digits are multiples of 16 * 256^i * B; sum them, multiply by 16,
+        // then add the even ones
+        for (int i = 1; i < 64; i += 2) {
+            select(t, minus, base[i / 2], e[i]);
+            madd(r, h, t, tmp);
+            toP3(h, r);
+        }
+
+        dbl(r, h, tmp);
+        for (int i = 0; i < 3; i++) {
+            toP2(h, r);
+            dbl(r, h, tmp);
+        }
+        toP3(h, r);
+
+        for (int i = 0; i < 64; i += 2) {
+            select(t, minus, base[i / 2], e[i]);
+            madd(r, h, t, tmp);
+            toP3(h, r);
+        }
+
+        // Back to Montgomery: u = (1 + y) / (1 - y) = (Z + Y) / (Z - Y)
+        add(tmp, h.z, h.y);
+        sub(h.x, h.z, h.y);
+        invert(h.x, h.x);
+        mul(tmp, tmp, h.x);
+        toBytes(q, tmp);
+    }
+
+    // t = b * row[0], b in range [-8, 8]
+    private static void select(Precomp t, Precomp minus, Precomp[] row, int b) {
+        int negative = b >>> 31;
+        int babs = b - ((-negative & b) << 1);
+
+        one(t.yPlusX);
+        one(t.yMinusX);
+        zero(t.xy2d);
+        for (int j = 0; j < row.length; j++) {
+            int eq = ((babs ^ (j + 1)) - 1) >>> 31;
+
+            cmov(t.yPlusX, row[j].yPlusX, eq);
+            cmov(t.yMinusX, row[j].yMinusX, eq);
+            cmov(t.xy2d, row[j].xy2d, eq);
+        }
+
+        // -(x, y) = (-x, y)
+        copy(minus.yPlusX, t.yMinusX);
+        copy(minus.yMinusX, t.yPlusX);
+        neg(minus.xy2d, t.xy2d);
+        cmov(t.yPlusX, minus.yPlusX, negative);
+        cmov(t.yMinusX, minus.yMinusX, negative);
+        cmov(t.xy2d, minus.xy2d, negative);
+    }
+
+    // r = p + q; r is intermediate
+    private static void madd(Point r, Point p, Precomp q, long[] tmp) {
+        add(r.x, p.y, p.x);
+        sub(r.y, p.y, p.x);
+        mul(r.z, r.x, q.yPlusX);
+        mul(r.y, r.y, q.yMinusX);
+        mul(r.t, q.xy2d, p.t);
+        add(tmp, p.z, p.z);
+        sub(r.x, r.z, r.y);
+        add(r.y, r.z, r.y);
+        add(r.z, tmp, r.t);
+        sub(r.t, tmp, r.t);
+    }
+
+    // r = 2 * p; r is intermediate, T of p isn't used
+    private static void dbl(Point r, Point p, long[] tmp) {
+        sq(r.x, p.x);
+        sq(r.z, p.y);
+        sq(r.t, p.z);
+        add(r.t, r.t, r.t);
+        add(r.y, p.x, p.y);
+        sq(tmp, r.y);
+        add(r.y, r.z, r.x);
+        sub(r.z, r.z, r.x);
+        sub(r.x, tmp, r.y);
+        sub(r.t, r.t, r.z);
+    }
+
+    // Intermediate to extended; r and p must be different
+    private static void toP3(Point r, Point p) {
+        mul(r.x, p.x, p.t);
+        mul(r.y, p.y, p.z);
+        mul(r.z, p.z, p.t);
+        mul(r.t, p.x, p.y);
+    }
+
+    // Intermediate to extended without T, enough for doubling; r and p must be different
+    private static void toP2(Point r, Point p) {
+        mul(r.x, p.x, p.t);
+        mul(r.y, p.y, p.z);
+        mul(r.z, p.z, p.t);
+    }
+
+    // p = affine(p); returns p prepared for addition
+    private static Precomp normalize(Point p) {
+        Precomp pre = new Precomp();
+
+        invert(p.z, p.z);
+        mul(p.x, p.x, p.z);
+        mul(p.y, p.y, p.z);
+        one(p.z);
+        mul(p.t, p.x, p.y);
+
+        add(pre.yPlusX, p.y, p.x);
+        sub(pre.yMinusX, p.y, p.x);
+        mul(pre.xy2d, p.t, D2);
+        return pre;
+    }
+
+    private static Precomp[][] buildTable() {
+        Precomp[][] table = new Precomp[32][8];
+        Point p = new Point();
+        Point q = new Point();
+        Point r = new Point();
+        long[] tmp = create();
+
+        copy(p.x, BX);
+        copy(p.y, BY);
+        one(p.z);
+        mul(p.t, p.x, p.y);
+
+        for (int i = 0; i < table.length; i++) {
+            // p = 256^i * B
+            Precomp[] row = table[i];
+
+            row[0] = normalize(p);
+            copy(q.x, p.x);
+            copy(q.y, p.y);
+            copy(q.z, p.z);
+            copy(q.t, p.t);
+            for (int j = 1; j < row.length; j++) {
+                madd(r, q, row[0], tmp);
+                toP3(q, r);
+                row[j] = normalize(q);
+            }
+
+            dbl(r, p, tmp);
+            for (int j = 1; j < 8; j++) {
+                toP2(q, r);
+                dbl(r, q, tmp);
+            }
+            toP3(p, r);
+        }
+        return table;
+    }
+}
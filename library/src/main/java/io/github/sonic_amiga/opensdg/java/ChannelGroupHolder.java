@@ -1,15 +1,21 @@
 package io.github.sonic_amiga.opensdg.java;
 
 import java.io.IOException;
-import java.nio.channels.AsynchronousChannelGroup;
 
+/**
+ * A helper class to share a single {@link EventLoopGroup} between multiple instances of {@link Connection}
+ *
+ * Maintains usage count creates / destroys the group on demand.
+ *
+ * @author Pavel Fedin
+ */
 class ChannelGroupHolder {
-    private static AsynchronousChannelGroup group;
+    private static EventLoopGroup group;
     private static int useCount = 0;
 
-    synchronized public static AsynchronousChannelGroup get() throws IOException {
+    synchronized public static EventLoopGroup get() throws IOException {
         if (useCount == 0) {
-            group = AsynchronousChannelGroup.withFixedThreadPool(1, new NamedThreadFactory("SDG socket thread"));
+            group = new EventLoopGroup(EventLoopGroup.getDefaultSize());
         }
         useCount++;
 
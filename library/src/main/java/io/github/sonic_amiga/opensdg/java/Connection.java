@@ -3,22 +3,27 @@ package io.github.sonic_amiga.opensdg.java;
 import java.io.EOFException;
 import java.io.IOException;
 import java.net.InetSocketAddress;
-import java.nio.Buffer;
 import java.nio.ByteBuffer;
-import java.nio.channels.AsynchronousChannelGroup;
 import java.nio.channels.AsynchronousCloseException;
 import java.nio.channels.AsynchronousSocketChannel;
 import java.nio.channels.ClosedChannelException;
 import java.nio.channels.CompletionHandler;
+import java.util.concurrent.CompletableFuture;
 import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
 import java.util.concurrent.TimeUnit;
 import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.locks.ReentrantLock;
 
 import org.eclipse.jdt.annotation.NonNull;
 import org.eclipse.jdt.annotation.Nullable;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import io.github.sonic_amiga.opensdg.internal.Utils;
+import io.github.sonic_amiga.opensdg.java.MetricsRecorder.HandshakePhase;
 import io.github.sonic_amiga.opensdg.protocol.EncryptedProtocol;
 import io.github.sonic_amiga.opensdg.protocol.IConnection;
 
@@ -40,34 +45,84 @@ public abstract class Connection extends IConnection {
     private final Logger logger = LoggerFactory.getLogger(Connection.class);
 
     private static class ReadHandler implements CompletionHandler<Integer, Connection> {
+        // The socket, this handler reads from. A socket can be replaced during
+        // connection attempts, completions from the old one are ignored.
+        private final AsynchronousSocketChannel socket;
+        // The protocol and the buffer, the last read has been issued with
+        private EncryptedProtocol reader;
+        private ByteBuffer buffer;
+
+        ReadHandler(AsynchronousSocketChannel ch) {
+            socket = ch;
+        }
+
+        void read(Connection conn) {
+            reader = conn.tunnel;
+            buffer = reader.getBuffer();
+            socket.read(buffer, conn, this);
+        }
+
+        // Nothing is going to be read from the socket any more, so the buffer
+        // can go back to the pool, if the protocol has let go of it. Not while
+        // a handshake task is running, it may be still looking at a packet.
+        private void recycle(Connection conn) {
+            if (reader != null && !conn.handshakeTaskPending) {
+                reader.recycleBuffer(buffer);
+            }
+        }
+
         @Override
         public void completed(Integer result, Connection conn) {
+            if (conn.socket != socket) {
+                recycle(conn);
+                return;
+            }
+
             try {
                 ReadResult ret = conn.tunnel.onRawDataReceived(result);
 
-                switch (ret) {
-                    case EOF:
-                        conn.handleError(conn.getEOFException());
+                if (ret == ReadResult.EOF) {
+                    conn.handleError(conn.getEOFException());
+                    recycle(conn);
+                    return;
+                }
+
+                // A single read may bring in many packets, handle all of them
+                while (ret == ReadResult.DONE) {
+                    conn.tunnel.onPacketReceived();
+
+                    // The packet handler could have closed the connection or, if the
+                    // handshake failed, moved on to another socket
+                    if (conn.state == State.CLOSED || conn.socket != socket) {
+                        recycle(conn);
+                        return;
+                    }
+                    // Callbacks can't keep up, leave the rest in the buffer for now
+                    if (conn.pauseReadingIfBusy()) {
                         return;
-                    case DONE:
-                        conn.tunnel.onPacketReceived();
-                        break;
-                    case CONTINUE:
-                        break;
+                    }
 
+                    ret = conn.tunnel.hasPendingPacket() ? ReadResult.DONE : ReadResult.CONTINUE;
                 }
+
                 // Continue receiving if not closed
                 if (conn.state != State.CLOSED) {
                     conn.asyncReceive();
+                } else {
+                    recycle(conn);
                 }
             } catch (IOException | InterruptedException | ExecutionException | TimeoutException e) {
                 conn.handleError(e);
+                recycle(conn);
             }
         }
 
         @Override
         public void failed(Throwable exc, Connection conn) {
-            conn.handleError(exc);
+            if (conn.socket == socket) {
+                conn.handleError(exc);
+            }
+            recycle(conn);
         }
     }
 
@@ -83,6 +138,37 @@ public abstract class Connection extends IConnection {
         DONE
     }
 
+    /**
+     * What to do with data, sent while the connection is not writable
+     *
+     * See {@link Connection#setWriteBufferWaterMarks(int, int)}
+     */
+    public enum OverflowPolicy {
+        /**
+         * Queue it anyway, only report writability changes
+         */
+        NONE,
+        /**
+         * Wait until the connection becomes writable, but no longer than the timeout.
+         * Never blocks on an {@link EventLoop}, that would deadlock; there it works as NONE.
+         */
+        BLOCK,
+        /**
+         * Fail the send with {@link WriteBufferFullException}
+         */
+        FAIL,
+        /**
+         * Drop the oldest queued packets, down to the low watermark. Dropped packets
+         * fail with {@link WriteBufferFullException}. Not to be used in message mode,
+         * a dropped fragment spoils the whole message.
+         */
+        DROP_OLDEST
+    }
+
+    public static final int DEFAULT_CALLBACK_QUEUE_DEPTH = 256;
+    public static final int DEFAULT_LOW_WATER_MARK = 32 * 1024;
+    public static final int DEFAULT_HIGH_WATER_MARK = 64 * 1024;
+
     protected EOFException getEOFException() {
         return new EOFException("Connection closed by peer");
     }
@@ -90,21 +176,113 @@ public abstract class Connection extends IConnection {
     private State state = State.CLOSED;
     protected int timeout = 10;
 
-    private AsynchronousChannelGroup group;
+    private EventLoopGroup group;
+    private boolean ownGroup;
+    private EventLoop loop;
+    private Timer timer;
+    private boolean loadBalancing = false;
     private AsynchronousSocketChannel socket;
+    private WriteQueue writeQueue;
     protected EncryptedProtocol tunnel;
-    private Object writeLock = new Object();
-    private Object closeLock = new Object();
-
-    private CompletionHandler<Integer, Connection> readHandler = new ReadHandler();
+    // handleClose() fails pending requests, running their callbacks. A virtual thread
+    // must not be pinned while they run, so this is not a monitor.
+    private final ReentrantLock closeLock = new ReentrantLock();
+    private final ConnectionMetrics metrics = new ConnectionMetrics();
+    private volatile int lowWaterMark = DEFAULT_LOW_WATER_MARK;
+    private volatile int highWaterMark = DEFAULT_HIGH_WATER_MARK;
+    private volatile OverflowPolicy overflowPolicy = OverflowPolicy.NONE;
+    // The last writability, reported to the user; only accessed by the EventLoop
+    private boolean reportedWritable = true;
+    private @Nullable SerialExecutor callbackQueue;
+    private int callbackQueueDepth = DEFAULT_CALLBACK_QUEUE_DEPTH;
+    // The socket, reading from which is paused until callbacks catch up
+    private final AtomicReference<AsynchronousSocketChannel> pausedSocket = new AtomicReference<AsynchronousSocketChannel>();
+    private volatile @Nullable Executor encryptionExecutor;
+    // A handshake step is running on the CryptoPool; only accessed by the EventLoop
+    private boolean handshakeTaskPending;
+
+    private ReadHandler readHandler;
 
-    protected void openSocket(String host, int port)
-            throws IOException, InterruptedException, ExecutionException, TimeoutException {
+    /**
+     * Choose the {@link EventLoop} for this connection, if not chosen yet
+     *
+     * @return the {@link EventLoop}
+     * @throws IOException if the default {@link EventLoopGroup} can't be created
+     */
+    protected EventLoop bindEventLoop() throws IOException {
         if (group == null) {
             group = ChannelGroupHolder.get();
+            ownGroup = true;
+        }
+        if (loop == null) {
+            loop = loadBalancing ? group.selectLeastLoaded() : group.select(getLoopKey());
+            loop.attach();
         }
-        socket = AsynchronousSocketChannel.open(group);
-        socket.connect(new InetSocketAddress(host, port)).get(timeout, TimeUnit.SECONDS);
+        if (timer == null) {
+            timer = TimerHolder.get();
+        }
+        return loop;
+    }
+
+    /**
+     * Get the {@link Timer} for timeouts of this connection
+     *
+     * @return a {@link Timer} or null if the connection is closed
+     */
+    Timer getTimer() {
+        return timer;
+    }
+
+    /**
+     * Create a new socket, serviced by this connection's {@link EventLoop}
+     *
+     * The socket doesn't belong to the connection until {@link #adoptSocket(AsynchronousSocketChannel)}
+     * is called. This allows to race connection attempts to several servers.
+     *
+     * @return a new {@link AsynchronousSocketChannel}
+     * @throws IOException if the socket can't be created
+     */
+    protected AsynchronousSocketChannel createSocket() throws IOException {
+        return AsynchronousSocketChannel.open(bindEventLoop().getChannelGroup());
+    }
+
+    private void setSocket(AsynchronousSocketChannel ch) {
+        socket = ch;
+        readHandler = new ReadHandler(ch);
+        pausedSocket.set(null);
+        handshakeTaskPending = false;
+    }
+
+    /**
+     * Make a connected socket the one, used by this connection
+     *
+     * @param ch a socket, created by {@link #createSocket()} and connected
+     */
+    protected void adoptSocket(AsynchronousSocketChannel ch) {
+        setSocket(ch);
+        setWriteQueue(new WriteQueue(this, ch, timer, timeout));
+    }
+
+    private void setWriteQueue(WriteQueue q) {
+        writeQueue = q;
+        // A new queue starts empty, so writable; no need to tell
+        try {
+            loop.execute(() -> reportedWritable = true);
+        } catch (RejectedExecutionException e) {
+            // Shutting down, nothing to report anyway
+        }
+    }
+
+    protected void openSocket(String host, int port)
+            throws IOException, InterruptedException, ExecutionException, TimeoutException {
+        AsynchronousSocketChannel ch = createSocket();
+
+        // Assign the socket right away, so that close() could abort connecting
+        setSocket(ch);
+        long start = System.nanoTime();
+        ch.connect(new InetSocketAddress(host, port)).get(timeout, TimeUnit.SECONDS);
+        onHandshakePhase(HandshakePhase.CONNECT, System.nanoTime() - start);
+        setWriteQueue(new WriteQueue(this, ch, timer, timeout));
         logger.debug("Connected to {}:{}", host, port);
     }
 
@@ -116,33 +294,63 @@ public abstract class Connection extends IConnection {
      */
     public void close() {
         AsynchronousSocketChannel ch = null;
-        AsynchronousChannelGroup grp = null;
+        boolean releaseGroup = false;
+        boolean releaseTimer = false;
 
-        synchronized (closeLock) {
+        closeLock.lock();
+        try {
             if (state != State.CLOSED) {
                 handleClose();
                 ch = socket;
-                grp = group;
                 socket = null;
-                group = null;
+                if (writeQueue != null) {
+                    writeQueue.clear();
+                    writeQueue = null;
+                }
+                if (loop != null) {
+                    loop.detach();
+                    loop = null;
+                }
+                if (timer != null) {
+                    releaseTimer = true;
+                    timer = null;
+                }
+                if (ownGroup) {
+                    releaseGroup = true;
+                    ownGroup = false;
+                    group = null;
+                }
                 // Set the new state after all the cleanup has been done. This prevents
                 // reconnecting, which may be running in a concurrent thread, from getting
                 // a "half-closed" connection
                 setState(State.CLOSED);
             }
+        } finally {
+            closeLock.unlock();
         }
 
         if (ch != null) {
             safeClose(ch);
         }
-        if (grp != null) {
+        if (releaseGroup) {
             ChannelGroupHolder.put();
         }
+        if (releaseTimer) {
+            TimerHolder.put();
+        }
     }
 
     protected void closeOnlySocket() {
-        safeClose(socket);
-        socket = null;
+        if (writeQueue != null) {
+            writeQueue.clear();
+            writeQueue = null;
+        }
+        if (socket != null) {
+            safeClose(socket);
+            socket = null;
+        }
+        // Drop whatever has been read ahead from this socket
+        tunnel.handleError();
     }
 
     protected void safeClose(AsynchronousSocketChannel ch) {
@@ -161,26 +369,179 @@ public abstract class Connection extends IConnection {
     @Override
     protected void doSendRawData(ByteBuffer data)
             throws InterruptedException, ExecutionException, TimeoutException, IOException {
-        AsynchronousSocketChannel s = socket;
+        WriteQueue q = writeQueue;
 
-        if (s == null) {
+        if (q == null) {
             throw new ClosedChannelException();
         }
 
-        int size = data.capacity();
+        // The packet is only queued here, the actual write is done asynchronously.
+        // Write errors are reported via onError() just like read errors.
+        onFrameSent(data.remaining());
+        q.enqueue(data, null);
+    }
 
-        // Binary incompatibility workaround: In Java 9 position() method has been overridden
-        // in ByteBuffer class; and overridden version returns ByteBuffer. This causes attempt
-        // to call using incompatible signature if compiled with the newer JDK.
-        // We care because we want to run on OpenHAB v2 using Java 1.8
-        ((Buffer) data).position(0);
+    @Override
+    protected CompletableFuture<Void> doSendRawDataAsync(ByteBuffer data) {
+        WriteQueue q = writeQueue;
 
-        synchronized (writeLock) {
-            while (size > 0) {
-                int ret = s.write(data).get(timeout, TimeUnit.SECONDS);
-                size -= ret;
-            }
+        if (q == null) {
+            return Utils.failedFuture(new ClosedChannelException());
+        }
+
+        CompletableFuture<Void> promise = new CompletableFuture<Void>();
+
+        onFrameSent(data.remaining());
+        try {
+            q.enqueue(data, promise);
+        } catch (ExecutionException e) {
+            promise.completeExceptionally(e.getCause());
         }
+
+        return promise;
+    }
+
+    /**
+     * Apply {@link OverflowPolicy} before sending user data
+     *
+     * Must not be called under locks, which the {@link EventLoop} may need,
+     * since it may block until the loop drains the queue.
+     *
+     * @throws WriteBufferFullException if the policy is {@link OverflowPolicy#FAIL}
+     * @throws InterruptedException if the current thread was interrupted
+     * @throws TimeoutException if the connection hasn't become writable in time
+     */
+    protected void applyOverflowPolicy() throws WriteBufferFullException, InterruptedException, TimeoutException {
+        WriteQueue q = writeQueue;
+
+        // If closed, the send itself will fail
+        if (q == null || q.isWritable()) {
+            return;
+        }
+
+        switch (overflowPolicy) {
+            case BLOCK:
+                EventLoop l = loop;
+
+                if (l != null && !l.inEventLoop()) {
+                    q.awaitWritable(timeout);
+                }
+                break;
+            case FAIL:
+                throw new WriteBufferFullException(
+                        "Outbound queue full: " + q.getPendingBytes() + " bytes pending");
+            case DROP_OLDEST:
+                q.dropOldest();
+                break;
+            default:
+                break;
+        }
+    }
+
+    /**
+     * Called by {@link WriteQueue} when writability may have changed
+     */
+    void handleWritabilityChanged() {
+        EventLoop l = loop;
+
+        if (l == null) {
+            return;
+        }
+
+        // Always report on the loop, so that the user sees changes in order
+        try {
+            l.execute(this::reportWritability);
+        } catch (RejectedExecutionException e) {
+            // Shutting down, nobody cares any more
+        }
+    }
+
+    private void reportWritability() {
+        WriteQueue q = writeQueue;
+
+        if (q == null) {
+            // Closed, onError() or whatever is more important
+            return;
+        }
+
+        boolean writable = q.isWritable();
+
+        if (writable != reportedWritable) {
+            reportedWritable = writable;
+            runCallback(() -> onWritabilityChanged(writable));
+        }
+    }
+
+    /**
+     * Called when the connection becomes writable or not writable
+     *
+     * Always called on the connection's {@link EventLoop} or callback executor,
+     * see {@link #setCallbackExecutor(Executor, int)}. A quick succession of
+     * changes may be reported once, or not at all if the state has returned
+     * to the original one.
+     *
+     * @param writable the new state
+     */
+    protected void onWritabilityChanged(boolean writable) {
+    }
+
+    /**
+     * Checks whether the outbound queue is below the high watermark
+     *
+     * Producers, which don't want to use {@link OverflowPolicy}, should stop sending
+     * when this becomes false and wait for {@link #onWritabilityChanged(boolean)}.
+     *
+     * @return false if too much data is waiting to be sent or if the connection is closed
+     */
+    public boolean isWritable() {
+        WriteQueue q = writeQueue;
+
+        return q != null && q.isWritable();
+    }
+
+    /**
+     * Gets amount of data, waiting in the outbound queue
+     *
+     * @return number of bytes
+     */
+    public long getPendingWriteBytes() {
+        WriteQueue q = writeQueue;
+
+        return q != null ? q.getPendingBytes() : 0;
+    }
+
+    /**
+     * Handle a failed asynchronous write
+     *
+     * @param ch the socket, the write was issued on
+     * @param exc error description
+     */
+    void handleWriteError(AsynchronousSocketChannel ch, Throwable exc) {
+        if (ch != socket) {
+            // The socket has already been closed or replaced, nothing to report
+            return;
+        }
+
+        if (state == State.CONNECTED) {
+            handleError(exc);
+        } else {
+            logger.debug("Write failed during handshake: {}", exc.toString());
+            handleHandshakeWriteError(ch, exc);
+        }
+    }
+
+    /**
+     * Handle a failed write during connection establishment
+     *
+     * By default the handshake is assumed to be synchronous; closing the socket makes
+     * it fail and clean up on its own. Connections, performing the handshake
+     * asynchronously, should override this.
+     *
+     * @param ch the socket, the write was issued on
+     * @param exc error description
+     */
+    protected void handleHandshakeWriteError(AsynchronousSocketChannel ch, Throwable exc) {
+        safeClose(ch);
     }
 
     /**
@@ -191,12 +552,29 @@ public abstract class Connection extends IConnection {
      *
      */
     protected void asyncReceive() {
-        socket.read(tunnel.getBuffer(), this, readHandler);
+        if (tunnel.hasPendingPacket()) {
+            // Some packets have been read ahead by synchronous receiving,
+            // handle them first, as if they just arrived
+            loop.execute(new Runnable() {
+                @Override
+                public void run() {
+                    readHandler.completed(0, Connection.this);
+                }
+            });
+        } else {
+            readHandler.read(this);
+        }
     }
 
     @Override
     protected int doSyncReceive(ByteBuffer buffer) throws InterruptedException, ExecutionException, TimeoutException {
-        return socket.read(buffer).get(timeout, TimeUnit.SECONDS);
+        AsynchronousSocketChannel s = socket;
+
+        if (s == null) {
+            // Closed because of a write error
+            throw new ExecutionException(new ClosedChannelException());
+        }
+        return s.read(buffer).get(timeout, TimeUnit.SECONDS);
     }
 
     /**
@@ -215,13 +593,19 @@ public abstract class Connection extends IConnection {
         } else {
             // The user may want to reconnect in onError(), so close first
             close();
-            onError(exc);
+            // After all the data, received before
+            runCallback(() -> onError(exc));
         }
     }
 
     protected void setState(State newState) {
+        State oldState = state;
+
         logger.debug("State = {}", newState);
         state = newState;
+        if (oldState != newState) {
+            Metrics.getRecorder().stateChanged(this, oldState, newState);
+        }
     }
 
     protected void checkState(State required) {
@@ -240,6 +624,114 @@ public abstract class Connection extends IConnection {
         return state;
     }
 
+    /**
+     * Get traffic counters of this Connection
+     *
+     * @return {@link ConnectionMetrics}
+     */
+    public ConnectionMetrics getMetrics() {
+        return metrics;
+    }
+
+    private void onFrameSent(int size) {
+        metrics.frameSent(size);
+        Metrics.getRecorder().frameSent(this, size);
+    }
+
+    @Override
+    protected void onFrameReceived(int size) {
+        metrics.frameReceived(size);
+        Metrics.getRecorder().frameReceived(this, size);
+    }
+
+    @Override
+    protected void onEncrypted(long nanos) {
+        metrics.encrypted(nanos);
+        Metrics.getRecorder().encrypted(this, nanos);
+    }
+
+    @Override
+    protected void onDecrypted(long nanos) {
+        metrics.decrypted(nanos);
+        Metrics.getRecorder().decrypted(this, nanos);
+    }
+
+    @Override
+    protected void onHandshakePhase(HandshakePhase phase, long nanos) {
+        logger.trace("{} took {} us", phase, TimeUnit.NANOSECONDS.toMicros(nanos));
+        Metrics.getRecorder().handshakePhase(this, phase, nanos);
+    }
+
+    @Override
+    protected @Nullable Executor getEncryptionExecutor() {
+        return encryptionExecutor;
+    }
+
+    @Override
+    protected <T> void doOffload(HandshakeTask<T> task, Continuation<T> then)
+            throws IOException, InterruptedException, ExecutionException, TimeoutException {
+        EventLoop l = loop;
+
+        if (l == null || !l.inEventLoop()) {
+            // Synchronous handshake, the caller's own thread is waiting anyway
+            then.resume(task.compute());
+            return;
+        }
+
+        AsynchronousSocketChannel ch = socket;
+
+        // The ReadHandler sees this and stops reading
+        handshakeTaskPending = true;
+        try {
+            CryptoPool.get().execute(() -> {
+                try {
+                    T result = task.compute();
+
+                    runOnLoop(l, () -> completeOffload(ch, result, null, then));
+                } catch (IOException | RuntimeException e) {
+                    runOnLoop(l, () -> completeOffload(ch, null, e, then));
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            handshakeTaskPending = false;
+            then.resume(task.compute());
+        }
+    }
+
+    private static void runOnLoop(EventLoop l, Runnable r) {
+        try {
+            l.execute(r);
+        } catch (RejectedExecutionException e) {
+            // Shutting down, the connection is being closed anyway
+        }
+    }
+
+    // Runs on the EventLoop
+    private <T> void completeOffload(AsynchronousSocketChannel ch, @Nullable T result, @Nullable Throwable error,
+            Continuation<T> then) {
+        if (ch != socket || state == State.CLOSED) {
+            // Gone while we were computing
+            return;
+        }
+
+        handshakeTaskPending = false;
+        try {
+            if (error != null) {
+                handleError(error);
+                return;
+            }
+            then.resume(result);
+        } catch (IOException | InterruptedException | ExecutionException | TimeoutException e) {
+            handleError(e);
+            return;
+        }
+
+        // The continuation could have closed the connection or started another task
+        if (ch == socket && state != State.CLOSED && !pauseReadingIfBusy()) {
+            resumeReading();
+        }
+    }
+
     /**
      * Called when an error happens during asynchronous reading
      *
@@ -272,6 +764,196 @@ public abstract class Connection extends IConnection {
         return tunnel.getMyPeerId();
     }
 
+    /**
+     * Gets a key for selecting an {@link EventLoop}
+     *
+     * Connections with the same key are always serviced by the same loop.
+     *
+     * @return a key to hash
+     */
+    protected byte @Nullable [] getLoopKey() {
+        return getMyPeerId();
+    }
+
+    /**
+     * Gets the {@link EventLoop}, servicing this connection
+     *
+     * @return an {@link EventLoop} or null if the connection is closed
+     */
+    public @Nullable EventLoop getEventLoop() {
+        return loop;
+    }
+
+    /**
+     * Sets an {@link Executor} for user callbacks
+     *
+     * By default callbacks, like {@link PeerConnection#onDataReceived(ByteBuffer)}, run right
+     * on the {@link EventLoop}, so a slow callback holds up all the connections, sharing the
+     * loop. With an executor, the loop only decodes packets and passes copies of the data
+     * to the executor. Callbacks of a single connection still run one at a time and
+     * in order, callbacks of different connections run in parallel. So a single pool
+     * can be shared by any number of connections.
+     *
+     * If more than queueDepth callbacks are waiting, the connection stops reading from
+     * the socket until they catch up to a half of that. The peer then gets slowed down
+     * by TCP flow control.
+     *
+     * This method may only be called on a closed connection.
+     *
+     * @param executor an executor to use or null to run callbacks on the {@link EventLoop}
+     * @param queueDepth maximum number of callbacks to queue
+     */
+    public void setCallbackExecutor(@Nullable Executor executor, int queueDepth) {
+        checkState(State.CLOSED);
+        if (queueDepth <= 0) {
+            throw new IllegalArgumentException("Invalid queue depth " + queueDepth);
+        }
+        callbackQueue = executor == null ? null : new SerialExecutor(executor, this::onCallbackDone);
+        callbackQueueDepth = queueDepth;
+    }
+
+    /**
+     * Sets an {@link Executor} for user callbacks
+     *
+     * The same as {@link #setCallbackExecutor(Executor, int)} with
+     * {@link #DEFAULT_CALLBACK_QUEUE_DEPTH}.
+     *
+     * @param executor an executor to use or null to run callbacks on the {@link EventLoop}
+     */
+    public void setCallbackExecutor(@Nullable Executor executor) {
+        setCallbackExecutor(executor, DEFAULT_CALLBACK_QUEUE_DEPTH);
+    }
+
+    /**
+     * Checks whether user callbacks are run by an executor
+     *
+     * If so, data, passed to a callback, must be copied, the receive buffer
+     * will be reused long before the callback runs.
+     *
+     * @return true if a callback executor is set
+     */
+    protected boolean hasCallbackExecutor() {
+        return callbackQueue != null;
+    }
+
+    /**
+     * Run a user callback
+     *
+     * On the callback executor if any, otherwise right here.
+     *
+     * @param callback the callback
+     */
+    protected void runCallback(Runnable callback) {
+        SerialExecutor q = callbackQueue;
+
+        if (q != null) {
+            q.execute(callback);
+        } else {
+            callback.run();
+        }
+    }
+
+    /**
+     * Sets an {@link Executor} for encrypting outgoing data
+     *
+     * Packets are always sent in order, but they don't have to be encrypted in order.
+     * By default asynchronous sends, like {@link PeerConnection#sendDataAsync(ByteBuffer)},
+     * encrypt on the calling thread, so several threads, sending over the same connection,
+     * already encrypt in parallel. With an executor, a single sending thread only copies
+     * its data into a packet and moves on, while the pool encrypts a number of packets
+     * at once. Worth it for a busy connection on a multi-core host; for small packets
+     * the handoff costs more than it saves.
+     *
+     * Synchronous sends always encrypt on the calling thread. May be called at any time.
+     *
+     * @param executor an executor to use or null to encrypt on the calling thread
+     */
+    public void setEncryptionExecutor(@Nullable Executor executor) {
+        encryptionExecutor = executor;
+    }
+
+    // Called by the EventLoop after handling a packet
+    private boolean pauseReadingIfBusy() {
+        if (handshakeTaskPending) {
+            // Resumed by completeOffload()
+            pausedSocket.set(socket);
+            return true;
+        }
+
+        SerialExecutor q = callbackQueue;
+
+        if (q == null || q.size() < callbackQueueDepth) {
+            return false;
+        }
+
+        pausedSocket.set(socket);
+        // The queue could have drained before we've set the socket
+        if (q.size() <= callbackQueueDepth / 2) {
+            resumeReading();
+        }
+        return true;
+    }
+
+    // Called by the callback executor after every callback
+    private void onCallbackDone() {
+        SerialExecutor q = callbackQueue;
+        EventLoop l = loop;
+
+        if (pausedSocket.get() != null && q != null && q.size() <= callbackQueueDepth / 2 && l != null) {
+            try {
+                l.execute(this::resumeReading);
+            } catch (RejectedExecutionException e) {
+                // Shutting down
+            }
+        }
+    }
+
+    // Must be called on the EventLoop
+    private void resumeReading() {
+        if (handshakeTaskPending) {
+            // completeOffload() will take care
+            return;
+        }
+
+        AsynchronousSocketChannel ch = pausedSocket.getAndSet(null);
+
+        // The connection could have been closed or reconnected meanwhile
+        if (ch != null && ch == socket && state != State.CLOSED) {
+            asyncReceive();
+        }
+    }
+
+    /**
+     * Sets {@link EventLoopGroup} to use for this connection
+     *
+     * By default all connections share a single group, managed by the library.
+     * This method allows to use own group instead. The caller is responsible for
+     * shutting down the group after all the connections using it are closed.
+     * This method may only be called on a closed connection.
+     *
+     * @param newGroup a group to use or null to revert to the default one
+     */
+    public void setEventLoopGroup(@Nullable EventLoopGroup newGroup) {
+        checkState(State.CLOSED);
+        group = newGroup;
+        ownGroup = false;
+    }
+
+    /**
+     * Enables or disables load balancing
+     *
+     * By default a connection is pinned to an {@link EventLoop}, chosen by hash of
+     * its peer ID. With load balancing enabled the least busy loop is chosen instead.
+     * An asynchronous socket can't leave its loop, so the new setting is applied
+     * on the next connect; a closed {@link Connection} can be reused in order to
+     * move it to a less busy loop.
+     *
+     * @param enable true to enable load balancing
+     */
+    public void setLoadBalancing(boolean enable) {
+        loadBalancing = enable;
+    }
+
     /**
      * Sets timeout for requests in second
      *
@@ -283,4 +965,48 @@ public abstract class Connection extends IConnection {
     public void setTimeout(int seconds) {
         timeout = seconds;
     }
+
+    /**
+     * Sets limits of the outbound queue
+     *
+     * When more than high bytes are waiting to be sent, the connection becomes not writable;
+     * it becomes writable again when the amount drops to low bytes. This bounds the memory,
+     * taken by a slow or stalled peer, if the sender respects {@link #isWritable()} or uses
+     * an {@link OverflowPolicy}. Defaults are {@link #DEFAULT_LOW_WATER_MARK} and
+     * {@link #DEFAULT_HIGH_WATER_MARK}.
+     *
+     * @param low low watermark in bytes
+     * @param high high watermark in bytes
+     */
+    public void setWriteBufferWaterMarks(int low, int high) {
+        if (low < 0 || high < low) {
+            throw new IllegalArgumentException("Invalid watermarks " + low + ", " + high);
+        }
+        lowWaterMark = low;
+        highWaterMark = high;
+    }
+
+    public int getWriteBufferLowWaterMark() {
+        return lowWaterMark;
+    }
+
+    public int getWriteBufferHighWaterMark() {
+        return highWaterMark;
+    }
+
+    /**
+     * Sets what to do with data, sent while the connection is not writable
+     *
+     * The policy applies to data, sent by the user; protocol's own packets, like
+     * Grid pings, are always queued. The default is {@link OverflowPolicy#NONE}.
+     *
+     * @param policy the policy
+     */
+    public void setOverflowPolicy(@NonNull OverflowPolicy policy) {
+        overflowPolicy = policy;
+    }
+
+    public OverflowPolicy getOverflowPolicy() {
+        return overflowPolicy;
+    }
 }
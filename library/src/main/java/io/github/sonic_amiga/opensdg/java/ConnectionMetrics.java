@@ -0,0 +1,105 @@
+package io.github.sonic_amiga.opensdg.java;
+
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Traffic counters of a single {@link Connection}
+ *
+ * The counters are never reset, they keep growing if the {@link Connection} is reused.
+ * Take a difference between two readings in order to get a rate.
+ *
+ * @author Pavel Fedin
+ */
+public class ConnectionMetrics {
+    // LongAdder, because sending is done by arbitrary threads concurrently
+    private final LongAdder bytesIn = new LongAdder();
+    private final LongAdder bytesOut = new LongAdder();
+    private final LongAdder framesIn = new LongAdder();
+    private final LongAdder framesOut = new LongAdder();
+    private final LongAdder encryptCount = new LongAdder();
+    private final LongAdder encryptNanos = new LongAdder();
+    private final LongAdder decryptCount = new LongAdder();
+    private final LongAdder decryptNanos = new LongAdder();
+
+    void frameReceived(int size) {
+        framesIn.increment();
+        bytesIn.add(size);
+    }
+
+    void frameSent(int size) {
+        framesOut.increment();
+        bytesOut.add(size);
+    }
+
+    void encrypted(long nanos) {
+        encryptCount.increment();
+        encryptNanos.add(nanos);
+    }
+
+    void decrypted(long nanos) {
+        decryptCount.increment();
+        decryptNanos.add(nanos);
+    }
+
+    /**
+     * @return total size of received frames in bytes
+     */
+    public long getBytesIn() {
+        return bytesIn.sum();
+    }
+
+    /**
+     * @return total size of sent frames in bytes
+     */
+    public long getBytesOut() {
+        return bytesOut.sum();
+    }
+
+    /**
+     * @return number of received frames
+     */
+    public long getFramesIn() {
+        return framesIn.sum();
+    }
+
+    /**
+     * @return number of sent frames
+     */
+    public long getFramesOut() {
+        return framesOut.sum();
+    }
+
+    /**
+     * @return number of encrypted MESG packets
+     */
+    public long getEncryptCount() {
+        return encryptCount.sum();
+    }
+
+    /**
+     * @return total time, spent on encrypting MESG packets, in nanoseconds
+     */
+    public long getEncryptNanos() {
+        return encryptNanos.sum();
+    }
+
+    /**
+     * @return number of decrypted MESG packets
+     */
+    public long getDecryptCount() {
+        return decryptCount.sum();
+    }
+
+    /**
+     * @return total time, spent on decrypting MESG packets, in nanoseconds
+     */
+    public long getDecryptNanos() {
+        return decryptNanos.sum();
+    }
+
+    @Override
+    public String toString() {
+        return "in " + getFramesIn() + " frames/" + getBytesIn() + " bytes, out " + getFramesOut() + " frames/"
+                + getBytesOut() + " bytes";
+    }
+}
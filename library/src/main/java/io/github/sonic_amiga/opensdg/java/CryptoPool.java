@@ -0,0 +1,48 @@
+package io.github.sonic_amiga.opensdg.java;
+
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * A shared pool for CPU-heavy steps of handshakes
+ *
+ * A handshake costs several milliseconds of curve25519 math. Done on an {@link EventLoop},
+ * a reconnect storm would stall all the established connections. There's no point in having
+ * more threads than CPUs for pure computation. The threads are daemons and die when idle,
+ * so the pool never needs to be shut down. The queue is bounded; when it's full, submission
+ * is rejected and the handshake step runs inline on the loop, so the backlog can't grow
+ * without limits.
+ *
+ * @author Pavel Fedin
+ */
+class CryptoPool {
+    private static final long KEEPALIVE_SECONDS = 30;
+    private static final int MAX_QUEUED_PER_THREAD = 64;
+
+    // Created on first use only
+    private static class Holder {
+        static final ThreadPoolExecutor pool = create();
+    }
+
+    private static ThreadPoolExecutor create() {
+        int size = Runtime.getRuntime().availableProcessors();
+        ThreadFactory names = new NamedThreadFactory("SDG crypto");
+        ThreadPoolExecutor pool = new ThreadPoolExecutor(size, size, KEEPALIVE_SECONDS, TimeUnit.SECONDS,
+                new ArrayBlockingQueue<Runnable>(size * MAX_QUEUED_PER_THREAD), r -> {
+                    Thread t = names.newThread(r);
+
+                    t.setDaemon(true);
+                    return t;
+                });
+
+        pool.allowCoreThreadTimeOut(true);
+        return pool;
+    }
+
+    static Executor get() {
+        return Holder.pool;
+    }
+}
@@ -0,0 +1,81 @@
+package io.github.sonic_amiga.opensdg.java;
+
+import java.io.IOException;
+import java.nio.channels.AsynchronousChannelGroup;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * A single I/O event loop
+ *
+ * An event loop is a single thread, which runs all the completion handlers
+ * for sockets, bound to it. This guarantees that packets of a single connection
+ * are always processed in order, while different loops run in parallel.
+ *
+ * The loop can also be used as an {@link Executor} in order to run arbitrary
+ * tasks in the context of connections, bound to it.
+ *
+ * @author Pavel Fedin
+ */
+public class EventLoop implements Executor {
+    // The loop, whose thread we're running on, if any
+    private static final ThreadLocal<EventLoop> current = new ThreadLocal<EventLoop>();
+
+    private final ExecutorService executor;
+    private final AsynchronousChannelGroup group;
+    private final AtomicInteger numConnections = new AtomicInteger();
+
+    EventLoop(String name) throws IOException {
+        NamedThreadFactory factory = new NamedThreadFactory(name);
+
+        // The executor replaces its thread if a task dies, so mark every one it creates
+        executor = Executors.newSingleThreadExecutor(r -> factory.newThread(() -> {
+            current.set(this);
+            r.run();
+        }));
+        // The group will dispatch all completions to our single thread
+        group = AsynchronousChannelGroup.withThreadPool(executor);
+    }
+
+    AsynchronousChannelGroup getChannelGroup() {
+        return group;
+    }
+
+    void attach() {
+        numConnections.incrementAndGet();
+    }
+
+    void detach() {
+        numConnections.decrementAndGet();
+    }
+
+    /**
+     * Gets number of connections, currently bound to this loop
+     *
+     * @return number of connections
+     */
+    public int getLoad() {
+        return numConnections.get();
+    }
+
+    /**
+     * Checks whether the caller is running on this loop's thread
+     *
+     * @return true if called from this loop
+     */
+    public boolean inEventLoop() {
+        return current.get() == this;
+    }
+
+    @Override
+    public void execute(Runnable command) {
+        executor.execute(command);
+    }
+
+    void shutdown() {
+        // This also shuts down our executor
+        group.shutdown();
+    }
+}
@@ -0,0 +1,159 @@
+package io.github.sonic_amiga.opensdg.java;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.eclipse.jdt.annotation.NonNull;
+import org.eclipse.jdt.annotation.Nullable;
+
+/**
+ * A group of I/O event loops
+ *
+ * Every {@link Connection} is pinned to one of the loops, chosen by hash of its
+ * peer ID, so that all its packets are handled by the same thread in order.
+ * Different connections are spread over the loops and run in parallel.
+ *
+ * By default all connections share a single group, whose size is given by
+ * {@link #setDefaultSize(int)}. A {@link Connection} can also be given its own
+ * group using {@link Connection#setEventLoopGroup(EventLoopGroup)}.
+ *
+ * @author Pavel Fedin
+ */
+public class EventLoopGroup {
+    private static int defaultSize = Runtime.getRuntime().availableProcessors();
+
+    private final EventLoop[] loops;
+    private final AtomicInteger nextLoop = new AtomicInteger();
+
+    /**
+     * Creates a new {@link EventLoopGroup}
+     *
+     * @param size number of loops (threads) to run
+     * @throws IOException if the underlying channel group can't be created
+     */
+    public EventLoopGroup(int size) throws IOException {
+        this(size, "SDG socket thread");
+    }
+
+    /**
+     * Creates a new {@link EventLoopGroup} with custom thread names
+     *
+     * @param size number of loops (threads) to run
+     * @param name thread name prefix
+     * @throws IOException if the underlying channel group can't be created
+     */
+    public EventLoopGroup(int size, @NonNull String name) throws IOException {
+        if (size < 1) {
+            throw new IllegalArgumentException("Event loop group size must be positive");
+        }
+
+        loops = new EventLoop[size];
+
+        try {
+            for (int i = 0; i < size; i++) {
+                loops[i] = new EventLoop(name + "-" + i);
+            }
+        } catch (IOException e) {
+            shutdown();
+            throw e;
+        }
+    }
+
+    /**
+     * Gets number of loops in this group
+     *
+     * @return number of loops
+     */
+    public int size() {
+        return loops.length;
+    }
+
+    /**
+     * Gets a loop by its index
+     *
+     * @param index loop index from 0 to {@link #size()} - 1
+     * @return an {@link EventLoop}
+     */
+    public @NonNull EventLoop getLoop(int index) {
+        return loops[index];
+    }
+
+    /**
+     * Selects a loop for the given key
+     *
+     * The same key always gives the same loop. If no key is given, loops are
+     * assigned in a round-robin fashion.
+     *
+     * @param key a key to hash, usually a peer ID
+     * @return an {@link EventLoop}
+     */
+    public @NonNull EventLoop select(byte @Nullable [] key) {
+        int hash;
+
+        if (key == null) {
+            hash = nextLoop.getAndIncrement();
+        } else {
+            hash = Arrays.hashCode(key);
+            // Peer IDs are random, but Arrays.hashCode() mixes lower bits poorly
+            hash ^= hash >>> 16;
+        }
+
+        return loops[Math.floorMod(hash, loops.length)];
+    }
+
+    /**
+     * Selects a loop, which currently serves the least number of connections
+     *
+     * @return an {@link EventLoop}
+     */
+    public @NonNull EventLoop selectLeastLoaded() {
+        EventLoop best = loops[0];
+
+        for (int i = 1; i < loops.length; i++) {
+            if (loops[i].getLoad() < best.getLoad()) {
+                best = loops[i];
+            }
+        }
+
+        return best;
+    }
+
+    /**
+     * Shuts down the group
+     *
+     * All the connections, serviced by this group, must be closed first
+     */
+    public void shutdown() {
+        for (EventLoop loop : loops) {
+            if (loop != null) {
+                loop.shutdown();
+            }
+        }
+    }
+
+    /**
+     * Gets size of the default group
+     *
+     * @return number of loops
+     */
+    public static int getDefaultSize() {
+        return defaultSize;
+    }
+
+    /**
+     * Sets size of the default group
+     *
+     * By default the number of loops equals to the number of available CPU cores.
+     * The new value is applied when the default group is (re)created, i. e. when
+     * the first {@link Connection} is opened after all others have been closed.
+     *
+     * @param size number of loops
+     */
+    public static void setDefaultSize(int size) {
+        if (size < 1) {
+            throw new IllegalArgumentException("Event loop group size must be positive");
+        }
+        defaultSize = size;
+    }
+}
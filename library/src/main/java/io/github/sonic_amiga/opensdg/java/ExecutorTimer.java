@@ -0,0 +1,33 @@
+package io.github.sonic_amiga.opensdg.java;
+
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * A {@link Timer}, running on a {@link ScheduledExecutorService}
+ *
+ * Used when the environment provides own scheduler, see
+ * {@link GridConnection#GridConnection(byte[], ScheduledExecutorService)}
+ *
+ * @author Pavel Fedin
+ */
+class ExecutorTimer implements Timer {
+    private final ScheduledExecutorService executor;
+
+    ExecutorTimer(ScheduledExecutorService executor) {
+        this.executor = executor;
+    }
+
+    @Override
+    public Timeout schedule(Runnable task, long delay, TimeUnit unit) {
+        ScheduledFuture<?> future = executor.schedule(task, delay, unit);
+
+        return new Timeout() {
+            @Override
+            public boolean cancel() {
+                return future.cancel(false);
+            }
+        };
+    }
+}
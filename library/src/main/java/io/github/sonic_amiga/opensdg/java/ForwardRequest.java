@@ -1,30 +1,35 @@
 package io.github.sonic_amiga.opensdg.java;
 
 import java.nio.channels.ClosedChannelException;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
 import java.util.concurrent.ExecutionException;
-import java.util.concurrent.Future;
 import java.util.concurrent.TimeUnit;
 import java.util.concurrent.TimeoutException;
 
 import io.github.sonic_amiga.opensdg.protocol.generated.ControlProtocol.PeerReply;
 
-class ForwardRequest implements Future<PeerReply> {
-    private int requestId;
-    private PeerReply result = null;
-    private Throwable error = null;
+/**
+ * A pending request to the Grid, waiting for {@link PeerReply}
+ *
+ * Completes when the reply arrives, when the request expires or fails,
+ * or when it's cancelled by the user.
+ *
+ * @author Pavel Fedin
+ */
+class ForwardRequest extends CompletableFuture<PeerReply> {
+    private final int requestId;
 
     ForwardRequest(int id) {
         requestId = id;
     }
 
-    synchronized void reportDone(PeerReply reply) {
-        result = reply;
-        notifyAll();
+    void reportDone(PeerReply reply) {
+        complete(reply);
     }
 
-    synchronized void reportError(Throwable t) {
-        error = t;
-        notifyAll();
+    void reportError(Throwable t) {
+        completeExceptionally(t);
     }
 
     int getId() {
@@ -36,56 +41,49 @@ class ForwardRequest implements Future<PeerReply> {
         return "ForwardRequest #" + requestId;
     }
 
-    @Override
-    public boolean cancel(boolean mayInterruptIfRunning) {
-        // We don't support canceling (yet)
-        return false;
-    }
-
-    @Override
-    public boolean isCancelled() {
-        // We don't support canceling (yet)
-        return false;
-    }
-
-    @Override
-    public boolean isDone() {
-        return result != null || error != null;
-    }
-
     @Override
     public PeerReply get() throws InterruptedException, ExecutionException {
-        return get(0);
+        try {
+            return super.get();
+        } catch (ExecutionException e) {
+            throw niceError(e);
+        }
     }
 
     @Override
-    public PeerReply get(long timeout, TimeUnit unit) throws InterruptedException, ExecutionException {
-        return get(unit.convert(timeout, TimeUnit.MILLISECONDS));
-
+    public PeerReply get(long timeout, TimeUnit unit)
+            throws InterruptedException, ExecutionException, TimeoutException {
+        try {
+            return super.get(timeout, unit);
+        } catch (ExecutionException e) {
+            throw niceError(e);
+        } catch (TimeoutException e) {
+            // The caller gives up, so do we
+            cancel(false);
+            throw e;
+        }
     }
 
-    private synchronized PeerReply get(long ms) throws InterruptedException, ExecutionException {
-        while (!isDone()) {
-            wait(ms);
-        }
+    private static ExecutionException niceError(ExecutionException e) {
+        Throwable error = e.getCause();
 
-        if (error != null) {
-            // Provide a nice message to the user
-            String message = error.getMessage();
+        if (error == null || error instanceof CancellationException) {
+            return e;
+        }
 
-            if (message == null) {
-                // Some Throwables come without a message
-                if (error instanceof ClosedChannelException) {
-                    message = "Grid is not connected";
-                } else if (error instanceof TimeoutException) {
-                    message = "Grid communication timeout";
-                } else {
-                    message = "Grid connection error: " + error.toString();
-                }
+        // Provide a nice message to the user
+        String message = error.getMessage();
+
+        if (message == null) {
+            // Some Throwables come without a message
+            if (error instanceof ClosedChannelException) {
+                message = "Grid is not connected";
+            } else if (error instanceof TimeoutException) {
+                message = "Grid communication timeout";
+            } else {
+                message = "Grid connection error: " + error.toString();
             }
-            throw new ExecutionException(message, error);
         }
-
-        return result;
+        return new ExecutionException(message, error);
     }
 }
@@ -1,24 +1,34 @@
 package io.github.sonic_amiga.opensdg.java;
 
-import java.io.ByteArrayOutputStream;
 import java.io.EOFException;
 import java.io.IOException;
-import java.io.InputStream;
+import java.net.InetSocketAddress;
 import java.net.ProtocolException;
+import java.nio.ByteBuffer;
+import java.nio.channels.AsynchronousCloseException;
+import java.nio.channels.AsynchronousSocketChannel;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.CompletionHandler;
 import java.util.ArrayList;
-import java.util.Calendar;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ExecutionException;
+import java.util.concurrent.RejectedExecutionException;
 import java.util.concurrent.ScheduledExecutorService;
-import java.util.concurrent.ScheduledFuture;
 import java.util.concurrent.TimeUnit;
 import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import org.eclipse.jdt.annotation.NonNull;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import com.google.protobuf.AbstractMessage;
+import com.google.protobuf.CodedInputStream;
+import com.google.protobuf.CodedOutputStream;
 
+import io.github.sonic_amiga.opensdg.internal.Utils;
+import io.github.sonic_amiga.opensdg.java.MetricsRecorder.HandshakePhase;
 import io.github.sonic_amiga.opensdg.protocol.Control;
 import io.github.sonic_amiga.opensdg.protocol.MDGBinary;
 import io.github.sonic_amiga.opensdg.protocol.generated.ControlProtocol.ConnectToPeer;
@@ -36,27 +46,37 @@ import io.github.sonic_amiga.opensdg.protocol.generated.ControlProtocol.Protocol
 public class GridConnection extends Connection {
     private final Logger logger = LoggerFactory.getLogger(GridConnection.class);
 
-    private int pingInterval = 30;
+    // Never pinging more often than this is the same thing as original mdglib does
+    private static final int DEFAULT_PING_INTERVAL = 30;
+    // It's pointless to reschedule a ping, which is due less than this
+    private static final long PING_SLACK = TimeUnit.SECONDS.toNanos(1);
+
+    private final Keepalive keepalive = new Keepalive(DEFAULT_PING_INTERVAL);
+    private final LatencyHistogram rttHistogram = new LatencyHistogram();
+    private int pingInterval = DEFAULT_PING_INTERVAL;
     private int pingSequence;
     private int pingDelay;
     private long lastPing;
-
-    private ScheduledExecutorService pingScheduler;
-    private boolean ownScheduler;
-    private ScheduledFuture<?> scheduledPing;
-
-    private @NonNull ArrayList<ForwardRequest> forwardQueue = new ArrayList<ForwardRequest>();
-
+    // When we've last sent something to the grid. Any packet keeps the session alive.
+    private volatile long lastSent;
+    // Start of protocol version exchange, for metrics
+    private long protocolStart;
+
+    // A Timer on top of the user-given ScheduledExecutorService, if any
+    private final Timer userTimer;
+    private Timer.Timeout scheduledPing;
+
+    // Pending forward requests by their IDs
+    private final ConcurrentHashMap<Integer, ForwardRequest> forwardQueue = new ConcurrentHashMap<Integer, ForwardRequest>();
+    // IDs simply wrap around; they only need to be unique among pending requests
+    private final AtomicInteger nextRequestId = new AtomicInteger();
+
+    // Runs on the timer thread, which must not block, so the ping itself is sent by the EventLoop.
+    // Ping state is also only touched by the EventLoop.
     private Runnable pingTask = new Runnable() {
         @Override
         public void run() {
-            GridConnection.this.scheduledPing = null;
-
-            try {
-                GridConnection.this.ping();
-            } catch (IOException | InterruptedException | ExecutionException | TimeoutException e) {
-                GridConnection.this.handleError(e);
-            }
+            runOnLoop(GridConnection.this::onPingDue);
         }
     };
 
@@ -64,12 +84,51 @@ public class GridConnection extends Connection {
         String host;
         int port;
 
-        Endpoint(String h, int p) {
+        /**
+         * Creates an {@link Endpoint}
+         *
+         * @param h host name or address
+         * @param p port number
+         */
+        public Endpoint(String h, int p) {
             host = h;
             port = p;
         }
+
+        @Override
+        public String toString() {
+            return host + ":" + port;
+        }
     };
 
+    // A single TCP connection attempt
+    private static class Attempt {
+        final Endpoint server;
+        AsynchronousSocketChannel socket;
+        Timer.Timeout timer;
+        volatile boolean timedOut;
+        final long startTime = System.nanoTime();
+
+        Attempt(Endpoint s) {
+            server = s;
+        }
+    }
+
+    // Asynchronous connection state. Everything, except close(), runs on the EventLoop.
+    private final Object connectLock = new Object();
+    private CompletableFuture<Void> connectPromise;
+    private Endpoint[] connectList;
+    private int connectIndex;
+    private Throwable connectError;
+    // TCP connects, currently in progress
+    private final ArrayList<Attempt> attempts = new ArrayList<Attempt>();
+    // The server, we're doing MDGBinary handshake with, if any
+    private Endpoint handshakeServer;
+    private int handshakeGeneration;
+    // Either stagger or handshake timeout timer
+    private Timer.Timeout connectTimer;
+    private int connectStagger = 0;
+
     /**
      * A well-known Danfoss Grid, used by many Danfoss products, including:
      * - DeviReg Smart(tm) Wi-Fi enabled thermostat
@@ -89,7 +148,7 @@ public class GridConnection extends Connection {
      */
     public GridConnection(byte[] key) {
         tunnel = new MDGBinary(this, key);
-        ownScheduler = true;
+        userTimer = null;
     }
 
     /**
@@ -99,17 +158,18 @@ public class GridConnection extends Connection {
      * also known as a peer ID, used to identify a host on the Grid, is also
      * derived from the given private key
      *
-     * A given {@link ScheduledExecutorService} will be used instead of internally provided one
-     * to schedule ping requests. This constructor is intended for use if a ScheduledExecutorService
-     * is already provided by the environment, e. g. OpenHAB.
+     * A given {@link ScheduledExecutorService} will be used instead of internally provided timer
+     * to schedule ping requests and timeouts of this connection. This constructor is intended for
+     * use if a ScheduledExecutorService is already provided by the environment, e. g. OpenHAB.
+     * Note that the internal timer is cheaper; it's shared by all the connections anyway, because
+     * socket write deadlines always use it.
      *
      * @param key a private key to use
      * @param scheduler a ScheduledExecutorService
      */
     public GridConnection(byte[] key, ScheduledExecutorService scheduler) {
         tunnel = new MDGBinary(this, key);
-        pingScheduler = scheduler;
-        ownScheduler = false;
+        userTimer = new ExecutorTimer(scheduler);
     }
 
     /**
@@ -126,6 +186,45 @@ public class GridConnection extends Connection {
      */
     public void connect(@NonNull Endpoint[] servers)
             throws IOException, InterruptedException, ExecutionException, TimeoutException {
+        CompletableFuture<Void> promise = connectAsync(servers);
+
+        try {
+            promise.get();
+        } catch (InterruptedException e) {
+            close();
+            throw e;
+        } catch (ExecutionException e) {
+            Throwable lastErr = e.getCause();
+
+            // Java sucks; we have to write these checks or to declare throwing an Exception,
+            // which we really don't want to
+            if (lastErr instanceof IOException) {
+                throw (IOException) lastErr;
+            } else if (lastErr instanceof TimeoutException) {
+                throw (TimeoutException) lastErr;
+            } else if (lastErr instanceof RuntimeException) {
+                throw (RuntimeException) lastErr;
+            } else {
+                throw e;
+            }
+        }
+    }
+
+    /**
+     * Asynchronously connects to a Grid and makes this Connection object a control connection.
+     *
+     * Works the same way as {@link #connect(Endpoint[])}, but the caller doesn't wait.
+     * The whole handshake is performed by the {@link EventLoop}.
+     *
+     * @param servers array of endpoint specifiers.
+     * @return a {@link CompletableFuture}, completed when the connection is established
+     *         or all the servers have failed
+     */
+    public CompletableFuture<Void> connectAsync(@NonNull Endpoint[] servers) {
+        if (servers.length == 0) {
+            throw new IllegalArgumentException("Empty server list given");
+        }
+
         Endpoint[] list = servers.clone();
         Endpoint[] randomized = new Endpoint[servers.length];
 
@@ -139,75 +238,312 @@ public class GridConnection extends Connection {
             list[idx] = list[left];
         }
 
-        Exception lastErr = null;
-
         checkState(State.CLOSED);
         setState(State.CONNECTING);
         pingSequence = 0;
         pingDelay = -1;
+        keepalive.reset();
 
-        if (ownScheduler) {
-            pingScheduler = PingExecutorHolder.get();
+        CompletableFuture<Void> promise = new CompletableFuture<Void>();
+        EventLoop l;
+
+        try {
+            l = bindEventLoop();
+        } catch (IOException e) {
+            close();
+            return Utils.failedFuture(e);
         }
 
-        for (int i = 0; i < servers.length; i++) {
-            try {
-                openSocket(randomized[i].host, randomized[i].port);
-                tunnel.establish();
+        synchronized (connectLock) {
+            connectPromise = promise;
+            connectList = randomized;
+            connectIndex = 0;
+            connectError = null;
+        }
 
-                // Tunnel handshake also includes handling some MESG packets,
-                // the handler will set our state to CONNECTED when done
-                while (getState() != State.CONNECTED) {
-                    ReadResult ret = tunnel.receiveRawPacket();
+        l.execute(new Runnable() {
+            @Override
+            public void run() {
+                startNextAttempt();
+            }
+        });
 
-                    if (ret == ReadResult.EOF) {
-                        throw getEOFException();
-                    }
+        return promise;
+    }
+
+    private final CompletionHandler<Void, Attempt> connectHandler = new CompletionHandler<Void, Attempt>() {
+        @Override
+        public void completed(Void result, Attempt a) {
+            if (a.timedOut) {
+                // Too late
+                failed(new AsynchronousCloseException(), a);
+                return;
+            }
 
-                    tunnel.onPacketReceived();
+            ArrayList<Attempt> losers;
+
+            synchronized (connectLock) {
+                if (!attempts.remove(a) || connectPromise == null) {
+                    // Lost the race or aborted
+                    safeClose(a.socket);
+                    return;
                 }
 
-                // Grid is always serviced asynchronously. The job of this connection now
-                // is to ping the grid (otherwise it times out in approximate 90 seconds)
-                // and service forwarding requests from peers.
+                handshakeServer = a.server;
+                losers = new ArrayList<Attempt>(attempts);
+                attempts.clear();
+                stopConnectTimer();
+                connectTimer = scheduleOnLoop(new TimeoutException("Timed out connecting to " + a.server),
+                        ++handshakeGeneration, timeout * 1000L);
+            }
+
+            a.timer.cancel();
+            abortAttempts(losers);
+            logger.debug("Connected to {}", a.server);
+            onHandshakePhase(HandshakePhase.CONNECT, System.nanoTime() - a.startTime);
+
+            adoptSocket(a.socket);
+
+            try {
+                // The rest of the handshake, including the protocol version exchange,
+                // is driven by incoming packets; onDataPacket() completes it
+                tunnel.beginEstablish();
                 asyncReceive();
+            } catch (IOException | InterruptedException | ExecutionException | TimeoutException e) {
+                handshakeFailed(e);
+            }
+        }
 
+        @Override
+        public void failed(Throwable exc, Attempt a) {
+            synchronized (connectLock) {
+                if (!attempts.remove(a) || connectPromise == null) {
+                    return;
+                }
+                connectError = a.timedOut ? new TimeoutException("Timed out connecting to " + a.server) : exc;
+            }
+
+            a.timer.cancel();
+            safeClose(a.socket);
+            logger.debug("Failed to connect to {}: {}", a.server, exc.toString());
+
+            // Don't wait for the stagger delay, try the next server right now
+            startNextAttempt();
+        }
+    };
+
+    private void startNextAttempt() {
+        final Attempt a;
+        boolean exhausted = false;
+
+        synchronized (connectLock) {
+            if (connectPromise == null) {
                 return;
-            } catch (IOException | InterruptedException | ExecutionException | TimeoutException e) {
-                logger.debug("Failed to connect to {}:{}: {}", randomized[i].host, randomized[i].port, e.getMessage());
-                lastErr = e;
-            } catch (Exception e) {
-                // Anything else is critical; it's probably unchecked, so we don't keep
-                // trying, but still maintaining our state
-                close();
-                throw e;
             }
+            if (connectIndex == connectList.length) {
+                // Nothing else to try; fail if nothing is in progress either
+                exhausted = attempts.isEmpty() && handshakeServer == null;
+                a = null;
+            } else {
+                a = new Attempt(connectList[connectIndex++]);
+                attempts.add(a);
+            }
+        }
 
-            // Close the socket channel but keep the rest (group etc)
-            closeOnlySocket();
+        if (exhausted) {
+            connectFailed();
+            return;
+        } else if (a == null) {
+            return;
         }
 
-        // If we're here, we failed to connect to any server.
-        // We must be ready for reuse, free resources
-        close();
+        try {
+            a.socket = createSocket();
+        } catch (IOException e) {
+            // This could only be a local resource problem, it's pointless to try more
+            synchronized (connectLock) {
+                attempts.remove(a);
+                connectError = e;
+                connectIndex = connectList.length;
+            }
+            startNextAttempt();
+            return;
+        }
 
-        // Java sucks; we have to write these checks or to declare throwing an Exception,
-        // which we really don't want to
-        if (lastErr == null) {
-            throw new IllegalArgumentException("Empty server list given");
-        } else if (lastErr instanceof IOException) {
-            throw (IOException) lastErr;
-        } else if (lastErr instanceof InterruptedException) {
-            throw (InterruptedException) lastErr;
-        } else if (lastErr instanceof ExecutionException) {
-            throw (ExecutionException) lastErr;
-        } else if (lastErr instanceof TimeoutException) {
-            throw (TimeoutException) lastErr;
-        } else {
-            throw new IllegalStateException("Unexpected exception: " + lastErr.toString());
+        // Asynchronous connect has no timeout of its own; closing the socket makes it fail
+        a.timer = getTimer().schedule(new Runnable() {
+            @Override
+            public void run() {
+                a.timedOut = true;
+                safeClose(a.socket);
+            }
+        }, timeout, TimeUnit.SECONDS);
+
+        logger.debug("Connecting to {}", a.server);
+        a.socket.connect(new InetSocketAddress(a.server.host, a.server.port), a, connectHandler);
+
+        if (connectStagger > 0) {
+            synchronized (connectLock) {
+                if (handshakeServer == null && connectIndex < connectList.length) {
+                    // If this attempt doesn't succeed quickly, start the next one in parallel
+                    stopConnectTimer();
+                    connectTimer = getTimer().schedule(new Runnable() {
+                        @Override
+                        public void run() {
+                            runOnLoop(new Runnable() {
+                                @Override
+                                public void run() {
+                                    synchronized (connectLock) {
+                                        if (handshakeServer != null) {
+                                            return;
+                                        }
+                                    }
+                                    startNextAttempt();
+                                }
+                            });
+                        }
+                    }, connectStagger, TimeUnit.MILLISECONDS);
+                }
+            }
+        }
+    }
+
+    private void runOnLoop(Runnable r) {
+        EventLoop l = getEventLoop();
+
+        // All the connection state is managed by the event loop; if there's
+        // no loop, the connection has been closed.
+        if (l != null) {
+            try {
+                l.execute(r);
+            } catch (RejectedExecutionException e) {
+                // Shutting down, the connection is being closed anyway
+            }
         }
     }
 
+    private Timer.Timeout scheduleOnLoop(Throwable error, int generation, long delay) {
+        return getTimer().schedule(new Runnable() {
+            @Override
+            public void run() {
+                runOnLoop(new Runnable() {
+                    @Override
+                    public void run() {
+                        synchronized (connectLock) {
+                            if (generation != handshakeGeneration) {
+                                return;
+                            }
+                        }
+                        handshakeFailed(error);
+                    }
+                });
+            }
+        }, delay, TimeUnit.MILLISECONDS);
+    }
+
+    private void abortAttempts(ArrayList<Attempt> list) {
+        for (Attempt a : list) {
+            if (a.timer != null) {
+                a.timer.cancel();
+            }
+            if (a.socket != null) {
+                safeClose(a.socket);
+            }
+        }
+    }
+
+    private void stopConnectTimer() {
+        if (connectTimer != null) {
+            connectTimer.cancel();
+            connectTimer = null;
+        }
+    }
+
+    private boolean isHandshaking() {
+        synchronized (connectLock) {
+            return connectPromise != null && handshakeServer != null;
+        }
+    }
+
+    private void handshakeFailed(Throwable error) {
+        synchronized (connectLock) {
+            if (connectPromise == null || handshakeServer == null) {
+                return;
+            }
+
+            logger.debug("Failed to connect to {}: {}", handshakeServer, error.toString());
+
+            connectError = error;
+            handshakeServer = null;
+            handshakeGeneration++;
+            stopConnectTimer();
+        }
+
+        // Close the socket channel but keep the rest (group etc)
+        closeOnlySocket();
+        startNextAttempt();
+    }
+
+    private void connectFailed() {
+        CompletableFuture<Void> promise;
+        Throwable lastErr;
+
+        synchronized (connectLock) {
+            promise = connectPromise;
+            lastErr = connectError;
+            connectPromise = null;
+        }
+
+        if (promise != null) {
+            // If we're here, we failed to connect to any server.
+            // We must be ready for reuse, free resources
+            close();
+            promise.completeExceptionally(lastErr);
+        }
+    }
+
+    private void connectDone() {
+        CompletableFuture<Void> promise;
+
+        synchronized (connectLock) {
+            promise = connectPromise;
+            connectPromise = null;
+            handshakeServer = null;
+            handshakeGeneration++;
+            stopConnectTimer();
+        }
+
+        if (promise != null) {
+            promise.complete(null);
+        }
+    }
+
+    /**
+     * Gets delay between parallel connection attempts
+     *
+     * @return delay in milliseconds or 0 if servers are tried one by one
+     */
+    public int getConnectStagger() {
+        return connectStagger;
+    }
+
+    /**
+     * Sets delay between parallel connection attempts
+     *
+     * By default servers are tried one by one, and a server, which doesn't respond,
+     * costs the whole timeout. With a non-zero delay connection attempts are
+     * staggered ("Happy eyeballs", RFC 8305): if a server doesn't accept the connection
+     * within the delay, the next one is tried in parallel, and so on. The handshake
+     * is performed with whichever server accepts first, the rest of attempts are
+     * cancelled. A failed attempt starts the next one immediately. 250 milliseconds
+     * is a reasonable value.
+     *
+     * @param milliseconds delay in milliseconds, 0 to disable parallel attempts
+     */
+    public void setConnectStagger(int milliseconds) {
+        connectStagger = milliseconds;
+    }
+
     @Override
     protected void onReadyPacket() throws IOException, InterruptedException, ExecutionException, TimeoutException {
         // At this point the grid seems to be ready and subsequent steps are
@@ -220,17 +556,18 @@ public class GridConnection extends Connection {
         protocolVer.setMajor(Control.PROTOCOL_VERSION_MAJOR);
         protocolVer.setMinor(Control.PROTOCOL_VERSION_MINOR);
 
+        protocolStart = System.nanoTime();
         sendMESG(Control.MSG_PROTOCOL_VERSION, protocolVer.build());
     }
 
     @Override
-    protected void onDataPacket(InputStream data)
+    protected void onDataPacket(ByteBuffer data)
             throws IOException, InterruptedException, ExecutionException, TimeoutException {
-        int msgType = data.read();
+        int msgType = data.hasRemaining() ? data.get() & 0xFF : -1;
 
         switch (msgType) {
             case Control.MSG_PROTOCOL_VERSION:
-                ProtocolVersion protocolVer = ProtocolVersion.parseFrom(data);
+                ProtocolVersion protocolVer = ProtocolVersion.parseFrom(CodedInputStream.newInstance(data));
                 int magic = protocolVer.getMagic();
                 int major = protocolVer.getMajor();
                 int minor = protocolVer.getMinor();
@@ -244,42 +581,41 @@ public class GridConnection extends Connection {
                 }
 
                 logger.debug("Using protocol version {}.{}", major, minor);
+                onHandshakePhase(HandshakePhase.PROTOCOL, System.nanoTime() - protocolStart);
 
                 // Send the first PING immediately, again, this is the same thing
                 // as original mdglib does
                 ping();
                 setState(Connection.State.CONNECTED);
+                // Grid is always serviced asynchronously. The job of this connection now
+                // is to ping the grid (otherwise it times out in approximate 90 seconds)
+                // and service forwarding requests from peers.
+                connectDone();
                 break;
 
             case Control.MSG_PONG:
-                Pong pong = Pong.parseFrom(data);
+                Pong pong = Pong.parseFrom(CodedInputStream.newInstance(data));
 
                 // Ignore some old stray PINGs
                 if (pong.getSeq() == pingSequence - 1) {
-                    pingDelay = (int) (Calendar.getInstance().getTimeInMillis() - lastPing);
-                    logger.debug("PING roundtrip {} ms", pingDelay);
-                    scheduledPing = pingScheduler.schedule(pingTask, pingInterval, TimeUnit.SECONDS);
+                    long rtt = System.nanoTime() - lastPing;
+
+                    pingDelay = (int) TimeUnit.NANOSECONDS.toMillis(rtt);
+                    rttHistogram.record(rtt);
+                    keepalive.onRoundTrip(rtt);
+                    logger.debug("PING roundtrip {} ms, next in {} s", pingDelay,
+                            TimeUnit.NANOSECONDS.toSeconds(keepalive.getInterval()));
+                    Metrics.getRecorder().pingRoundTrip(this, rtt);
+                    schedulePing();
                 }
 
                 break;
 
             case Control.MSG_REMOTE_REPLY:
             case Control.MSG_PAIR_REMOTE_REPLY:
-                PeerReply reply = PeerReply.parseFrom(data);
+                PeerReply reply = PeerReply.parseFrom(CodedInputStream.newInstance(data));
                 int requestId = reply.getId();
-                ForwardRequest request = null;
-
-                synchronized (forwardQueue) {
-                    for (int i = 0; i < forwardQueue.size(); i++) {
-                        ForwardRequest r = forwardQueue.get(i);
-
-                        if (r.getId() == requestId) {
-                            forwardQueue.remove(i);
-                            request = r;
-                            break;
-                        }
-                    }
-                }
+                ForwardRequest request = forwardQueue.remove(requestId);
 
                 if (request != null) {
                     request.reportDone(reply);
@@ -307,20 +643,64 @@ public class GridConnection extends Connection {
             ping.setDelay(pingDelay);
         }
 
-        lastPing = Calendar.getInstance().getTimeInMillis();
+        lastPing = System.nanoTime();
 
         sendMESG(Control.MSG_PING, ping.build());
     }
 
+    private void onPingDue() {
+        scheduledPing = null;
+
+        // Other requests could have been sent meanwhile, then postpone
+        if (nextPingDelay() > PING_SLACK) {
+            schedulePing();
+            return;
+        }
+
+        try {
+            ping();
+        } catch (IOException | InterruptedException | ExecutionException | TimeoutException e) {
+            handleError(e);
+        }
+    }
+
+    private long nextPingDelay() {
+        return lastSent + keepalive.getInterval() - System.nanoTime();
+    }
+
+    private void schedulePing() {
+        Timer timer = getTimer();
+
+        // We could have been closed meanwhile
+        if (timer != null) {
+            scheduledPing = timer.schedule(pingTask, Math.max(nextPingDelay(), 0), TimeUnit.NANOSECONDS);
+        }
+    }
+
     private void sendMESG(byte cmd, AbstractMessage msg)
             throws IOException, InterruptedException, ExecutionException, TimeoutException {
-        ByteArrayOutputStream out = new ByteArrayOutputStream(1 + msg.getSerializedSize());
+        lastSent = System.nanoTime();
+        tunnel.sendData(encodeMESG(cmd, msg));
+    }
+
+    private CompletableFuture<Void> sendMESGAsync(byte cmd, AbstractMessage msg) {
+        lastSent = System.nanoTime();
+        return tunnel.sendDataAsync(ByteBuffer.wrap(encodeMESG(cmd, msg)));
+    }
+
+    static byte[] encodeMESG(byte cmd, AbstractMessage msg) {
+        byte[] data = new byte[1 + msg.getSerializedSize()];
 
         // The protobuf contents is prefixed by a packet ID
-        out.write(cmd);
-        msg.writeTo(out);
+        data[0] = cmd;
+        try {
+            msg.writeTo(CodedOutputStream.newInstance(data, 1, data.length - 1));
+        } catch (IOException e) {
+            // Writing to an array of the exact size can't fail
+            throw new IllegalStateException("Failed to serialize " + msg.getClass().getSimpleName(), e);
+        }
 
-        tunnel.sendData(out.toByteArray());
+        return data;
     }
 
     ForwardRequest connectToPeer(String peerId, String protocol) {
@@ -349,50 +729,90 @@ public class GridConnection extends Connection {
     ForwardRequest createFwdReq() {
         ForwardRequest request;
 
-        synchronized (forwardQueue) {
-            int n = forwardQueue.size();
-            int requestId;
+        do {
+            request = new ForwardRequest(nextRequestId.getAndIncrement());
+        } while (forwardQueue.putIfAbsent(request.getId(), request) != null);
 
-            if (n > 0) {
-                requestId = forwardQueue.get(n - 1).getId() + 1;
-            } else {
-                requestId = 0;
-            }
-            request = new ForwardRequest(requestId);
-            forwardQueue.add(request);
+        final ForwardRequest req = request;
+        final long startTime = System.nanoTime();
+        Timer timer = getTimer();
+        Timer.Timeout expiry = null;
+
+        if (timer != null) {
+            // The Grid may never reply, e. g. if the request got lost during reconnect
+            expiry = timer.schedule(() -> expireFwdReq(req), timeout, TimeUnit.SECONDS);
         }
 
+        final Timer.Timeout expiryTimer = expiry;
+
+        // However the request completes (reply, error, expiry or cancel), it's not pending any more
+        request.whenComplete((reply, error) -> {
+            forwardQueue.remove(req.getId(), req);
+            if (expiryTimer != null) {
+                expiryTimer.cancel();
+            }
+            Metrics.getRecorder().forwardRequestDone(this, System.nanoTime() - startTime, error);
+        });
+
         logger.debug("Created {}", request);
         return request;
     }
 
+    // Called by the timer; the request's callbacks may not run on the timer thread
+    private void expireFwdReq(ForwardRequest req) {
+        Runnable expire = () -> req.reportError(new TimeoutException(req + " timed out"));
+
+        if (hasCallbackExecutor()) {
+            runCallback(expire);
+            return;
+        }
+
+        EventLoop l = getEventLoop();
+
+        if (l != null) {
+            try {
+                l.execute(expire);
+                return;
+            } catch (RejectedExecutionException e) {
+                // Shutting down, but the request still needs to complete
+            }
+        }
+        expire.run();
+    }
+
     void sendFwdReq(ForwardRequest request, byte cmd, AbstractMessage msg) {
-        try {
-            sendMESG(cmd, msg);
-        } catch (IOException | InterruptedException | ExecutionException | TimeoutException e) {
-            synchronized (forwardQueue) {
-                forwardQueue.remove(request);
+        if (getState() != State.CONNECTED) {
+            request.reportError(new ClosedChannelException());
+            return;
+        }
+
+        // Don't wait for the write, the reply will come anyway
+        sendMESGAsync(cmd, msg).whenComplete((result, error) -> {
+            if (error != null) {
+                request.reportError(error);
             }
-            request.reportError(e);
+        });
+    }
+
+    private void failAllFwdReqs(Throwable error) {
+        for (ForwardRequest req : forwardQueue.values()) {
+            req.reportError(error);
         }
     }
 
     @Override
     protected void handleError(Throwable t) {
+        if (!(t instanceof AsynchronousCloseException) && isHandshaking()) {
+            // The handshake has failed, try the next server
+            handshakeFailed(t);
+            return;
+        }
+
         // Stop pinging
         stopPing();
 
         // Report all pending ForwardRequests as failed
-        ArrayList<ForwardRequest> queue;
-
-        synchronized (forwardQueue) {
-            queue = new ArrayList<ForwardRequest>(forwardQueue);
-            forwardQueue.clear();
-        }
-
-        for (ForwardRequest req : queue) {
-            req.reportError(t);
-        }
+        failAllFwdReqs(t);
 
         super.handleError(t);
     }
@@ -401,24 +821,51 @@ public class GridConnection extends Connection {
     protected void handleClose() {
         // We need also to stop PINGs on close
         stopPing();
+        // Nobody is going to reply to pending requests any more
+        failAllFwdReqs(new ClosedChannelException());
+
+        // Abort connecting, if in progress
+        CompletableFuture<Void> promise;
+        ArrayList<Attempt> pending;
+
+        synchronized (connectLock) {
+            promise = connectPromise;
+            connectPromise = null;
+            pending = new ArrayList<Attempt>(attempts);
+            attempts.clear();
+            handshakeServer = null;
+            handshakeGeneration++;
+            stopConnectTimer();
+        }
 
-        if (ownScheduler) {
-            pingScheduler = null;
-            PingExecutorHolder.put();
+        abortAttempts(pending);
+        if (promise != null) {
+            promise.completeExceptionally(new AsynchronousCloseException());
         }
     }
 
+    @Override
+    protected void handleHandshakeWriteError(AsynchronousSocketChannel ch, Throwable exc) {
+        // Our handshake is asynchronous
+        handleError(exc);
+    }
+
+    @Override
+    Timer getTimer() {
+        return userTimer != null ? userTimer : super.getTimer();
+    }
+
     private void stopPing() {
-        ScheduledFuture<?> pendingPing = scheduledPing;
+        Timer.Timeout pendingPing = scheduledPing;
         scheduledPing = null;
 
         if (pendingPing != null) {
-            pendingPing.cancel(true);
+            pendingPing.cancel();
         }
     }
 
     /**
-     * Gets current ping interval in seconds
+     * Gets configured ping interval in seconds
      *
      * @return number of seconds
      */
@@ -430,10 +877,70 @@ public class GridConnection extends Connection {
      * Sets ping interval in seconds. The new interval will be applied
      * after the next pending ping is sent. Default interval is 30 seconds.
      *
+     * With adaptive pinging the interval is only a starting point, see {@link #setAdaptivePing(boolean)}
+     *
      * @param seconds new ping interval is seconds
      */
     public void setPingInterval(int seconds) {
         pingInterval = seconds;
+        runOnLoopOrNow(() -> keepalive.setBaseInterval(seconds));
+    }
+
+    /**
+     * Checks whether adaptive pinging is enabled
+     *
+     * @return true if enabled
+     */
+    public boolean isAdaptivePing() {
+        return keepalive.isAdaptive();
+    }
+
+    /**
+     * Enables or disables adaptive pinging
+     *
+     * Pings are needed in order to keep the connection alive; the Grid drops clients,
+     * silent for approximately 90 seconds. By default pinging adapts to conditions:
+     * while roundtrip time is stable, the interval is gradually stretched up to 60 seconds,
+     * and falls back to {@link #getPingInterval()} when roundtrip time starts jumping.
+     * Disabling this makes pings strictly periodic.
+     *
+     * In both modes a ping is skipped if other requests have been sent recently.
+     *
+     * @param enable true to enable
+     */
+    public void setAdaptivePing(boolean enable) {
+        runOnLoopOrNow(() -> keepalive.setAdaptive(enable));
+    }
+
+    /**
+     * Gets current ping interval, possibly adapted
+     *
+     * @return number of seconds
+     */
+    public int getCurrentPingInterval() {
+        return (int) TimeUnit.NANOSECONDS.toSeconds(keepalive.getInterval());
+    }
+
+    /**
+     * Gets statistics of ping roundtrip times
+     *
+     * The histogram is kept across reconnects
+     *
+     * @return a {@link LatencyHistogram}
+     */
+    public LatencyHistogram getPingStatistics() {
+        return rttHistogram;
+    }
+
+    // Keepalive state belongs to the EventLoop, if there's one
+    private void runOnLoopOrNow(Runnable r) {
+        EventLoop l = getEventLoop();
+
+        if (l != null) {
+            l.execute(r);
+        } else {
+            r.run();
+        }
     }
 
     @Override
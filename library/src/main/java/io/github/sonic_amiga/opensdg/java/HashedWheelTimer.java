@@ -0,0 +1,330 @@
+package io.github.sonic_amiga.opensdg.java;
+
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicIntegerFieldUpdater;
+import java.util.concurrent.locks.LockSupport;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * A hashed timing wheel
+ *
+ * Time is divided into ticks, and the wheel is an array of buckets, one per tick.
+ * A task goes into the bucket of its deadline tick, modulo the wheel size; if the
+ * deadline is more than one revolution away, the task also remembers how many full
+ * revolutions to wait. A single thread advances through the buckets and runs whatever
+ * is due there.
+ *
+ * The thread doesn't wake up on every tick, but sleeps until the next non-empty bucket,
+ * and while the wheel is empty, it sleeps until something is scheduled. So a few pings,
+ * due every 30 seconds, don't cost 100 wakeups per second on an idle machine.
+ *
+ * Both scheduling and cancelling are O(1) and lock-free for the caller: new and
+ * cancelled tasks are passed to the timer thread via queues, the wheel itself is
+ * only touched by that thread. This suits our workload, where every connection
+ * keeps re-arming its timeouts all the time and most of them never fire. The price
+ * is precision; a task may run up to one tick late.
+ *
+ * Tasks are run by the timer thread, so they must be short and must not block.
+ *
+ * @author Pavel Fedin
+ */
+class HashedWheelTimer implements Timer {
+    private static final Logger logger = LoggerFactory.getLogger(HashedWheelTimer.class);
+
+    // Don't spend a whole tick moving new timeouts into the wheel if someone is flooding us
+    private static final int MAX_TRANSFER = 100000;
+    // While sleeping, wake up early if that many timeouts got scheduled or cancelled,
+    // otherwise the queues would grow for as long as we sleep
+    private static final int MAX_QUEUED = 4096;
+
+    private static final int ST_INIT = 0;
+    private static final int ST_CANCELLED = 1;
+    private static final int ST_EXPIRED = 2;
+
+    private static final AtomicIntegerFieldUpdater<WheelTimeout> STATE = AtomicIntegerFieldUpdater
+            .newUpdater(WheelTimeout.class, "state");
+
+    private static class WheelTimeout implements Timeout {
+        final HashedWheelTimer timer;
+        final Runnable task;
+        // Nanoseconds since start of the timer
+        final long deadline;
+        volatile int state = ST_INIT;
+
+        // The following are only used by the timer thread
+        long remainingRounds;
+        Bucket bucket;
+        WheelTimeout next;
+        WheelTimeout prev;
+
+        WheelTimeout(HashedWheelTimer timer, Runnable task, long deadline) {
+            this.timer = timer;
+            this.task = task;
+            this.deadline = deadline;
+        }
+
+        @Override
+        public boolean cancel() {
+            if (!STATE.compareAndSet(this, ST_INIT, ST_CANCELLED)) {
+                return false;
+            }
+            // The timer thread will unlink us from the bucket
+            timer.cancelled.offer(this);
+            timer.onQueued();
+            return true;
+        }
+
+        void expire() {
+            if (!STATE.compareAndSet(this, ST_INIT, ST_EXPIRED)) {
+                return;
+            }
+
+            try {
+                task.run();
+            } catch (Throwable t) {
+                logger.warn("Timer task {} has thrown an exception", task, t);
+            }
+        }
+    }
+
+    // A doubly linked list of timeouts, for O(1) removal
+    private static class Bucket {
+        WheelTimeout head;
+        WheelTimeout tail;
+
+        void add(WheelTimeout t) {
+            t.bucket = this;
+            if (head == null) {
+                head = tail = t;
+            } else {
+                tail.next = t;
+                t.prev = tail;
+                tail = t;
+            }
+        }
+
+        WheelTimeout remove(WheelTimeout t) {
+            WheelTimeout next = t.next;
+
+            if (t.prev != null) {
+                t.prev.next = next;
+            }
+            if (next != null) {
+                next.prev = t.prev;
+            }
+            if (t == head) {
+                head = next;
+            }
+            if (t == tail) {
+                tail = t.prev;
+            }
+
+            t.prev = null;
+            t.next = null;
+            t.bucket = null;
+            return next;
+        }
+
+        void expire(long deadline) {
+            WheelTimeout t = head;
+
+            while (t != null) {
+                if (t.remainingRounds <= 0) {
+                    WheelTimeout next = remove(t);
+
+                    if (t.deadline <= deadline) {
+                        t.expire();
+                    } else {
+                        // Can't happen, timeouts are always put into the right bucket
+                        throw new IllegalStateException(
+                                "Timeout deadline " + t.deadline + " is later than current tick " + deadline);
+                    }
+                    t = next;
+                } else if (t.state == ST_CANCELLED) {
+                    t = remove(t);
+                } else {
+                    t.remainingRounds--;
+                    t = t.next;
+                }
+            }
+        }
+    }
+
+    private final long tickDuration;
+    private final Bucket[] wheel;
+    private final int mask;
+    private final long startTime;
+    private final ConcurrentLinkedQueue<WheelTimeout> pending = new ConcurrentLinkedQueue<WheelTimeout>();
+    private final ConcurrentLinkedQueue<WheelTimeout> cancelled = new ConcurrentLinkedQueue<WheelTimeout>();
+    private final Thread worker;
+    private final AtomicInteger queued = new AtomicInteger();
+    private volatile boolean stopped;
+    // When the timer thread is going to wake up, relative to the start
+    private volatile long wakeupTime;
+    // Only used by the timer thread
+    private long tick;
+
+    /**
+     * Creates and starts a {@link HashedWheelTimer}
+     *
+     * @param name name of the timer thread
+     * @param duration duration of a tick
+     * @param unit time unit of the duration
+     * @param wheelSize number of ticks per revolution, rounded up to a power of 2
+     */
+    HashedWheelTimer(String name, long duration, TimeUnit unit, int wheelSize) {
+        if (duration <= 0) {
+            throw new IllegalArgumentException("Tick duration must be positive");
+        }
+        if (wheelSize <= 0 || wheelSize > (1 << 30)) {
+            throw new IllegalArgumentException("Invalid wheel size " + wheelSize);
+        }
+
+        int size = Integer.highestOneBit(wheelSize);
+
+        if (size < wheelSize) {
+            size <<= 1;
+        }
+
+        tickDuration = unit.toNanos(duration);
+        wheel = new Bucket[size];
+        mask = size - 1;
+        for (int i = 0; i < size; i++) {
+            wheel[i] = new Bucket();
+        }
+
+        startTime = System.nanoTime();
+        worker = new NamedThreadFactory(name).newThread(this::run);
+        // Nothing scheduled here is worth keeping the application alive
+        worker.setDaemon(true);
+        worker.start();
+    }
+
+    @Override
+    public Timeout schedule(Runnable task, long delay, TimeUnit unit) {
+        WheelTimeout t = new WheelTimeout(this, task, System.nanoTime() - startTime + unit.toNanos(delay));
+
+        // If we're stopped, the task will never run, just like a task, scheduled
+        // too late on a shut down executor
+        pending.offer(t);
+        if (dueTime(t.deadline / tickDuration) < wakeupTime) {
+            LockSupport.unpark(worker);
+        }
+        onQueued();
+        return t;
+    }
+
+    private void onQueued() {
+        if (queued.incrementAndGet() == MAX_QUEUED) {
+            LockSupport.unpark(worker);
+        }
+    }
+
+    // When the given tick is over and its bucket can be expired
+    private long dueTime(long tick) {
+        return tickDuration * (tick + 1);
+    }
+
+    /**
+     * Stop the timer
+     *
+     * Pending tasks are dropped
+     */
+    void stop() {
+        stopped = true;
+        LockSupport.unpark(worker);
+    }
+
+    private void run() {
+        while (!stopped) {
+            long now = System.nanoTime() - startTime;
+
+            queued.set(0);
+            processCancelled();
+            // Catch up with the clock; buckets, passed while sleeping, are usually empty
+            while (dueTime(tick) <= now) {
+                wheel[(int) (tick & mask)].expire(now);
+                tick++;
+            }
+            // Only now, when the current tick is right, rounds to wait can be counted
+            transferPending();
+
+            sleep();
+        }
+
+        pending.clear();
+        cancelled.clear();
+    }
+
+    /**
+     * Sleep until the next non-empty bucket is due, or until something is scheduled
+     */
+    private void sleep() {
+        long busy = nextBusyTick();
+
+        wakeupTime = busy < 0 ? Long.MAX_VALUE : dueTime(busy);
+        // Scheduled after transferPending(), but before wakeupTime was set, so nobody
+        // has woken us up. unpark() before park() is remembered, so there's no race
+        // after this check.
+        if (!pending.isEmpty()) {
+            return;
+        }
+
+        if (busy < 0) {
+            LockSupport.park(this);
+        } else {
+            long delay = wakeupTime - (System.nanoTime() - startTime);
+
+            if (delay > 0) {
+                LockSupport.parkNanos(this, delay);
+            }
+        }
+    }
+
+    /**
+     * @return the first tick, starting from the current one, whose bucket isn't empty;
+     *         -1 if the whole wheel is empty
+     */
+    private long nextBusyTick() {
+        for (int i = 0; i < wheel.length; i++) {
+            if (wheel[(int) ((tick + i) & mask)].head != null) {
+                return tick + i;
+            }
+        }
+        return -1;
+    }
+
+    private void processCancelled() {
+        WheelTimeout t;
+
+        while ((t = cancelled.poll()) != null) {
+            // A timeout may get cancelled before it has even made it into the wheel
+            if (t.bucket != null) {
+                t.bucket.remove(t);
+            }
+        }
+    }
+
+    private void transferPending() {
+        for (int i = 0; i < MAX_TRANSFER; i++) {
+            WheelTimeout t = pending.poll();
+
+            if (t == null) {
+                break;
+            }
+            if (t.state == ST_CANCELLED) {
+                continue;
+            }
+
+            long expiryTick = t.deadline / tickDuration;
+
+            t.remainingRounds = (expiryTick - tick) / wheel.length;
+            // If we're late, run it on the current tick
+            wheel[(int) (Math.max(expiryTick, tick) & mask)].add(t);
+        }
+    }
+}
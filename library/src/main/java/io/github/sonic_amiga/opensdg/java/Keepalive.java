@@ -0,0 +1,114 @@
+package io.github.sonic_amiga.opensdg.java;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Ping interval policy of a {@link GridConnection}
+ *
+ * The Grid drops a client, which has been silent for approximately 90 seconds. The
+ * configured interval is a safe default; while the link looks stable, the interval
+ * is stretched, step by step, up to {@link #MAX_INTERVAL}, which still leaves room
+ * for a lost packet or a slow roundtrip. When roundtrip times start jumping, the
+ * link is probably congested or about to break, and the interval drops back to the
+ * configured one.
+ *
+ * Roundtrip jitter is estimated the same way as TCP does it (RFC 6298): smoothed
+ * roundtrip time and its mean deviation. Jitter below {@link #MIN_JITTER} is ignored;
+ * on a fast link a few milliseconds are just scheduling noise.
+ *
+ * This class isn't thread-safe, it's only used by the {@link EventLoop}.
+ *
+ * @author Pavel Fedin
+ */
+class Keepalive {
+    static final long MAX_INTERVAL = TimeUnit.SECONDS.toNanos(60);
+    static final long STEP = TimeUnit.SECONDS.toNanos(5);
+    static final long MIN_JITTER = TimeUnit.MILLISECONDS.toNanos(50);
+
+    private long baseInterval;
+    private boolean adaptive = true;
+    // Also read by other threads for information
+    private volatile long interval;
+    // Smoothed roundtrip time and its variation, -1 if nothing measured yet
+    private long srtt = -1;
+    private long rttvar;
+
+    Keepalive(int seconds) {
+        setBaseInterval(seconds);
+    }
+
+    void setBaseInterval(int seconds) {
+        baseInterval = TimeUnit.SECONDS.toNanos(seconds);
+        interval = baseInterval;
+    }
+
+    void setAdaptive(boolean enable) {
+        adaptive = enable;
+        interval = baseInterval;
+    }
+
+    boolean isAdaptive() {
+        return adaptive;
+    }
+
+    /**
+     * Start over, e. g. on a new connection
+     */
+    void reset() {
+        interval = baseInterval;
+        srtt = -1;
+        rttvar = 0;
+    }
+
+    /**
+     * @return current ping interval in nanoseconds
+     */
+    long getInterval() {
+        return interval;
+    }
+
+    /**
+     * Account a new roundtrip measurement and adjust the interval
+     *
+     * @param rtt roundtrip time in nanoseconds
+     */
+    void onRoundTrip(long rtt) {
+        if (srtt < 0) {
+            // The first measurement, nothing to compare with
+            srtt = rtt;
+            rttvar = rtt / 2;
+            return;
+        }
+
+        long err = Math.abs(rtt - srtt);
+        // A sample far away from what we expect
+        boolean spike = err > Math.max(4 * rttvar, MIN_JITTER);
+
+        rttvar = (3 * rttvar + err) / 4;
+        srtt = (7 * srtt + rtt) / 8;
+
+        if (!adaptive) {
+            return;
+        }
+
+        if (spike || rttvar > Math.max(srtt / 2, MIN_JITTER)) {
+            interval = baseInterval;
+        } else if (interval < MAX_INTERVAL) {
+            interval = Math.min(interval + STEP, MAX_INTERVAL);
+        }
+    }
+
+    /**
+     * @return smoothed roundtrip time in nanoseconds or -1 if not measured yet
+     */
+    long getSmoothedRoundTrip() {
+        return srtt;
+    }
+
+    /**
+     * @return roundtrip time variation in nanoseconds
+     */
+    long getRoundTripVariation() {
+        return rttvar;
+    }
+}
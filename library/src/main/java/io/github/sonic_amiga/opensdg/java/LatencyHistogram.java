@@ -0,0 +1,144 @@
+package io.github.sonic_amiga.opensdg.java;
+
+import java.util.Arrays;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * A histogram of latency measurements
+ *
+ * Values are counted in buckets with logarithmic boundaries: every power of two is
+ * split into four equal parts. So a percentile is reported with no more
+ * than 25% error, and the whole range of a long fits into a few hundred counters.
+ * Recording doesn't allocate memory.
+ *
+ * @author Pavel Fedin
+ */
+public class LatencyHistogram {
+    private static final int SUB_BITS = 2;
+    private static final int SUB_BUCKETS = 1 << SUB_BITS;
+    private static final int NUM_BUCKETS = (64 - SUB_BITS + 1) * SUB_BUCKETS;
+
+    private final long[] counts = new long[NUM_BUCKETS];
+    private long total;
+    private long min = Long.MAX_VALUE;
+    private long max;
+    private long sum;
+
+    private static int bucketOf(long value) {
+        if (value < SUB_BUCKETS) {
+            return (int) value;
+        }
+
+        // Position of the highest bit, and SUB_BITS bits right after it
+        int exp = 63 - Long.numberOfLeadingZeros(value) - SUB_BITS;
+        int sub = (int) (value >>> exp) & (SUB_BUCKETS - 1);
+
+        return (exp + 1) * SUB_BUCKETS + sub;
+    }
+
+    // The largest value, falling into the bucket
+    private static long upperBound(int bucket) {
+        if (bucket < SUB_BUCKETS) {
+            return bucket;
+        }
+
+        int exp = bucket / SUB_BUCKETS - 1;
+        long base = (long) (SUB_BUCKETS + bucket % SUB_BUCKETS) << exp;
+
+        return base + (1L << exp) - 1;
+    }
+
+    /**
+     * Record a measurement
+     *
+     * @param nanos latency in nanoseconds
+     */
+    synchronized void record(long nanos) {
+        long value = Math.max(nanos, 0);
+
+        counts[bucketOf(value)]++;
+        total++;
+        sum += value;
+        min = Math.min(min, value);
+        max = Math.max(max, value);
+    }
+
+    /**
+     * @return number of measurements
+     */
+    public synchronized long getCount() {
+        return total;
+    }
+
+    /**
+     * @return the smallest measurement in nanoseconds or 0 if there were none
+     */
+    public synchronized long getMin() {
+        return total == 0 ? 0 : min;
+    }
+
+    /**
+     * @return the largest measurement in nanoseconds
+     */
+    public synchronized long getMax() {
+        return max;
+    }
+
+    /**
+     * @return average latency in nanoseconds or 0 if there were no measurements
+     */
+    public synchronized long getMean() {
+        return total == 0 ? 0 : sum / total;
+    }
+
+    /**
+     * Get a percentile
+     *
+     * E. g. getPercentile(99) is a value, which 99% of measurements don't exceed.
+     * The result is rounded up to a bucket boundary, but never exceeds the largest
+     * actual measurement.
+     *
+     * @param percent percentage from 0 to 100
+     * @return latency in nanoseconds or 0 if there were no measurements
+     */
+    public synchronized long getPercentile(double percent) {
+        if (percent < 0 || percent > 100) {
+            throw new IllegalArgumentException("Invalid percentile " + percent);
+        }
+        if (total == 0) {
+            return 0;
+        }
+
+        long rank = Math.max((long) Math.ceil(total * percent / 100), 1);
+        long seen = 0;
+
+        for (int i = 0; i < NUM_BUCKETS; i++) {
+            seen += counts[i];
+            if (seen >= rank) {
+                return Math.max(Math.min(upperBound(i), max), min);
+            }
+        }
+        return max;
+    }
+
+    /**
+     * Forget all the measurements
+     */
+    public synchronized void reset() {
+        Arrays.fill(counts, 0);
+        total = 0;
+        sum = 0;
+        min = Long.MAX_VALUE;
+        max = 0;
+    }
+
+    @Override
+    public synchronized String toString() {
+        return String.format("n=%d p50=%.1f ms p99=%.1f ms max=%.1f ms", total, toMillis(getPercentile(50)),
+                toMillis(getPercentile(99)), toMillis(max));
+    }
+
+    private static double toMillis(long nanos) {
+        return nanos / (double) TimeUnit.MILLISECONDS.toNanos(1);
+    }
+}
@@ -0,0 +1,104 @@
+package io.github.sonic_amiga.opensdg.java;
+
+import java.net.ProtocolException;
+import java.nio.Buffer;
+import java.nio.ByteBuffer;
+
+import org.eclipse.jdt.annotation.Nullable;
+
+/**
+ * Reassembles messages, which are too large for a single data packet
+ *
+ * A message is sent as its length (32 bits, big endian), followed by the body, cut
+ * into as many data packets as needed. Every message starts in a new packet, so packet
+ * boundaries on the wire never get out of sync with message boundaries. All the
+ * fragments, except the last one, are of maximum possible size, but the receiving side
+ * doesn't rely on it.
+ *
+ * This is not a part of the original protocol, so both sides have to agree on using it.
+ *
+ * This class isn't thread-safe, data packets of a connection are handled one at a time.
+ *
+ * @author Pavel Fedin
+ */
+class MessageAssembler {
+    static final int HEADER_SIZE = 4;
+
+    private final ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+    private int maxSize;
+    // A message being reassembled, null if waiting for a new one
+    private @Nullable ByteBuffer message;
+
+    MessageAssembler(int maxSize) {
+        this.maxSize = maxSize;
+    }
+
+    void setMaxSize(int size) {
+        maxSize = size;
+    }
+
+    int getMaxSize() {
+        return maxSize;
+    }
+
+    /**
+     * Forget a partially received message, e. g. on a new connection
+     */
+    void reset() {
+        ((Buffer) header).clear();
+        message = null;
+    }
+
+    /**
+     * Account a data packet
+     *
+     * The data is copied, so the packet buffer may be reused after return.
+     *
+     * @param data packet payload
+     * @return the message, if this packet has completed it, otherwise null
+     * @throws ProtocolException if the data doesn't look like a valid message
+     */
+    @Nullable
+    ByteBuffer add(ByteBuffer data) throws ProtocolException {
+        ByteBuffer msg = message;
+
+        if (msg == null) {
+            copy(data, header);
+            if (header.hasRemaining()) {
+                // The header is split, this is weird, but let's be tolerant
+                return null;
+            }
+
+            int size = header.getInt(0);
+
+            ((Buffer) header).clear();
+            if (size < 0 || size > maxSize) {
+                throw new ProtocolException("Invalid message size " + (size & 0xFFFFFFFFL) + ", max " + maxSize);
+            }
+
+            msg = ByteBuffer.allocate(size);
+            message = msg;
+        }
+
+        copy(data, msg);
+        if (data.hasRemaining()) {
+            throw new ProtocolException("Garbage after the end of a message: " + data.remaining() + " bytes");
+        }
+        if (msg.hasRemaining()) {
+            return null;
+        }
+
+        message = null;
+        ((Buffer) msg).flip();
+        return msg;
+    }
+
+    private static void copy(ByteBuffer from, ByteBuffer to) {
+        int len = Math.min(from.remaining(), to.remaining());
+        ByteBuffer chunk = from.duplicate();
+
+        ((Buffer) chunk).limit(chunk.position() + len);
+        to.put(chunk);
+        ((Buffer) from).position(from.position() + len);
+    }
+}
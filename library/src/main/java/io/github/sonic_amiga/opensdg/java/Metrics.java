@@ -0,0 +1,201 @@
+package io.github.sonic_amiga.opensdg.java;
+
+import java.util.concurrent.atomic.LongAdder;
+
+import org.eclipse.jdt.annotation.Nullable;
+
+import io.github.sonic_amiga.opensdg.java.Connection.State;
+
+/**
+ * Library-wide performance counters
+ *
+ * This is the default {@link MetricsRecorder}, it sums up everything, reported by all the
+ * connections. Counters are never reset; take a difference between two readings in order
+ * to get a rate. Gathering the data costs a few atomic additions per packet, no memory
+ * is allocated.
+ *
+ * The class also holds the {@link MetricsRecorder}, currently in use by the library.
+ *
+ * @author Pavel Fedin
+ */
+public class Metrics implements MetricsRecorder {
+    private static final int NUM_PHASES = HandshakePhase.values().length;
+    private static final int NUM_STATES = State.values().length;
+
+    // Must go after the constants above, which the constructor uses
+    private static final Metrics global = new Metrics();
+    private static volatile MetricsRecorder recorder = global;
+
+    private final ConnectionMetrics traffic = new ConnectionMetrics();
+    private final LongAdder[] phaseCount = newAdders(NUM_PHASES);
+    private final LongAdder[] phaseNanos = newAdders(NUM_PHASES);
+    private final LongAdder fwdCount = new LongAdder();
+    private final LongAdder fwdNanos = new LongAdder();
+    private final LongAdder fwdFailures = new LongAdder();
+    private final LongAdder pingCount = new LongAdder();
+    private final LongAdder pingNanos = new LongAdder();
+    private final LongAdder[] connections = newAdders(NUM_STATES);
+
+    private static LongAdder[] newAdders(int n) {
+        LongAdder[] adders = new LongAdder[n];
+
+        for (int i = 0; i < n; i++) {
+            adders[i] = new LongAdder();
+        }
+        return adders;
+    }
+
+    /**
+     * Get the default instance, used by the library unless replaced
+     *
+     * @return global {@link Metrics}
+     */
+    public static Metrics getGlobal() {
+        return global;
+    }
+
+    /**
+     * Get the {@link MetricsRecorder}, currently in use
+     *
+     * @return current {@link MetricsRecorder}
+     */
+    public static MetricsRecorder getRecorder() {
+        return recorder;
+    }
+
+    /**
+     * Install a custom {@link MetricsRecorder}
+     *
+     * Since the recorder is global, it's recommended to do this once, before creating any
+     * connections. Otherwise the new recorder won't know states of already existing ones.
+     *
+     * @param r the recorder to use or null to restore the default
+     */
+    public static void setRecorder(@Nullable MetricsRecorder r) {
+        recorder = r == null ? global : r;
+    }
+
+    @Override
+    public void frameReceived(Connection conn, int size) {
+        traffic.frameReceived(size);
+    }
+
+    @Override
+    public void frameSent(Connection conn, int size) {
+        traffic.frameSent(size);
+    }
+
+    @Override
+    public void encrypted(Connection conn, long nanos) {
+        traffic.encrypted(nanos);
+    }
+
+    @Override
+    public void decrypted(Connection conn, long nanos) {
+        traffic.decrypted(nanos);
+    }
+
+    @Override
+    public void handshakePhase(Connection conn, HandshakePhase phase, long nanos) {
+        phaseCount[phase.ordinal()].increment();
+        phaseNanos[phase.ordinal()].add(nanos);
+    }
+
+    @Override
+    public void forwardRequestDone(GridConnection grid, long nanos, @Nullable Throwable error) {
+        fwdCount.increment();
+        fwdNanos.add(nanos);
+        if (error != null) {
+            fwdFailures.increment();
+        }
+    }
+
+    @Override
+    public void pingRoundTrip(GridConnection grid, long nanos) {
+        pingCount.increment();
+        pingNanos.add(nanos);
+    }
+
+    @Override
+    public void stateChanged(Connection conn, State oldState, State newState) {
+        // Closed connections are just garbage, don't count them
+        if (oldState != State.CLOSED) {
+            connections[oldState.ordinal()].decrement();
+        }
+        if (newState != State.CLOSED) {
+            connections[newState.ordinal()].increment();
+        }
+    }
+
+    /**
+     * Get traffic counters, summed up over all connections
+     *
+     * @return {@link ConnectionMetrics}
+     */
+    public ConnectionMetrics getTraffic() {
+        return traffic;
+    }
+
+    /**
+     * @param phase handshake step
+     * @return how many times the step has completed
+     */
+    public long getHandshakePhaseCount(HandshakePhase phase) {
+        return phaseCount[phase.ordinal()].sum();
+    }
+
+    /**
+     * @param phase handshake step
+     * @return total time, spent on the step, in nanoseconds
+     */
+    public long getHandshakePhaseNanos(HandshakePhase phase) {
+        return phaseNanos[phase.ordinal()].sum();
+    }
+
+    /**
+     * @return number of completed forwarding requests, including failed ones
+     */
+    public long getForwardRequests() {
+        return fwdCount.sum();
+    }
+
+    /**
+     * @return total latency of completed forwarding requests, in nanoseconds
+     */
+    public long getForwardRequestNanos() {
+        return fwdNanos.sum();
+    }
+
+    /**
+     * @return number of failed forwarding requests
+     */
+    public long getForwardRequestFailures() {
+        return fwdFailures.sum();
+    }
+
+    /**
+     * @return number of completed pings
+     */
+    public long getPingCount() {
+        return pingCount.sum();
+    }
+
+    /**
+     * @return total roundtrip time of completed pings, in nanoseconds
+     */
+    public long getPingNanos() {
+        return pingNanos.sum();
+    }
+
+    /**
+     * Get number of live connections in the given state
+     *
+     * Closed connections aren't tracked, for {@link State#CLOSED} the result is always 0.
+     *
+     * @param state the state
+     * @return number of connections
+     */
+    public long getConnections(State state) {
+        return connections[state.ordinal()].sum();
+    }
+}
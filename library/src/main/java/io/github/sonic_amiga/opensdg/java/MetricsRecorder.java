@@ -0,0 +1,116 @@
+package io.github.sonic_amiga.opensdg.java;
+
+import org.eclipse.jdt.annotation.Nullable;
+
+import io.github.sonic_amiga.opensdg.java.Connection.State;
+
+/**
+ * An interface for collecting performance metrics of the library
+ *
+ * Install your own implementation using {@link Metrics#setRecorder(MetricsRecorder)} in order to
+ * export the data to a monitoring system of your choice. Methods are called directly from the
+ * I/O path, often from {@link EventLoop} threads, so implementations must be thread-safe, fast
+ * and must never block. All methods do nothing by default, so it's enough to override only
+ * interesting ones.
+ *
+ * The default recorder is {@link Metrics#getGlobal()}, which simply counts everything. Extend
+ * {@link Metrics} and call super in order to keep those counters working.
+ *
+ * @author Pavel Fedin
+ */
+public interface MetricsRecorder {
+    /**
+     * Steps of connection establishment, reported by {@link #handshakePhase}
+     */
+    enum HandshakePhase {
+        /** TCP connection to the server */
+        CONNECT,
+        /** TELL sent, WELC received */
+        WELCOME,
+        /** WELC received, COOK received; includes making a short-term keypair and HELO packet */
+        COOKIE,
+        /** COOK received, REDY received */
+        READY,
+        /** Forwarding request on a peer socket, until the reply */
+        FORWARD,
+        /** Protocol version exchange with the Grid */
+        PROTOCOL
+    }
+
+    /**
+     * A complete frame has been received
+     *
+     * @param conn the connection
+     * @param size frame size in bytes, including the header
+     */
+    default void frameReceived(Connection conn, int size) {
+    }
+
+    /**
+     * A frame has been queued for sending
+     *
+     * @param conn the connection
+     * @param size frame size in bytes, including the header
+     */
+    default void frameSent(Connection conn, int size) {
+    }
+
+    /**
+     * An outgoing MESG packet has been encrypted
+     *
+     * @param conn the connection
+     * @param nanos time taken, in nanoseconds
+     */
+    default void encrypted(Connection conn, long nanos) {
+    }
+
+    /**
+     * An incoming MESG packet has been decrypted
+     *
+     * @param conn the connection
+     * @param nanos time taken, in nanoseconds
+     */
+    default void decrypted(Connection conn, long nanos) {
+    }
+
+    /**
+     * A step of connection establishment has completed
+     *
+     * @param conn the connection
+     * @param phase the step
+     * @param nanos time taken, in nanoseconds
+     */
+    default void handshakePhase(Connection conn, HandshakePhase phase, long nanos) {
+    }
+
+    /**
+     * A {@link ForwardRequest} has completed
+     *
+     * @param grid the {@link GridConnection}, which has handled the request
+     * @param nanos time since the request has been created, in nanoseconds
+     * @param error null on success, otherwise the reason of failure
+     */
+    default void forwardRequestDone(GridConnection grid, long nanos, @Nullable Throwable error) {
+    }
+
+    /**
+     * A ping roundtrip to the Grid has completed
+     *
+     * @param grid the {@link GridConnection}
+     * @param nanos roundtrip time, in nanoseconds
+     */
+    default void pingRoundTrip(GridConnection grid, long nanos) {
+    }
+
+    /**
+     * A {@link Connection} has changed its state
+     *
+     * A newly created {@link Connection} is {@link State#CLOSED} without a notification.
+     *
+     * @param conn the connection
+     * @param oldState previous state
+     * @param newState new state
+     */
+    default void stateChanged(Connection conn, State oldState, State newState) {
+    }
+}
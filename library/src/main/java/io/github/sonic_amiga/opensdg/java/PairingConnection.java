@@ -15,7 +15,6 @@ import java.util.concurrent.TimeoutException;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
-import com.neilalexander.jnacl.crypto.curve25519;
 import com.neilalexander.jnacl.crypto.xsalsa20;
 
 import io.github.sonic_amiga.opensdg.internal.Utils;
@@ -77,13 +76,6 @@ public class PairingConnection extends PeerConnection {
         // TODO: Implement async pairing.
     }
 
-    private static byte[] crypto_scalarmult(byte[] n, byte[] p) {
-        byte[] q = new byte[SCALARMULT_BYTES];
-
-        curve25519.crypto_scalarmult(q, n, p);
-        return q;
-    }
-
     // This is probably not good, but this is the only easy way to replace
     // random data for unit test.
     protected byte[] getSalt() {
@@ -127,11 +119,11 @@ public class PairingConnection extends PeerConnection {
 
                 // The following is a pure mathemagic i have completely zero understanding of. :(
                 byte[] base = Utils.crypto_scalarmult_base(tunnel.getBeforeNm());
-                byte[] p1 = crypto_scalarmult(xor, base);
+                byte[] p1 = Utils.crypto_scalarmult(xor, base);
                 byte[] salt = getSalt();
-                byte[] responseX = crypto_scalarmult(salt, p1);
+                byte[] responseX = Utils.crypto_scalarmult(salt, p1);
 
-                byte[] p2 = crypto_scalarmult(salt, challenge.getX());
+                byte[] p2 = Utils.crypto_scalarmult(salt, challenge.getX());
                 // This is used in both hashing rounds below, avoid copying twice
                 System.arraycopy(p2, 0, innerHash, SHA512_LENGTH, SCALARMULT_BYTES);
 
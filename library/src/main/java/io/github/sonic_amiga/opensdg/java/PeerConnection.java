@@ -2,11 +2,15 @@ package io.github.sonic_amiga.opensdg.java;
 
 import java.io.IOException;
 import java.io.InputStream;
+import java.nio.Buffer;
+import java.nio.ByteBuffer;
 import java.nio.channels.ClosedChannelException;
 import java.rmi.RemoteException;
+import java.util.concurrent.CompletableFuture;
 import java.util.concurrent.ExecutionException;
 import java.util.concurrent.TimeUnit;
 import java.util.concurrent.TimeoutException;
+import java.util.concurrent.locks.ReentrantLock;
 
 import org.eclipse.jdt.annotation.Nullable;
 import org.slf4j.Logger;
@@ -14,6 +18,8 @@ import org.slf4j.LoggerFactory;
 
 import com.google.protobuf.ByteString;
 
+import io.github.sonic_amiga.opensdg.internal.ByteBufferInputStream;
+import io.github.sonic_amiga.opensdg.internal.Utils;
 import io.github.sonic_amiga.opensdg.internal.Utils.Hexdump;
 import io.github.sonic_amiga.opensdg.protocol.Forward;
 import io.github.sonic_amiga.opensdg.protocol.generated.ControlProtocol.PeerInfo;
@@ -25,9 +31,19 @@ import io.github.sonic_amiga.opensdg.protocol.generated.ControlProtocol.PeerRepl
  * @author Pavel Fedin
  */
 public class PeerConnection extends Connection {
+    /**
+     * Default limit of a received message size, just a safety net against a broken peer
+     */
+    public static final int DEFAULT_MAX_MESSAGE_SIZE = 16 * 1024 * 1024;
+
     private final Logger logger = LoggerFactory.getLogger(PeerConnection.class);
 
     private int discardFirstBytes = 0;
+    private byte[] remotePeerId;
+    private boolean messageMode = false;
+    private final MessageAssembler assembler = new MessageAssembler(DEFAULT_MAX_MESSAGE_SIZE);
+    // Fragments of different messages must not interleave
+    private final ReentrantLock messageLock = new ReentrantLock();
 
     /**
      * Connects to a remote peer
@@ -43,6 +59,7 @@ public class PeerConnection extends Connection {
     public void connectToRemote(GridConnection grid, byte[] peerId, String protocol)
             throws IOException, InterruptedException, ExecutionException, TimeoutException {
         init(grid);
+        remotePeerId = peerId;
 
         /*
          * DEVISmart thermostat has a quirk: very first packet is prefixed with
@@ -67,10 +84,14 @@ public class PeerConnection extends Connection {
         // First ask our grid to make tunnel for us
         String peerStr = SDG.bin2hex(peerId);
 
+        ForwardRequest request = grid.connectToPeer(peerStr, protocol);
+
         try {
-            PeerReply reply = grid.connectToPeer(peerStr, protocol).get(timeout, TimeUnit.SECONDS);
+            PeerReply reply = request.get(timeout, TimeUnit.SECONDS);
             startForwarding(reply);
         } catch (Exception e) {
+            // Don't leave the request hanging if we were e. g. interrupted
+            request.cancel(false);
             // We must be ready for reuse, free resources
             close();
             throw e;
@@ -80,6 +101,7 @@ public class PeerConnection extends Connection {
     protected void init(GridConnection grid) {
         checkState(State.CLOSED);
         setState(State.CONNECTING);
+        assembler.reset();
         // Copy client keys from the grid connection.
         tunnel = grid.tunnel.makePeerTunnel(this);
     }
@@ -101,43 +123,92 @@ public class PeerConnection extends Connection {
         // Connect to the endpoint
         openSocket(host.getHost(), host.getPort());
         // Forward ourselves to the peer
-        new Forward(tunnelId, this).establish();
-        // Establish the encrypted connection
+        Forward forward = new Forward(tunnelId, this);
+        forward.establish();
+        // Establish the encrypted connection. Whatever forwarding has read ahead
+        // already belongs to it.
+        tunnel.takeOverBuffer(forward);
         tunnel.establish();
     }
 
+    @Override
+    protected byte @Nullable [] getLoopKey() {
+        // Our own peer ID is shared with the grid and all other peer connections,
+        // so spread these by remote's ID
+        return remotePeerId != null ? remotePeerId : super.getLoopKey();
+    }
+
     @Override
     public void onReadyPacket() throws IOException, InterruptedException, ExecutionException {
         setState(State.CONNECTED);
     }
 
     @Override
-    public void onDataPacket(InputStream data) throws IOException, InterruptedException, ExecutionException {
-        // Pass the data over to the client
-        onDataReceived(handleProtocolBugs(data));
+    public void onDataPacket(ByteBuffer data) throws IOException, InterruptedException, ExecutionException {
+        ByteBuffer payload = handleProtocolBugs(data);
+
+        if (messageMode) {
+            ByteBuffer message = assembler.add(payload);
+
+            if (message != null) {
+                // The message is ours, no need to copy
+                runCallback(() -> onMessageReceived(message));
+            }
+        } else if (hasCallbackExecutor()) {
+            // The receive buffer will be reused long before the callback runs
+            ByteBuffer copy = ByteBuffer.allocate(payload.remaining());
+
+            copy.put(payload);
+            ((Buffer) copy).flip();
+            runCallback(() -> onDataReceived(copy.asReadOnlyBuffer()));
+        } else {
+            // Pass the data over to the client
+            onDataReceived(payload);
+        }
     }
 
     /**
-     * A wrapper around {@link MESGPacket.getPayload} for handling discardFirstBytes
-     *
-     * @throws IOException
+     * A wrapper around {@link MESGPacket.getPayloadBuffer} for handling discardFirstBytes
      *
+     * The buffer is a view, so discarding costs nothing, we just move its start
      */
-    private InputStream handleProtocolBugs(InputStream data) throws IOException {
-        // Discard how much we need to and remember the position for user's
-        // sake of convenience, so that calling reset() brings to the beginning
-        // of usable data
-        data.skip(discardFirstBytes);
-        data.mark(0);
-
-        // Data is discarded only once
-        discardFirstBytes = 0;
+    private ByteBuffer handleProtocolBugs(ByteBuffer data) {
+        if (discardFirstBytes > 0) {
+            ((Buffer) data).position(Math.min(discardFirstBytes, data.limit()));
+            data = data.slice();
+            // Data is discarded only once
+            discardFirstBytes = 0;
+        }
         return data;
     }
 
     /**
      * Called when a data packet has been read asynchronously
      *
+     * The buffer is a read-only view of the receive buffer, nothing is copied.
+     * So it's only valid until this method returns; the implementation must
+     * copy whatever it wants to keep. The buffer's position and limit may be
+     * freely changed.
+     *
+     * With a callback executor, see {@link #setCallbackExecutor(java.util.concurrent.Executor, int)},
+     * this method runs on the executor and gets a private copy of the data.
+     *
+     * The default implementation calls {@link #onDataReceived(InputStream)},
+     * so overriding this method is optional.
+     *
+     * @param data Data to be processed
+     */
+    protected void onDataReceived(ByteBuffer data) {
+        onDataReceived(new ByteBufferInputStream(data));
+    }
+
+    /**
+     * Called when a data packet has been read asynchronously
+     *
+     * This is a compatibility wrapper around {@link #onDataReceived(ByteBuffer)}.
+     * The data refers to the receive buffer directly, so it's only valid
+     * until this method returns.
+     *
      * @param data Data to be processed
      */
     protected void onDataReceived(InputStream data) {
@@ -146,6 +217,67 @@ public class PeerConnection extends Connection {
         logger.error("Unhandled async data receive");
     }
 
+    /**
+     * Called when a complete message has been received asynchronously
+     *
+     * Only used in message mode, see {@link #setMessageMode(boolean)}. The buffer
+     * is allocated specially for this message, so the implementation may keep it.
+     *
+     * @param message the message
+     */
+    protected void onMessageReceived(ByteBuffer message) {
+        logger.error("Unhandled async message receive");
+    }
+
+    /**
+     * Enable or disable message mode
+     *
+     * A single data packet is limited to {@link #getMaxDataSize()} bytes. In message mode
+     * messages of any size can be sent using {@link #sendMessage(ByteBuffer)} or
+     * {@link #sendMessageAsync(ByteBuffer)}. They are cut into packets of maximum size,
+     * and the receiving side reassembles them, so received data is reported by
+     * {@link #onMessageReceived(ByteBuffer)} and {@link #receiveMessage()} instead of
+     * {@link #onDataReceived(ByteBuffer)} and {@link #receiveData()}.
+     *
+     * This is this library's own extension, so the remote side has to use it too.
+     * Don't mix messages with plain data packets. The mode has to be set before
+     * the connection starts receiving data.
+     *
+     * @param enable true to enable message mode
+     */
+    public void setMessageMode(boolean enable) {
+        messageMode = enable;
+    }
+
+    public boolean isMessageMode() {
+        return messageMode;
+    }
+
+    /**
+     * Set maximum size of a message to receive
+     *
+     * Larger messages are treated as a protocol error. The default is
+     * {@link #DEFAULT_MAX_MESSAGE_SIZE}.
+     *
+     * @param size size in bytes
+     */
+    public void setMaxMessageSize(int size) {
+        assembler.setMaxSize(size);
+    }
+
+    public int getMaxMessageSize() {
+        return assembler.getMaxSize();
+    }
+
+    /**
+     * Get maximum size of data, which can be sent in a single packet
+     *
+     * @return size in bytes
+     */
+    public int getMaxDataSize() {
+        return tunnel.getMaxDataSize();
+    }
+
     /**
      * Start asynchronous data receiving
      *
@@ -161,6 +293,9 @@ public class PeerConnection extends Connection {
     /**
      * Receive a single data packet synchronously
      *
+     * The returned stream refers to the receive buffer directly, so it must be
+     * consumed before the next call to this method.
+     *
      * @return data received or null on EOF
      * @throws IOException if packet decoding fails
      * @throws ExecutionException if the response write operation threw an exception
@@ -169,6 +304,25 @@ public class PeerConnection extends Connection {
      */
     public @Nullable InputStream receiveData()
             throws IOException, InterruptedException, ExecutionException, TimeoutException {
+        ByteBuffer data = receiveDataBuffer();
+
+        return data == null ? null : new ByteBufferInputStream(data);
+    }
+
+    /**
+     * Receive a single data packet synchronously
+     *
+     * The returned buffer is a read-only view of the receive buffer, so it must be
+     * consumed before the next call to this method.
+     *
+     * @return data received or null on EOF
+     * @throws IOException if packet decoding fails
+     * @throws ExecutionException if the response write operation threw an exception
+     * @throws InterruptedException if the current thread was interrupted
+     * @throws TimeoutException if the operation has timed out
+     */
+    public @Nullable ByteBuffer receiveDataBuffer()
+            throws IOException, InterruptedException, ExecutionException, TimeoutException {
         ReadResult ret = tunnel.receiveRawPacket();
 
         if (ret == ReadResult.EOF) {
@@ -178,12 +332,44 @@ public class PeerConnection extends Connection {
         return handleProtocolBugs(tunnel.getData());
     }
 
+    /**
+     * Receive a message synchronously
+     *
+     * Only used in message mode, see {@link #setMessageMode(boolean)}. The buffer
+     * is allocated specially for this message, so the caller may keep it.
+     *
+     * @return message received or null on EOF
+     * @throws IOException if packet decoding fails
+     * @throws ExecutionException if the response write operation threw an exception
+     * @throws InterruptedException if the current thread was interrupted
+     * @throws TimeoutException if the operation has timed out
+     */
+    public @Nullable ByteBuffer receiveMessage()
+            throws IOException, InterruptedException, ExecutionException, TimeoutException {
+        while (true) {
+            ByteBuffer data = receiveDataBuffer();
+
+            if (data == null) {
+                return null;
+            }
+
+            ByteBuffer message = assembler.add(data);
+
+            if (message != null) {
+                return message;
+            }
+        }
+    }
+
     /**
      * Send a single data packet synchronously
      *
+     * The packet is encrypted on the calling thread and queued; the call doesn't wait
+     * for the write to complete. A write error is reported via {@link #onError(Throwable)}.
+     *
      * @param data data to send
      * @throws IOException if packet encoding fails
-     * @throws ExecutionException if the response write operation threw an exception
+     * @throws ExecutionException if a previous write has failed
      * @throws InterruptedException if the current thread was interrupted
      * @throws TimeoutException if the operation has timed out
      */
@@ -191,6 +377,184 @@ public class PeerConnection extends Connection {
         if (getState() != State.CONNECTED) {
             throw new ClosedChannelException();
         }
+        applyOverflowPolicy();
+        tunnel.sendData(data);
+    }
+
+    /**
+     * Send a single data packet synchronously
+     *
+     * All the remaining bytes of the buffer are sent, its position is advanced to the limit.
+     * The data is copied directly into the outgoing packet, so the buffer can be reused
+     * by the caller immediately after return. The call doesn't wait for the write
+     * to complete, see {@link #sendData(byte[])}.
+     *
+     * @param data data to send
+     * @throws IOException if packet encoding fails
+     * @throws ExecutionException if a previous write has failed
+     * @throws InterruptedException if the current thread was interrupted
+     * @throws TimeoutException if the operation has timed out
+     */
+    public void sendData(ByteBuffer data)
+            throws IOException, InterruptedException, ExecutionException, TimeoutException {
+        if (getState() != State.CONNECTED) {
+            throw new ClosedChannelException();
+        }
+        applyOverflowPolicy();
         tunnel.sendData(data);
     }
+
+    /**
+     * Send a single data packet asynchronously
+     *
+     * The data is encrypted and queued immediately, the caller never waits for
+     * the network, unless {@link Connection.OverflowPolicy#BLOCK} is used and the
+     * connection isn't writable. Packets are sent in the order of calls, even if
+     * encrypted in parallel, see {@link #setEncryptionExecutor(java.util.concurrent.Executor)}.
+     *
+     * @param data data to send
+     * @return a {@link CompletableFuture}, completed when the packet has been written to the socket
+     */
+    public CompletableFuture<Void> sendDataAsync(byte[] data) {
+        return sendDataAsync(ByteBuffer.wrap(data));
+    }
+
+    /**
+     * Send a single data packet asynchronously
+     *
+     * All the remaining bytes of the buffer are sent, its position is advanced to the limit
+     * before return. The data is copied directly into the outgoing packet, so the buffer can
+     * be reused by the caller immediately.
+     *
+     * @param data data to send
+     * @return a {@link CompletableFuture}, completed when the packet has been written to the socket
+     */
+    public CompletableFuture<Void> sendDataAsync(ByteBuffer data) {
+        if (getState() != State.CONNECTED) {
+            return Utils.failedFuture(new ClosedChannelException());
+        }
+        try {
+            applyOverflowPolicy();
+        } catch (WriteBufferFullException | InterruptedException | TimeoutException e) {
+            return Utils.failedFuture(e);
+        }
+        return tunnel.sendDataAsync(data);
+    }
+
+    /**
+     * Send a message synchronously
+     *
+     * Waits until the whole message has been written to the socket. See
+     * {@link #sendMessageAsync(ByteBuffer)} for details.
+     *
+     * Unlike {@link #sendMessageAsync(ByteBuffer)}, with {@link Connection.OverflowPolicy#BLOCK}
+     * every packet of the message waits for the connection to become writable, so a large
+     * message doesn't overflow the high watermark. Other policies are still applied once,
+     * before the first packet: failing or dropping a packet in the middle would spoil the
+     * message. If the connection stays full for the whole timeout in the middle of a message,
+     * the remote side can't make sense of what follows, so the connection is closed.
+     *
+     * @param message message to send
+     * @throws IOException if packet encoding fails
+     * @throws ExecutionException if the write operation threw an exception
+     * @throws InterruptedException if the current thread was interrupted
+     * @throws TimeoutException if the operation has timed out
+     */
+    public void sendMessage(ByteBuffer message)
+            throws IOException, InterruptedException, ExecutionException, TimeoutException {
+        if (getState() != State.CONNECTED) {
+            throw new ClosedChannelException();
+        }
+        applyOverflowPolicy();
+        // Every packet write has its own timeout, the whole message may legitimately take longer
+        writeMessage(message, getOverflowPolicy() == OverflowPolicy.BLOCK).get();
+    }
+
+    /**
+     * Send a message asynchronously
+     *
+     * Only for message mode, see {@link #setMessageMode(boolean)}. The message is cut into
+     * packets of maximum size, which are all encrypted and queued immediately; the caller
+     * never waits for the network. All the remaining bytes of the buffer are sent, its
+     * position is advanced to the limit before return. The data is copied into outgoing
+     * packets, so the buffer can be reused by the caller immediately.
+     *
+     * {@link Connection.OverflowPolicy} is applied only once, before the whole message is
+     * queued, so the message itself ignores the watermarks: a single large message may take
+     * the queue far above the high one. Use {@link #sendMessage(ByteBuffer)} if that's
+     * a problem.
+     *
+     * Messages, sent concurrently from different threads, don't get mixed up.
+     *
+     * @param message message to send
+     * @return a {@link CompletableFuture}, completed when the whole message has been written
+     *         to the socket
+     */
+    public CompletableFuture<Void> sendMessageAsync(ByteBuffer message) {
+        if (getState() != State.CONNECTED) {
+            return Utils.failedFuture(new ClosedChannelException());
+        }
+        try {
+            applyOverflowPolicy();
+            return writeMessage(message, false);
+        } catch (WriteBufferFullException | InterruptedException | TimeoutException e) {
+            return Utils.failedFuture(e);
+        }
+    }
+
+    // Cut the message into packets and queue them. With pace set every packet but the
+    // first one waits for the connection to become writable.
+    private CompletableFuture<Void> writeMessage(ByteBuffer message, boolean pace)
+            throws InterruptedException, TimeoutException {
+        int size = message.remaining();
+        int maxData = tunnel.getMaxDataSize();
+        ByteBuffer body = message.duplicate();
+        // The first packet starts with the header, it's the only one we have to assemble
+        ByteBuffer first = ByteBuffer.allocate(Math.min(maxData, MessageAssembler.HEADER_SIZE + size));
+
+        first.putInt(size);
+        first.put(nextFragment(body, first.remaining()));
+        ((Buffer) first).flip();
+
+        CompletableFuture<?>[] writes = new CompletableFuture<?>[1 + (body.remaining() + maxData - 1) / maxData];
+
+        // Other senders wait for a paced message to complete, fragments must not interleave
+        messageLock.lock();
+        try {
+            writes[0] = tunnel.sendDataAsync(first);
+            for (int i = 1; i < writes.length; i++) {
+                if (pace) {
+                    awaitWritable();
+                }
+                writes[i] = tunnel.sendDataAsync(nextFragment(body, maxData));
+            }
+        } finally {
+            messageLock.unlock();
+        }
+
+        ((Buffer) message).position(message.limit());
+        return CompletableFuture.allOf(writes);
+    }
+
+    // A part of the message has already gone, there's no way back
+    private void awaitWritable() throws InterruptedException, TimeoutException {
+        try {
+            applyOverflowPolicy();
+        } catch (WriteBufferFullException e) {
+            // Only BLOCK gets here, it never throws this
+        } catch (InterruptedException | TimeoutException e) {
+            handleError(e);
+            throw e;
+        }
+    }
+
+    // Slice up to maxSize bytes off the beginning of the data
+    private static ByteBuffer nextFragment(ByteBuffer data, int maxSize) {
+        ByteBuffer fragment = data.duplicate();
+        int len = Math.min(maxSize, data.remaining());
+
+        ((Buffer) fragment).limit(fragment.position() + len);
+        ((Buffer) data).position(data.position() + len);
+        return fragment;
+    }
 }
@@ -1,10 +1,13 @@
 package io.github.sonic_amiga.opensdg.java;
 
+import java.util.concurrent.ExecutorService;
+
 import org.eclipse.jdt.annotation.NonNull;
 
 import com.neilalexander.jnacl.NaCl;
 import com.neilalexander.jnacl.crypto.curve25519xsalsa20poly1305;
 
+import io.github.sonic_amiga.opensdg.internal.Threads;
 import io.github.sonic_amiga.opensdg.internal.Utils;
 
 public class SDG {
@@ -40,4 +43,20 @@ public class SDG {
     public static @NonNull String bin2hex(byte @NonNull [] bin) {
         return NaCl.asHex(bin);
     }
+
+    /**
+     * Creates an executor, running every task in its own new thread
+     *
+     * Blocking API of the library is the simplest way to talk to a device: one thread per
+     * device, sending requests and waiting for replies. On Java 21 and later the threads are
+     * virtual, so there can be thousands of them; the library never blocks a virtual thread
+     * while holding a monitor, so carrier threads aren't pinned. On older Java idle platform
+     * threads are reused.
+     *
+     * @param name thread name prefix
+     * @return an {@link ExecutorService}, which should be shut down by the caller
+     */
+    public static @NonNull ExecutorService newThreadPerTaskExecutor(@NonNull String name) {
+        return Threads.newThreadPerTaskExecutor(name);
+    }
 }
@@ -0,0 +1,99 @@
+package io.github.sonic_amiga.opensdg.java;
+
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Runs tasks one at a time, in order of submission, on a shared {@link Executor}
+ *
+ * Every connection gets its own {@link SerialExecutor}, so that its callbacks don't
+ * overlap and keep the order of packets, while callbacks of different connections run
+ * in parallel on the same pool. At most one task of the queue is submitted to the pool
+ * at any time; it runs a few queued tasks and resubmits itself if there are more, so that
+ * one busy connection can't hog a pool thread forever.
+ *
+ * @author Pavel Fedin
+ */
+class SerialExecutor implements Executor {
+    private static final Logger logger = LoggerFactory.getLogger(SerialExecutor.class);
+
+    // Tasks to run in one go before giving the pool thread to others
+    private static final int BATCH = 16;
+
+    private final Executor pool;
+    private final Runnable onTaskDone;
+    private final ConcurrentLinkedQueue<Runnable> tasks = new ConcurrentLinkedQueue<Runnable>();
+    private final AtomicInteger size = new AtomicInteger();
+    private final AtomicBoolean scheduled = new AtomicBoolean();
+    private final Runnable runner = this::run;
+
+    /**
+     * Creates a {@link SerialExecutor}
+     *
+     * @param pool an {@link Executor} to actually run tasks
+     * @param onTaskDone called after every task, e. g. to resume reading
+     */
+    SerialExecutor(Executor pool, Runnable onTaskDone) {
+        this.pool = pool;
+        this.onTaskDone = onTaskDone;
+    }
+
+    @Override
+    public void execute(Runnable task) {
+        size.incrementAndGet();
+        tasks.offer(task);
+        schedule();
+    }
+
+    /**
+     * @return number of tasks, waiting or running
+     */
+    int size() {
+        return size.get();
+    }
+
+    private void schedule() {
+        if (!scheduled.compareAndSet(false, true)) {
+            return;
+        }
+
+        try {
+            pool.execute(runner);
+        } catch (RejectedExecutionException e) {
+            // The pool is shutting down. Losing packets silently would be worse
+            // than running them here.
+            logger.warn("Callback executor rejected a task, running in place");
+            run();
+        }
+    }
+
+    private void run() {
+        for (int i = 0; i < BATCH; i++) {
+            Runnable task = tasks.poll();
+
+            if (task == null) {
+                break;
+            }
+
+            try {
+                task.run();
+            } catch (Throwable t) {
+                logger.warn("Callback {} has thrown an exception", task, t);
+            }
+            size.decrementAndGet();
+            onTaskDone.run();
+        }
+
+        scheduled.set(false);
+        // More tasks could have arrived while we were holding the flag
+        if (!tasks.isEmpty()) {
+            schedule();
+        }
+    }
+}
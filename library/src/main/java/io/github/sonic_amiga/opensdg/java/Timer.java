@@ -0,0 +1,36 @@
+package io.github.sonic_amiga.opensdg.java;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * A service, running one-shot tasks after a delay
+ *
+ * Tasks are run by the timer's own thread, so they must be short and must not block.
+ * Anything bigger should be dispatched to an {@link EventLoop}.
+ *
+ * @author Pavel Fedin
+ */
+interface Timer {
+    /**
+     * A handle of a scheduled task
+     */
+    interface Timeout {
+        /**
+         * Cancel the task
+         *
+         * @return true if the task has been cancelled, false if it has already run
+         *         or is running right now
+         */
+        boolean cancel();
+    }
+
+    /**
+     * Schedule a task
+     *
+     * @param task the task to run
+     * @param delay delay before running the task
+     * @param unit time unit of the delay
+     * @return a {@link Timeout}, which can be used to cancel the task
+     */
+    Timeout schedule(Runnable task, long delay, TimeUnit unit);
+}
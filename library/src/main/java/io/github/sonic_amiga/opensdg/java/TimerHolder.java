@@ -0,0 +1,37 @@
+package io.github.sonic_amiga.opensdg.java;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * A helper class to share a single {@link HashedWheelTimer} between multiple instances of {@link Connection}
+ *
+ * Maintains usage count creates / destroys the timer on demand.
+ *
+ * @author Pavel Fedin
+ */
+class TimerHolder {
+    // Connection stagger is specified in milliseconds and RFC 8305 recommends 250 ms,
+    // so the resolution has to be fine enough for that. Everything else is in seconds.
+    private static final long TICK_MILLISECONDS = 10;
+    // 10 seconds per revolution, the default timeout fits without wrapping around
+    private static final int WHEEL_SIZE = 1024;
+
+    private static HashedWheelTimer timer = null;
+    private static int useCount = 0;
+
+    synchronized public static Timer get() {
+        if (useCount == 0) {
+            timer = new HashedWheelTimer("SDG timer thread", TICK_MILLISECONDS, TimeUnit.MILLISECONDS, WHEEL_SIZE);
+        }
+        useCount++;
+
+        return timer;
+    }
+
+    synchronized static void put() {
+        if (--useCount == 0) {
+            timer.stop();
+            timer = null;
+        }
+    }
+}
@@ -0,0 +1,19 @@
+package io.github.sonic_amiga.opensdg.java;
+
+import java.io.IOException;
+
+/**
+ * Data can't be sent, because too much is already waiting in the outbound queue
+ *
+ * Thrown by {@link Connection.OverflowPolicy#FAIL}; also used to fail packets,
+ * dropped by {@link Connection.OverflowPolicy#DROP_OLDEST}.
+ *
+ * @author Pavel Fedin
+ */
+public class WriteBufferFullException extends IOException {
+    private static final long serialVersionUID = 1L;
+
+    public WriteBufferFullException(String message) {
+        super(message);
+    }
+}
@@ -0,0 +1,401 @@
+package io.github.sonic_amiga.opensdg.java;
+
+import java.nio.Buffer;
+import java.nio.ByteBuffer;
+import java.nio.channels.AsynchronousSocketChannel;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.CompletionHandler;
+import java.nio.channels.InterruptedByTimeoutException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * An outbound packet queue for a single socket
+ *
+ * Any number of threads can put packets into the queue without locking. Only one
+ * write is in flight at any time; whoever finds the queue idle starts it, and
+ * its completion handler, running on the {@link EventLoop}, takes care of everything
+ * queued meanwhile. All the waiting packets are sent using a single gathering write,
+ * so packets, sent concurrently, coalesce into one syscall. A sender never waits
+ * for the actual I/O.
+ *
+ * A write, which takes longer than the timeout, kills the socket. The deadline is kept
+ * by {@link Timer} rather than passed to the socket, because the JDK would put every
+ * write into its own delay queue, shared by all the sockets.
+ *
+ * The queue counts bytes, waiting to be written. When the count goes above the
+ * connection's high watermark, the queue becomes not writable, and stays so until
+ * the count drops to the low watermark. The queue only reports this; what to do about
+ * it is up to the {@link Connection}.
+ *
+ * @author Pavel Fedin
+ */
+class WriteQueue implements CompletionHandler<Long, WriteQueue.Batch> {
+    private static final Logger logger = LoggerFactory.getLogger(WriteQueue.class);
+
+    // Maximum number of buffers in a single gathering write
+    private static final int MAX_GATHER = 64;
+    // ... and their total size. Whatever is in flight can't be dropped, so don't
+    // take too much, but still let small packets coalesce.
+    private static final int MAX_GATHER_BYTES = 64 * 1024;
+
+    private static class Entry {
+        final ByteBuffer data;
+        final CompletableFuture<Void> promise;
+
+        Entry(ByteBuffer data, CompletableFuture<Void> promise) {
+            this.data = data;
+            this.promise = promise;
+        }
+    }
+
+    static class Batch {
+        final Entry[] entries;
+        final ByteBuffer[] buffers;
+        long bytes;
+
+        Batch(Entry[] entries, int n) {
+            this.entries = entries;
+            buffers = new ByteBuffer[n];
+            for (int i = 0; i < n; i++) {
+                buffers[i] = entries[i].data;
+                bytes += buffers[i].capacity();
+            }
+        }
+    }
+
+    private final Connection connection;
+    private final AsynchronousSocketChannel socket;
+    private final Timer timer;
+    private final long timeout;
+
+    private final ConcurrentLinkedQueue<Entry> queue = new ConcurrentLinkedQueue<Entry>();
+    private final AtomicBoolean writing = new AtomicBoolean();
+    // A packet, already taken from the queue, but not fitting into the previous batch.
+    // Only exists while a write is in flight, so only accessed by the writer.
+    private Entry carry;
+    private volatile Throwable failure;
+
+    private final AtomicLong pendingBytes = new AtomicLong();
+    private final AtomicBoolean writable = new AtomicBoolean(true);
+    // For senders, waiting for the queue to become writable. Not a monitor,
+    // because a virtual thread, waiting for a monitor, pins its carrier thread.
+    private final ReentrantLock waitLock = new ReentrantLock();
+    private final Condition writableCondition = waitLock.newCondition();
+
+    // Only one write is in flight, so is its deadline
+    private Timer.Timeout deadline;
+    private volatile boolean timedOut;
+    private final Runnable expireTask = new Runnable() {
+        @Override
+        public void run() {
+            // The pending write will fail
+            timedOut = true;
+            connection.safeClose(socket);
+        }
+    };
+
+    WriteQueue(Connection conn, AsynchronousSocketChannel ch, Timer timer, int timeoutSeconds) {
+        connection = conn;
+        socket = ch;
+        this.timer = timer;
+        timeout = timeoutSeconds;
+    }
+
+    /**
+     * Put a packet into the queue
+     *
+     * The whole buffer, from 0 to its capacity, is sent. The buffer must not be
+     * modified by the caller after this.
+     *
+     * @param data a packet to send
+     * @param promise a future to complete after the packet has been written or null
+     * @throws ExecutionException if a previous write has failed
+     */
+    void enqueue(ByteBuffer data, CompletableFuture<Void> promise) throws ExecutionException {
+        Throwable err = failure;
+
+        if (err != null) {
+            throw new ExecutionException(err);
+        }
+
+        // Binary incompatibility workaround: In Java 9 position() method has been overridden
+        // in ByteBuffer class; and overridden version returns ByteBuffer. This causes attempt
+        // to call using incompatible signature if compiled with the newer JDK.
+        // We care because we want to run on OpenHAB v2 using Java 1.8
+        ((Buffer) data).limit(data.capacity());
+        ((Buffer) data).position(0);
+
+        pendingBytes.addAndGet(data.capacity());
+        queue.offer(new Entry(data, promise));
+        updateWritability();
+
+        if (writing.compareAndSet(false, true)) {
+            drain();
+        } else if (failure != null) {
+            // The queue could have been flushed concurrently, before our packet landed in it
+            failQueued(failure);
+        }
+    }
+
+    /**
+     * Drop all the queued packets
+     *
+     * Called when the socket is being closed
+     */
+    void clear() {
+        if (failure == null) {
+            failure = new ClosedChannelException();
+        }
+        failQueued(failure);
+        wakeUpWaiters();
+    }
+
+    /**
+     * @return number of bytes, waiting to be written
+     */
+    long getPendingBytes() {
+        return pendingBytes.get();
+    }
+
+    /**
+     * @return true if the queue is below the high watermark and still usable
+     */
+    boolean isWritable() {
+        return writable.get() && failure == null;
+    }
+
+    /**
+     * Wait until the queue becomes writable
+     *
+     * Returns immediately if the queue has failed; the next send will report the error.
+     *
+     * @param timeoutSeconds how long to wait
+     * @throws InterruptedException if the current thread was interrupted
+     * @throws TimeoutException if the queue has stayed full for the whole timeout
+     */
+    void awaitWritable(long timeoutSeconds) throws InterruptedException, TimeoutException {
+        long nanos = TimeUnit.SECONDS.toNanos(timeoutSeconds);
+
+        waitLock.lock();
+        try {
+            while (!writable.get() && failure == null) {
+                if (nanos <= 0) {
+                    throw new TimeoutException("Outbound queue is still full");
+                }
+                nanos = writableCondition.awaitNanos(nanos);
+            }
+        } finally {
+            waitLock.unlock();
+        }
+    }
+
+    /**
+     * Drop packets, which haven't been written yet, oldest first, down to the low watermark
+     *
+     * Packets, which are being written right now, are never dropped, so it's safe
+     * as far as framing is concerned. Every packet is a whole encrypted message of its own.
+     */
+    void dropOldest() {
+        long low = connection.getWriteBufferLowWaterMark();
+        int dropped = 0;
+        Entry e;
+
+        while (pendingBytes.get() > low && (e = queue.poll()) != null) {
+            pendingBytes.addAndGet(-e.data.capacity());
+            if (e.promise != null) {
+                e.promise.completeExceptionally(new WriteBufferFullException("Packet dropped"));
+            }
+            dropped++;
+        }
+
+        if (dropped != 0) {
+            logger.debug("Outbound queue full, dropped {} packets", dropped);
+            updateWritability();
+        }
+    }
+
+    private void updateWritability() {
+        while (true) {
+            long pending = pendingBytes.get();
+
+            if (pending > connection.getWriteBufferHighWaterMark()) {
+                if (!writable.compareAndSet(true, false)) {
+                    return;
+                }
+            } else if (pending <= connection.getWriteBufferLowWaterMark()) {
+                if (!writable.compareAndSet(false, true)) {
+                    return;
+                }
+                wakeUpWaiters();
+            } else {
+                return;
+            }
+
+            connection.handleWritabilityChanged();
+            // Senders and the completion handler race here. If the other side has
+            // changed the count while we were switching, our decision may be stale,
+            // so check again.
+        }
+    }
+
+    private void wakeUpWaiters() {
+        waitLock.lock();
+        try {
+            writableCondition.signalAll();
+        } finally {
+            waitLock.unlock();
+        }
+    }
+
+    private void failQueued(Throwable exc) {
+        Entry e;
+
+        while ((e = queue.poll()) != null) {
+            if (e.promise != null) {
+                e.promise.completeExceptionally(exc);
+            }
+        }
+    }
+
+    private void drain() {
+        while (true) {
+            Batch batch = takeBatch();
+
+            if (batch != null) {
+                write(batch, 0);
+                return;
+            }
+
+            writing.set(false);
+
+            // Someone could have put a packet in between our last poll and resetting
+            // the flag, not starting a write because we still were holding it.
+            if (queue.isEmpty() || !writing.compareAndSet(false, true)) {
+                return;
+            }
+        }
+    }
+
+    private Batch takeBatch() {
+        Entry first = carry != null ? carry : queue.poll();
+
+        carry = null;
+        if (first == null) {
+            return null;
+        }
+
+        long bytes = first.data.capacity();
+        Entry next = bytes < MAX_GATHER_BYTES ? queue.poll() : null;
+
+        if (next == null) {
+            return new Batch(new Entry[] { first }, 1);
+        }
+
+        Entry[] entries = new Entry[MAX_GATHER];
+        int n = 1;
+
+        entries[0] = first;
+
+        while (next != null) {
+            bytes += next.data.capacity();
+            if (bytes > MAX_GATHER_BYTES) {
+                // Doesn't fit, will go first next time
+                carry = next;
+                break;
+            }
+
+            entries[n++] = next;
+            if (n == MAX_GATHER || bytes == MAX_GATHER_BYTES) {
+                break;
+            }
+            next = queue.poll();
+        }
+
+        return new Batch(entries, n);
+    }
+
+    private void write(Batch batch, int offset) {
+        ByteBuffer[] buffers = batch.buffers;
+
+        deadline = timer.schedule(expireTask, timeout, TimeUnit.SECONDS);
+
+        try {
+            // Zero means no timeout of the socket's own
+            socket.write(buffers, offset, buffers.length - offset, 0, TimeUnit.SECONDS, batch, this);
+        } catch (RuntimeException e) {
+            // E. g. ShutdownChannelGroupException
+            failed(e, batch);
+        }
+    }
+
+    @Override
+    public void completed(Long result, Batch batch) {
+        ByteBuffer[] buffers = batch.buffers;
+
+        if (!deadline.cancel()) {
+            // Made it, but too late, the socket is being closed
+            fail(new InterruptedByTimeoutException(), batch);
+            return;
+        }
+
+        // Short write, continue from the first unfinished buffer
+        for (int i = 0; i < buffers.length; i++) {
+            if (buffers[i].hasRemaining()) {
+                write(batch, i);
+                return;
+            }
+        }
+
+        for (int i = 0; i < buffers.length; i++) {
+            CompletableFuture<Void> promise = batch.entries[i].promise;
+
+            if (promise != null) {
+                promise.complete(null);
+            }
+        }
+
+        pendingBytes.addAndGet(-batch.bytes);
+        updateWritability();
+        drain();
+    }
+
+    @Override
+    public void failed(Throwable exc, Batch batch) {
+        deadline.cancel();
+        fail(timedOut ? new InterruptedByTimeoutException() : exc, batch);
+    }
+
+    private void fail(Throwable exc, Batch batch) {
+        // Keep the flag set, nothing will be written to this socket any more
+        failure = exc;
+
+        for (int i = 0; i < batch.buffers.length; i++) {
+            CompletableFuture<Void> promise = batch.entries[i].promise;
+
+            if (promise != null) {
+                promise.completeExceptionally(exc);
+            }
+        }
+        if (carry != null) {
+            if (carry.promise != null) {
+                carry.promise.completeExceptionally(exc);
+            }
+            carry = null;
+        }
+        failQueued(exc);
+        wakeUpWaiters();
+
+        connection.handleWriteError(socket, exc);
+    }
+}
@@ -0,0 +1,150 @@
+package io.github.sonic_amiga.opensdg.protocol;
+
+import java.nio.Buffer;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * A pool of reusable heap {@link ByteBuffer}s
+ *
+ * Socket data is read ahead into a buffer of up to the largest frame size, 64 KB plus
+ * 2 bytes, which is resized as the traffic changes, see {@link FrameDecoder}. Resizing,
+ * as well as connections coming and going, would otherwise allocate a new large array
+ * every time, so buffers are leased from this pool and returned back when no longer needed.
+ *
+ * Buffers are organized in power-of-two size classes. Every class keeps a limited
+ * amount of free buffers; excess is simply dropped and left to the GC.
+ *
+ * @author Pavel Fedin
+ */
+public class BufferPool {
+    private static final int MIN_SHIFT = 6; // 64 bytes
+    private static final int MAX_SHIFT = 17; // 128 kilobytes, so that the largest frame fits
+    private static final int NUM_CLASSES = MAX_SHIFT - MIN_SHIFT + 1;
+
+    private static final BufferPool sharedPool = new BufferPool(1024 * 1024);
+
+    private final ConcurrentLinkedQueue<ByteBuffer>[] freeLists;
+    private final AtomicInteger[] freeCounts;
+    private final int[] maxFree;
+
+    private final LongAdder hits = new LongAdder();
+    private final LongAdder misses = new LongAdder();
+
+    /**
+     * Creates a new {@link BufferPool}
+     *
+     * @param maxBytesPerClass maximum amount of memory to keep in every size class
+     */
+    @SuppressWarnings("unchecked")
+    public BufferPool(int maxBytesPerClass) {
+        freeLists = new ConcurrentLinkedQueue[NUM_CLASSES];
+        freeCounts = new AtomicInteger[NUM_CLASSES];
+        maxFree = new int[NUM_CLASSES];
+
+        for (int i = 0; i < NUM_CLASSES; i++) {
+            freeLists[i] = new ConcurrentLinkedQueue<ByteBuffer>();
+            freeCounts[i] = new AtomicInteger();
+            // Keep at least a few of the largest buffers
+            maxFree[i] = Math.max(maxBytesPerClass >> (MIN_SHIFT + i), 4);
+        }
+    }
+
+    /**
+     * Gets the shared pool
+     *
+     * @return a {@link BufferPool}
+     */
+    public static BufferPool get() {
+        return sharedPool;
+    }
+
+    private static int sizeClass(int size) {
+        if (size <= (1 << MIN_SHIFT)) {
+            return 0;
+        }
+        // Round up to the next power of two
+        return 32 - Integer.numberOfLeadingZeros(size - 1) - MIN_SHIFT;
+    }
+
+    /**
+     * Lease a buffer from the pool
+     *
+     * The buffer has big endian byte order, position of 0 and limit equal
+     * to the requested size. Its capacity may be larger.
+     *
+     * @param size required size in bytes
+     * @return a {@link ByteBuffer}
+     */
+    public ByteBuffer lease(int size) {
+        int idx = sizeClass(size);
+        ByteBuffer buffer;
+
+        if (idx >= NUM_CLASSES) {
+            // Too large, not pooled
+            misses.increment();
+            buffer = ByteBuffer.allocate(size);
+        } else {
+            buffer = freeLists[idx].poll();
+
+            if (buffer != null) {
+                freeCounts[idx].decrementAndGet();
+                hits.increment();
+            } else {
+                misses.increment();
+                buffer = ByteBuffer.allocate(1 << (MIN_SHIFT + idx));
+            }
+        }
+
+        // Binary incompatibility workaround, see MDGBinary.Packet.setPosition()
+        ((Buffer) buffer).clear();
+        ((Buffer) buffer).limit(size);
+        return buffer.order(ByteOrder.BIG_ENDIAN);
+    }
+
+    /**
+     * Return a buffer to the pool
+     *
+     * The buffer must not be used by the caller after this.
+     * Buffers, not belonging to the pool, are silently dropped.
+     *
+     * @param buffer a buffer, previously obtained using {@link #lease(int)}
+     */
+    public void release(ByteBuffer buffer) {
+        int capacity = buffer.capacity();
+        int idx = sizeClass(capacity);
+
+        if (!buffer.hasArray() || idx >= NUM_CLASSES
+                || capacity != (1 << (MIN_SHIFT + idx))) {
+            return;
+        }
+
+        if (freeCounts[idx].incrementAndGet() > maxFree[idx]) {
+            freeCounts[idx].decrementAndGet();
+            return;
+        }
+
+        freeLists[idx].offer(buffer);
+    }
+
+    /**
+     * Gets number of leases, satisfied by reusing a pooled buffer
+     *
+     * @return number of hits
+     */
+    public long getHits() {
+        return hits.sum();
+    }
+
+    /**
+     * Gets number of leases, which required a new allocation
+     *
+     * @return number of misses
+     */
+    public long getMisses() {
+        return misses.sum();
+    }
+}
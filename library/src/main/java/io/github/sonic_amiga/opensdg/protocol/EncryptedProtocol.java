@@ -1,11 +1,13 @@
 package io.github.sonic_amiga.opensdg.protocol;
 
 import java.io.IOException;
-import java.io.InputStream;
 import java.net.ProtocolException;
+import java.nio.ByteBuffer;
+import java.util.concurrent.CompletableFuture;
 import java.util.concurrent.ExecutionException;
 import java.util.concurrent.TimeoutException;
 
+import io.github.sonic_amiga.opensdg.internal.Utils;
 import io.github.sonic_amiga.opensdg.java.Connection;
 
 /**
@@ -41,13 +43,63 @@ public abstract class EncryptedProtocol extends RawProtocol {
     abstract public void sendData(byte[] data)
             throws IOException, InterruptedException, ExecutionException, TimeoutException;
 
+    /**
+     * Send data over the encrypted channel
+     *
+     * All the remaining bytes of the buffer are sent; its position is advanced
+     * to the limit. The default implementation copies the data; protocols are
+     * encouraged to override it.
+     *
+     * @param data Data to send
+     * @throws IOException if protocol fails
+     * @throws ExecutionException if the underlying I/O threw an exception
+     * @throws InterruptedException if the current thread was interrupted
+     * @throws TimeoutException if the operation has timed out
+     */
+    public void sendData(ByteBuffer data)
+            throws IOException, InterruptedException, ExecutionException, TimeoutException {
+        byte[] copy = new byte[data.remaining()];
+
+        data.get(copy);
+        sendData(copy);
+    }
+
+    /**
+     * Asynchronously send data over the encrypted channel
+     *
+     * All the remaining bytes of the buffer are consumed before return, so the
+     * buffer can be reused by the caller immediately. The default implementation
+     * simply falls back to synchronous {@link #sendData(ByteBuffer)}; protocols are
+     * encouraged to override it.
+     *
+     * @param data Data to send
+     * @return a {@link CompletableFuture}, completed when the data has been written to the socket
+     */
+    public CompletableFuture<Void> sendDataAsync(ByteBuffer data) {
+        try {
+            sendData(data);
+        } catch (IOException | InterruptedException | ExecutionException | TimeoutException e) {
+            return Utils.failedFuture(e instanceof ExecutionException ? e.getCause() : e);
+        }
+        return CompletableFuture.completedFuture(null);
+    }
+
+    /**
+     * Get maximum size of data, which can be sent in one packet
+     *
+     * @return size in bytes
+     */
+    public int getMaxDataSize() {
+        return Integer.MAX_VALUE;
+    }
+
     /**
      * Get received data
      *
-     * @return Decrypted received data
+     * @return Decrypted received data, a read-only view of the receive buffer
      * @throws ProtocolException if data decryption fails
      */
-    abstract public InputStream getData() throws ProtocolException;
+    abstract public ByteBuffer getData() throws ProtocolException;
 
     // These may be not appropriate for different protocols, but i don't know
     // what to do with these yet. Let them stick here this way for now.
@@ -17,8 +17,10 @@ import org.slf4j.LoggerFactory;
 import com.google.protobuf.AbstractMessage;
 import com.google.protobuf.ByteString;
 
+import io.github.sonic_amiga.opensdg.internal.ByteBufferInputStream;
 import io.github.sonic_amiga.opensdg.java.Connection;
 import io.github.sonic_amiga.opensdg.java.Connection.ReadResult;
+import io.github.sonic_amiga.opensdg.java.MetricsRecorder.HandshakePhase;
 import io.github.sonic_amiga.opensdg.protocol.generated.ForwardProtocol;
 
 /**
@@ -127,9 +129,9 @@ public class Forward extends RawProtocol {
     }
 
     @Override
-    public ReadResult establish() throws IOException, InterruptedException, ExecutionException, TimeoutException {
+    public void beginEstablish() throws IOException, InterruptedException, ExecutionException, TimeoutException {
+        startPhase();
         sendPacket(new ForwardRequest(tunnelId));
-        return super.establish();
     }
 
     private void sendPacket(Forward.Packet pkt)
@@ -156,6 +158,7 @@ public class Forward extends RawProtocol {
             case MSG_FORWARD_REPLY:
                 ForwardReply reply = new ForwardReply(data);
                 logger.trace("Received packet: {}", reply);
+                endPhase(HandshakePhase.FORWARD);
                 return ReadResult.DONE;
 
             case MSG_FORWARD_ERROR:
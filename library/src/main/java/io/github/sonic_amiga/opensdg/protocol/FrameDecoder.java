@@ -0,0 +1,205 @@
+package io.github.sonic_amiga.opensdg.protocol;
+
+import java.nio.Buffer;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * A streaming decoder for length-prefixed frames
+ *
+ * Socket data is read ahead into one large buffer, which can hold many frames
+ * at once. Complete frames are then sliced out of it one by one without copying.
+ * A partial frame at the end is kept until the next read completes it.
+ *
+ * Size of the buffer adapts to the traffic: it grows if reads keep filling it up
+ * completely and shrinks back if they are consistently small. It also grows in
+ * order to accommodate a single frame, larger than the buffer.
+ *
+ * Note that slices, returned by {@link #nextFrame()}, share the buffer, so they are
+ * only valid until the next call to {@link #getReadBuffer()}.
+ *
+ * @author Pavel Fedin
+ */
+class FrameDecoder {
+    private static final int MIN_SIZE = 2048;
+    private static final int INITIAL_SIZE = 4096;
+    // The largest frame: the length field and 0xFFFF bytes of data
+    static final int MAX_FRAME_SIZE = 2 + 0xFFFF;
+    private static final int MAX_SIZE = MAX_FRAME_SIZE;
+    // Number of consecutive small reads before the buffer is shrunk
+    private static final int SHRINK_THRESHOLD = 4;
+
+    private final BufferPool pool;
+
+    // Data is kept in "write" mode: [start, position) is received but not yet
+    // consumed, and [position, capacity) is free space for the next read.
+    private ByteBuffer buffer;
+    private int start;
+    // Discarded by reset(), but possibly still being read into
+    private final AtomicReference<ByteBuffer> retired = new AtomicReference<ByteBuffer>();
+
+    private int targetSize = INITIAL_SIZE;
+    private int lastFree;
+    private int smallReads;
+
+    FrameDecoder(BufferPool pool) {
+        this.pool = pool;
+    }
+
+    private static void setPosition(ByteBuffer buf, int pos) {
+        // Binary incompatibility workaround, see MDGBinary.Packet.setPosition()
+        ((Buffer) buf).position(pos);
+    }
+
+    private int pending() {
+        return buffer == null ? 0 : buffer.position() - start;
+    }
+
+    private int frameLength() {
+        // Frame size is bigendian and doesn't include the length field itself
+        return pending() < 2 ? 0 : 2 + (buffer.getShort(start) & 0xFFFF);
+    }
+
+    /**
+     * Prepare the buffer for the next read
+     *
+     * Already consumed data is discarded, the buffer is resized if needed.
+     *
+     * @return a buffer to read into
+     */
+    ByteBuffer getReadBuffer() {
+        int pending = pending();
+        int required = Math.max(targetSize, frameLength());
+
+        if (buffer == null) {
+            buffer = pool.lease(required);
+            start = 0;
+        } else if (buffer.capacity() < required || buffer.capacity() > required * 2) {
+            ByteBuffer newBuffer = pool.lease(Math.max(required, pending));
+
+            // Copy the partial frame over, it's typically small.
+            ((Buffer) buffer).limit(buffer.position());
+            setPosition(buffer, start);
+            newBuffer.put(buffer);
+
+            // All the frames have been consumed, so the old buffer can be reused
+            pool.release(buffer);
+            buffer = newBuffer;
+            start = 0;
+        } else if (pending == 0) {
+            setPosition(buffer, 0);
+            start = 0;
+        } else if (start > 0) {
+            ((Buffer) buffer).limit(buffer.position());
+            setPosition(buffer, start);
+            buffer.compact();
+            start = 0;
+        }
+
+        ((Buffer) buffer).limit(buffer.capacity());
+        lastFree = buffer.remaining();
+        return buffer;
+    }
+
+    /**
+     * Account for a completed read
+     *
+     * @param size number of bytes read
+     */
+    void onRead(int size) {
+        if (size <= 0) {
+            return;
+        }
+
+        if (size >= lastFree) {
+            // Filled up the whole buffer, there's probably more data waiting
+            targetSize = Math.min(targetSize * 2, MAX_SIZE);
+            smallReads = 0;
+        } else if (size < targetSize / 4) {
+            if (++smallReads >= SHRINK_THRESHOLD) {
+                targetSize = Math.max(targetSize / 2, MIN_SIZE);
+                smallReads = 0;
+            }
+        } else {
+            smallReads = 0;
+        }
+    }
+
+    /**
+     * Check if a complete frame is available
+     *
+     * @return true if {@link #nextFrame()} can be called
+     */
+    boolean hasFrame() {
+        int pending = pending();
+        return pending >= 2 && pending >= frameLength();
+    }
+
+    /**
+     * Take the next complete frame
+     *
+     * @return a slice of the buffer, containing the whole frame including its length
+     */
+    ByteBuffer nextFrame() {
+        int length = frameLength();
+        ByteBuffer frame = buffer.duplicate();
+
+        ((Buffer) frame).limit(start + length);
+        setPosition(frame, start);
+        start += length;
+
+        return frame.slice().order(ByteOrder.BIG_ENDIAN);
+    }
+
+    /**
+     * Take over data, read ahead by another decoder
+     *
+     * This is used when switching protocols on the same socket.
+     *
+     * @param other a {@link FrameDecoder} to take data from
+     */
+    void takeOver(FrameDecoder other) {
+        if (other.pending() == 0) {
+            return;
+        }
+
+        if (buffer != null) {
+            pool.release(buffer);
+        }
+
+        buffer = other.buffer;
+        start = other.start;
+        other.buffer = null;
+    }
+
+    /**
+     * Discard all the buffered data
+     *
+     * This can be called from any thread while a read into the buffer may still be
+     * pending, so the buffer isn't returned to the pool here; see {@link #recycle(ByteBuffer)}.
+     */
+    void reset() {
+        ByteBuffer b = buffer;
+
+        buffer = null;
+        if (b != null) {
+            retired.set(b);
+        }
+    }
+
+    /**
+     * Return a discarded buffer to the pool
+     *
+     * Only the reader knows when the last read into the buffer has completed, so
+     * it's up to the reader to call this. Buffers, which haven't been discarded by
+     * {@link #reset()}, are left alone.
+     *
+     * @param buf a buffer, previously obtained from {@link #getReadBuffer()}
+     */
+    void recycle(ByteBuffer buf) {
+        if (buf != null && retired.compareAndSet(buf, null)) {
+            pool.release(buf);
+        }
+    }
+}
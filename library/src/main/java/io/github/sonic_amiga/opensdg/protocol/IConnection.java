@@ -1,11 +1,14 @@
 package io.github.sonic_amiga.opensdg.protocol;
 
 import java.io.IOException;
-import java.io.InputStream;
 import java.nio.ByteBuffer;
+import java.util.concurrent.CompletableFuture;
 import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
 import java.util.concurrent.TimeoutException;
 
+import io.github.sonic_amiga.opensdg.java.MetricsRecorder.HandshakePhase;
+
 /**
  * This class is a glue, whose only purpose is to provide ability to call
  * certain methods of public Connection class from within "protocol"
@@ -14,14 +17,30 @@ import java.util.concurrent.TimeoutException;
  * @author Pavel Fedin
  */
 public abstract class IConnection {
+    /**
+     * A CPU-heavy step of a handshake
+     */
+    public interface HandshakeTask<T> {
+        T compute() throws IOException;
+    }
+
+    /**
+     * What to do after a {@link HandshakeTask} has completed
+     */
+    public interface Continuation<T> {
+        void resume(T result) throws IOException, InterruptedException, ExecutionException, TimeoutException;
+    }
+
     /**
      * Synchronously send a raw data buffer
      *
-     * Keeps writing synchronously until the full packet has been written
+     * Only queues the packet for writing and returns, without waiting for the write
+     * to complete. A failure of the write itself is reported via onError() of the
+     * connection, like a read error, and closes it.
      * This is an internal function, not for public use!
      *
      * @param data the data to send
-     * @throws ExecutionException if the underlying write operation threw an exception
+     * @throws ExecutionException if a previous write has failed
      * @throws InterruptedException if the current thread was interrupted
      * @throws TimeoutException if the operation has timed out
      * @throws IOException
@@ -30,6 +49,16 @@ public abstract class IConnection {
     protected abstract void doSendRawData(ByteBuffer data)
             throws InterruptedException, ExecutionException, TimeoutException, IOException;
 
+    /**
+     * Asynchronously send a raw data buffer
+     *
+     * This is an internal function, not for public use!
+     *
+     * @param data the data to send
+     * @return a {@link CompletableFuture}, completed when the data has been written to the socket
+     */
+    protected abstract CompletableFuture<Void> doSendRawDataAsync(ByteBuffer data);
+
     /**
      * Receive raw data synchronously
      *
@@ -62,19 +91,88 @@ public abstract class IConnection {
      *
      * Internal function, do not use!
      *
-     * @param data InputStream, containing the received data
+     * @param data read-only buffer, containing the received data; only valid until return
      * @throws IOException if packet decoding fails
      * @throws ExecutionException if the response write operation threw an exception
      * @throws InterruptedException if the current thread was interrupted
      * @throws TimeoutException if the operation has timed out
      */
-    protected abstract void onDataPacket(InputStream data)
+    protected abstract void onDataPacket(ByteBuffer data)
+            throws IOException, InterruptedException, ExecutionException, TimeoutException;
+
+    /**
+     * Account a received frame in metrics
+     *
+     * Internal function, do not use!
+     *
+     * @param size frame size in bytes
+     */
+    protected abstract void onFrameReceived(int size);
+
+    /**
+     * Account MESG packet encryption time in metrics
+     *
+     * Internal function, do not use!
+     *
+     * @param nanos time taken, in nanoseconds
+     */
+    protected abstract void onEncrypted(long nanos);
+
+    /**
+     * Account MESG packet decryption time in metrics
+     *
+     * Internal function, do not use!
+     *
+     * @param nanos time taken, in nanoseconds
+     */
+    protected abstract void onDecrypted(long nanos);
+
+    /**
+     * Account completion of a handshake step in metrics
+     *
+     * Internal function, do not use!
+     *
+     * @param phase the step
+     * @param nanos time taken, in nanoseconds
+     */
+    protected abstract void onHandshakePhase(HandshakePhase phase, long nanos);
+
+    /**
+     * Get an {@link Executor} for encrypting outgoing data packets
+     *
+     * Internal function, do not use!
+     *
+     * @return the executor or null to encrypt on the sending thread
+     */
+    protected abstract Executor getEncryptionExecutor();
+
+    /**
+     * Run a CPU-heavy step of a handshake off the I/O thread
+     *
+     * Reading from the socket is paused until the continuation has run on the I/O thread,
+     * so the received packet stays valid for the task. If not called on the I/O thread,
+     * e. g. by a synchronous handshake, both run right here.
+     *
+     * Internal function, do not use!
+     *
+     * @param task the computation
+     * @param then what to do with its result
+     * @throws IOException if the task or the continuation fails
+     * @throws ExecutionException if the continuation's write operation threw an exception
+     * @throws InterruptedException if the current thread was interrupted
+     * @throws TimeoutException if the operation has timed out
+     */
+    protected abstract <T> void doOffload(HandshakeTask<T> task, Continuation<T> then)
             throws IOException, InterruptedException, ExecutionException, TimeoutException;
 
     void sendRawData(ByteBuffer data) throws InterruptedException, ExecutionException, TimeoutException, IOException {
         doSendRawData(data);
     }
 
+    CompletableFuture<Void> sendRawDataAsync(ByteBuffer data) {
+        return doSendRawDataAsync(data);
+    }
+
     int syncReceive(ByteBuffer buffer) throws InterruptedException, ExecutionException, TimeoutException {
         return doSyncReceive(buffer);
     }
@@ -83,8 +181,33 @@ public abstract class IConnection {
         onReadyPacket();
     }
 
-    void handleDataPacket(InputStream data)
+    void handleDataPacket(ByteBuffer data)
             throws IOException, InterruptedException, ExecutionException, TimeoutException {
         onDataPacket(data);
     }
+
+    void handleFrameReceived(int size) {
+        onFrameReceived(size);
+    }
+
+    void handleEncrypted(long nanos) {
+        onEncrypted(nanos);
+    }
+
+    void handleDecrypted(long nanos) {
+        onDecrypted(nanos);
+    }
+
+    void handleHandshakePhase(HandshakePhase phase, long nanos) {
+        onHandshakePhase(phase, nanos);
+    }
+
+    Executor encryptionExecutor() {
+        return getEncryptionExecutor();
+    }
+
+    <T> void offload(HandshakeTask<T> task, Continuation<T> then)
+            throws IOException, InterruptedException, ExecutionException, TimeoutException {
+        doOffload(task, then);
+    }
 }
@@ -0,0 +1,118 @@
+package io.github.sonic_amiga.opensdg.protocol;
+
+import java.nio.ByteBuffer;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.locks.ReentrantLock;
+
+import com.neilalexander.jnacl.crypto.curve25519xsalsa20poly1305;
+
+import io.github.sonic_amiga.opensdg.internal.Utils;
+import io.github.sonic_amiga.opensdg.java.SDG;
+
+/**
+ * Our long-term key pair and what is derived from it
+ *
+ * Both the public key and shared keys with long-term keys of servers cost a
+ * curve25519 scalar multiplication each, but never change. So they are computed
+ * once and shared by the Grid connection and all of its peer tunnels. Shared keys
+ * are kept for a limited number of servers, the least recently used ones are
+ * forgotten.
+ *
+ * @author Pavel Fedin
+ */
+public class Identity {
+    public static final int DEFAULT_MAX_SHARED_KEYS = 256;
+
+    private final byte[] privateKey;
+    private final byte[] publicKey;
+    // Not a monitor, because a virtual thread, waiting for a monitor, pins its carrier thread
+    private final ReentrantLock lock = new ReentrantLock();
+    // In access order, so that the eldest entry is the least recently used one
+    private final Map<ByteBuffer, byte[]> sharedKeys;
+
+    /**
+     * Creates an {@link Identity}
+     *
+     * @param privKey our long-term private key
+     */
+    public Identity(byte[] privKey) {
+        this(privKey, DEFAULT_MAX_SHARED_KEYS);
+    }
+
+    /**
+     * Creates an {@link Identity}
+     *
+     * @param privKey our long-term private key
+     * @param maxSharedKeys maximum number of shared keys to remember
+     */
+    public Identity(byte[] privKey, int maxSharedKeys) {
+        privateKey = privKey.clone();
+        publicKey = SDG.calcPublicKey(privateKey);
+        sharedKeys = new LinkedHashMap<ByteBuffer, byte[]>(16, 0.75f, true) {
+            private static final long serialVersionUID = 1L;
+
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<ByteBuffer, byte[]> eldest) {
+                return size() > maxSharedKeys;
+            }
+        };
+    }
+
+    byte[] getPrivateKey() {
+        return privateKey;
+    }
+
+    /**
+     * @return our public key, also known as peer ID; must not be modified
+     */
+    public byte[] getPublicKey() {
+        return publicKey;
+    }
+
+    /**
+     * Get a precomputed key for crypto_box_afternm() with a peer's long-term key
+     *
+     * @param peerKey the peer's long-term public key
+     * @return the key; must not be modified
+     */
+    byte[] getSharedKey(byte[] peerKey) {
+        ByteBuffer id = ByteBuffer.wrap(peerKey.clone());
+        byte[] key;
+
+        lock.lock();
+        try {
+            key = sharedKeys.get(id);
+        } finally {
+            lock.unlock();
+        }
+        if (key != null) {
+            return key;
+        }
+
+        // Don't hold the lock while computing. Two threads may compute the same key
+        // concurrently, that's harmless.
+        key = new byte[curve25519xsalsa20poly1305.crypto_secretbox_BEFORENMBYTES];
+        Utils.crypto_box_beforenm(key, peerKey, privateKey);
+
+        lock.lock();
+        try {
+            sharedKeys.put(id, key);
+        } finally {
+            lock.unlock();
+        }
+        return key;
+    }
+
+    /**
+     * @return number of shared keys, currently remembered
+     */
+    int getSharedKeyCount() {
+        lock.lock();
+        try {
+            return sharedKeys.size();
+        } finally {
+            lock.unlock();
+        }
+    }
+}
@@ -1,25 +1,32 @@
 package io.github.sonic_amiga.opensdg.protocol;
 
-import java.io.ByteArrayInputStream;
 import java.io.IOException;
-import java.io.InputStream;
 import java.net.ProtocolException;
 import java.nio.Buffer;
 import java.nio.ByteBuffer;
 import java.nio.ByteOrder;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.CompletableFuture;
 import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
 import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicLong;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import com.neilalexander.jnacl.crypto.curve25519xsalsa20poly1305;
 
+import io.github.sonic_amiga.opensdg.internal.KeyPairPool;
+import io.github.sonic_amiga.opensdg.internal.KeyPairPool.KeyPair;
+import io.github.sonic_amiga.opensdg.internal.SecretBox;
 import io.github.sonic_amiga.opensdg.internal.Utils;
 import io.github.sonic_amiga.opensdg.internal.Utils.Hexdump;
 import io.github.sonic_amiga.opensdg.java.Connection;
 import io.github.sonic_amiga.opensdg.java.SDG;
 import io.github.sonic_amiga.opensdg.java.Connection.ReadResult;
+import io.github.sonic_amiga.opensdg.java.MetricsRecorder.HandshakePhase;
 
 /**
  * This class implements mdglib's binary encryption protocol
@@ -36,21 +43,34 @@ public class MDGBinary extends EncryptedProtocol {
         return (a << 24) | (b << 16) | (c << 8) | d;
     }
 
-    private static byte[] buildShortTermNonce(String text, long value) {
+    private static byte[] noncePrefix(String text) {
+        return text.getBytes(StandardCharsets.US_ASCII);
+    }
+
+    // Nonce prefixes are constant, so convert them to bytes only once
+    private static final byte[] CLIENT_H_PREFIX = noncePrefix("CurveCP-client-H");
+    private static final byte[] CLIENT_I_PREFIX = noncePrefix("CurveCP-client-I");
+    private static final byte[] CLIENT_M_PREFIX = noncePrefix("CurveCP-client-M");
+    private static final byte[] SERVER_R_PREFIX = noncePrefix("CurveCP-server-R");
+    private static final byte[] SERVER_M_PREFIX = noncePrefix("CurveCP-server-M");
+    private static final byte[] COOKIE_PREFIX = noncePrefix("CurveCPK");
+    private static final byte[] VOUCH_PREFIX = noncePrefix("CurveCPV");
+
+    private static byte[] buildShortTermNonce(byte[] prefix, long value) {
         byte[] nonce = new byte[curve25519xsalsa20poly1305.crypto_secretbox_NONCEBYTES];
         ByteBuffer data = ByteBuffer.wrap(nonce).order(ByteOrder.BIG_ENDIAN);
 
-        data.put(text.getBytes());
+        data.put(prefix);
         data.putLong(value);
 
         return nonce;
     }
 
-    private static byte[] buildLongTermNonce(String text, byte[] value) {
+    private static byte[] buildLongTermNonce(byte[] prefix, byte[] value) {
         byte[] nonce = new byte[curve25519xsalsa20poly1305.crypto_secretbox_NONCEBYTES];
         ByteBuffer data = ByteBuffer.wrap(nonce).order(ByteOrder.BIG_ENDIAN);
 
-        data.put(text.getBytes());
+        data.put(prefix);
         data.put(value);
 
         return nonce;
@@ -66,18 +86,19 @@ public class MDGBinary extends EncryptedProtocol {
     private static final int LONG_NONCE_SIZE = 16;
     private static final int COOKIE_SIZE = 96;
 
+    private static byte[] beforenm(byte[] pk, byte[] sk) {
+        byte[] k = new byte[curve25519xsalsa20poly1305.crypto_secretbox_BEFORENMBYTES];
+
+        Utils.crypto_box_beforenm(k, pk, sk);
+        return k;
+    }
+
     private static void encrypt(byte[] c, byte[] m, byte[] n, byte[] pk, byte[] sk) throws ProtocolException {
-        int ret = curve25519xsalsa20poly1305.crypto_box(c, m, n, pk, sk);
-        if (ret != 0) {
-            throw new ProtocolException("Encryption failed, code " + ret);
-        }
+        encrypt(c, m, n, beforenm(pk, sk));
     }
 
     private static void decrypt(byte[] m, byte[] c, byte[] n, byte[] pk, byte[] sk) throws ProtocolException {
-        int ret = curve25519xsalsa20poly1305.crypto_box_open(c, m, n, pk, sk);
-        if (ret != 0) {
-            throw new ProtocolException("Decryption failed, code " + ret);
-        }
+        decrypt(m, c, n, beforenm(pk, sk));
     }
 
     private static void encrypt(byte[] c, byte[] m, byte[] n, byte[] k) throws ProtocolException {
@@ -102,8 +123,9 @@ public class MDGBinary extends EncryptedProtocol {
         protected Packet(int data_size, int cmd) {
             int size = HEADER_SIZE + data_size;
 
-            // Direct ByteBuffers are more optimal for I/O
-            data = ByteBuffer.allocateDirect(size).order(ByteOrder.BIG_ENDIAN);
+            // Packets, which are encrypted in place, need a backing array
+            data = ByteBuffer.allocate(size);
+            data.order(ByteOrder.BIG_ENDIAN);
 
             // 0 - Packet size, excluding this field
             data.putShort((short) (size - 2));
@@ -115,7 +137,7 @@ public class MDGBinary extends EncryptedProtocol {
 
         public Packet(ByteBuffer buffer, int data_size) throws ProtocolException {
             data = buffer.order(ByteOrder.BIG_ENDIAN);
-            if (data.capacity() < HEADER_SIZE + data_size) {
+            if (data.limit() < HEADER_SIZE + data_size) {
                 throw new ProtocolException("Invalid packet received, too short");
             }
             if (getMagic() != MAGIC) {
@@ -146,7 +168,8 @@ public class MDGBinary extends EncryptedProtocol {
         }
 
         public int getDataLength() {
-            return data.getShort(0) - 8;
+            // Unsigned, a large MESG packet would look negative
+            return (data.getShort(0) & 0xFFFF) - 8;
         }
 
         public int getMagic() {
@@ -204,12 +227,6 @@ public class MDGBinary extends EncryptedProtocol {
             allocateDecryptedBuffer(encrypted_data_size);
         }
 
-        EncryptedPacket(ByteBuffer data, int raw_portion_size, int encrypted_data_size, int cmd)
-                throws ProtocolException {
-            super(data, raw_portion_size + INNER_PAD + encrypted_data_size, cmd);
-            allocateDecryptedBuffer(encrypted_data_size);
-        }
-
         private void allocateDecryptedBuffer(int encrypted_data_size) {
             box_size = INNER_PAD + encrypted_data_size;
             decrypted = ByteBuffer.allocate(OUTER_PAD + box_size).order(ByteOrder.BIG_ENDIAN);
@@ -224,12 +241,10 @@ public class MDGBinary extends EncryptedProtocol {
             return ret;
         }
 
-        protected void putEncrypted(String nonce_prefix, long nonce, byte[] beforenm) throws ProtocolException {
+        protected void putEncrypted(byte[] nonce_prefix, long nonce, byte[] beforenm) throws ProtocolException {
             byte[] box_nonce = buildShortTermNonce(nonce_prefix, nonce);
             // We may implement both getters and setters, so for consistency use
             // another temporary buffer for encryption, despite it's a bit slow.
-            // unfortunately jnacl doesn't allow to use ByteBuffers or ByteArrayStreams,
-            // neither it allows to specify offset into arrays.
             byte[] encrypted = new byte[OUTER_PAD + box_size];
 
             encrypt(encrypted, decrypted.array(), box_nonce, beforenm);
@@ -286,12 +301,10 @@ public class MDGBinary extends EncryptedProtocol {
             data.put(clientPk);
             data.putLong(nonce);
 
-            byte[] box_nonce = buildShortTermNonce("CurveCP-client-H", nonce);
+            byte[] box_nonce = buildShortTermNonce(CLIENT_H_PREFIX, nonce);
             byte[] zeroMsg = new byte[OUTER_PAD + ZEROMSG_SIZE];
 
             // Encrypt in place, NaCl allows this
-            // Unfortunately crypto_box API doesn't allow to specify starting offset
-            // in the destination buffer, so we have to copy the result into our packet
             // Note that outer BOX_PAD is stripped and not sent
             encrypt(zeroMsg, zeroMsg, box_nonce, serverPk, clientSk);
 
@@ -312,7 +325,7 @@ public class MDGBinary extends EncryptedProtocol {
         public COOKPacket(Packet pkt, byte[] serverPk, byte[] clientSk) throws ProtocolException {
             super(pkt, LONG_NONCE_SIZE, SDG.KEY_SIZE + COOKIE_SIZE);
 
-            byte[] box_nonce = buildLongTermNonce("CurveCPK", getNonce());
+            byte[] box_nonce = buildLongTermNonce(COOKIE_PREFIX, getNonce());
             byte[] msg = fillDataToDecrypt(LONG_NONCE_SIZE);
 
             decrypt(msg, msg, box_nonce, serverPk, clientSk);
@@ -336,18 +349,19 @@ public class MDGBinary extends EncryptedProtocol {
         private static final String CERTIFICATE_PREFIX = "certificate";
         private static final int CERTIFICATE_PREFIX_SIZE = CERTIFICATE_PREFIX.length() + 3;
 
-        public VOCHPacket(byte[] cookie, long nonce, byte[] beforenm, byte[] serverPk, byte[] clientSk, byte[] clientPk,
+        public VOCHPacket(byte[] cookie, long nonce, byte[] beforenm, byte[] longTermKey, byte[] clientPk,
                 byte[] clientTempPk, byte[] certificate) throws ProtocolException {
             super(COOKIE_SIZE + SHORT_NONCE_SIZE, SDG.KEY_SIZE + LONG_NONCE_SIZE + INNER_BOX_SIZE + 1
                     + (certificate == null ? 0 : (CERTIFICATE_PREFIX_SIZE + certificate.length)), CMD_VOCH);
 
             byte[] long_nonce = Utils.randomBytes(LONG_NONCE_SIZE);
-            byte[] box_nonce = buildLongTermNonce("CurveCPV", long_nonce);
+            byte[] box_nonce = buildLongTermNonce(VOUCH_PREFIX, long_nonce);
             byte[] innerMsg = new byte[OUTER_PAD + INNER_BOX_SIZE];
 
             // Don't bother about ByteBuffer because inner data is all just byte[]
             System.arraycopy(clientTempPk, 0, innerMsg, OUTER_PAD + INNER_PAD, SDG.KEY_SIZE);
-            encrypt(innerMsg, innerMsg, box_nonce, serverPk, clientSk);
+            // The same as crypto_box() with server's and our long-term keys, but the key is precomputed
+            encrypt(innerMsg, innerMsg, box_nonce, longTermKey);
 
             decrypted.put(clientPk);
             decrypted.put(long_nonce);
@@ -379,7 +393,7 @@ public class MDGBinary extends EncryptedProtocol {
 
             data.put(cookie);
             data.putLong(nonce);
-            putEncrypted("CurveCP-client-I", nonce, beforenm);
+            putEncrypted(CLIENT_I_PREFIX, nonce, beforenm);
         }
 
         long getNonce() {
@@ -393,20 +407,7 @@ public class MDGBinary extends EncryptedProtocol {
     }
 
     private static class DataPacket extends EncryptedPacket {
-        protected DataPacket(int raw_portion_size, int encrypted_data_size, int cmd) {
-            super(raw_portion_size, encrypted_data_size, cmd);
-        }
-
-        protected DataPacket(ByteBuffer data, String noncePrefix, byte[] beforenm, int cmd) throws ProtocolException {
-            super(data, SHORT_NONCE_SIZE, data.capacity() - HEADER_SIZE - SHORT_NONCE_SIZE - INNER_PAD, cmd);
-
-            byte[] box_nonce = buildShortTermNonce(noncePrefix, getNonce());
-            byte[] msg = fillDataToDecrypt(SHORT_NONCE_SIZE);
-
-            decrypt(msg, msg, box_nonce, beforenm);
-        }
-
-        protected DataPacket(Packet pkt, String noncePrefix, byte[] beforenm) throws ProtocolException {
+        protected DataPacket(Packet pkt, byte[] noncePrefix, byte[] beforenm) throws ProtocolException {
             super(pkt, SHORT_NONCE_SIZE, pkt.getDataLength() - SHORT_NONCE_SIZE - INNER_PAD);
 
             byte[] box_nonce = buildShortTermNonce(noncePrefix, getNonce());
@@ -428,7 +429,7 @@ public class MDGBinary extends EncryptedProtocol {
     // REDY packet is identical to MESG with the only difference being nonce prefix
     private static class REDYPacket extends DataPacket {
         public REDYPacket(Packet pkt, byte[] beforenm) throws ProtocolException {
-            super(pkt, "CurveCP-server-R", beforenm);
+            super(pkt, SERVER_R_PREFIX, beforenm);
         }
 
         public int getPayloadLength() {
@@ -440,55 +441,130 @@ public class MDGBinary extends EncryptedProtocol {
         }
     }
 
-    private static class MESGPacket extends DataPacket {
-        public MESGPacket(Packet pkt, byte[] beforenm) throws ProtocolException {
-            super(pkt, "CurveCP-server-M", beforenm);
-        }
+    /*
+     * MESG packets are performance-critical, so they are encrypted and decrypted
+     * in place, inside the packet buffer, using precomputed keys. Layout:
+     * 0 - header
+     * 10 - nonce
+     * 18 - authentication tag
+     * 34 - payload length, encrypted
+     * 36 - payload, encrypted
+     */
+    static class MESGPacket extends Packet {
+        private static final int BOX_OFFSET = HEADER_SIZE + SHORT_NONCE_SIZE;
+        private static final int PAYLOAD_OFFSET = BOX_OFFSET + SecretBox.TAG_SIZE + 2;
+        // Total packet length must fit into 16 bits
+        static final int MAX_PAYLOAD_SIZE = 0xFFFF + 2 - PAYLOAD_OFFSET;
+
+        private int payloadLength;
+
+        public MESGPacket(Packet pkt, int[] key) throws ProtocolException {
+            super(pkt, SHORT_NONCE_SIZE + SecretBox.TAG_SIZE + 2);
+
+            if (!data.hasArray() || data.isReadOnly()) {
+                // We need an array to decrypt in place
+                ByteBuffer copy = ByteBuffer.allocate(data.limit()).order(ByteOrder.BIG_ENDIAN);
+
+                setPosition(0);
+                copy.put(data);
+                data = copy;
+            }
 
-        public MESGPacket(ByteBuffer data, byte[] beforenm) throws ProtocolException {
-            super(data, "CurveCP-server-M", beforenm, CMD_MESG);
+            if (!SecretBox.open(key, getNonce(), data.array(), data.arrayOffset() + BOX_OFFSET,
+                    data.limit() - BOX_OFFSET - SecretBox.TAG_SIZE)) {
+                throw new ProtocolException("Decryption failed");
+            }
+
+            payloadLength = data.getShort(PAYLOAD_OFFSET - 2) & 0xFFFF;
+            if (payloadLength > data.limit() - PAYLOAD_OFFSET) {
+                throw new ProtocolException("Invalid MESG payload length " + payloadLength);
+            }
         }
 
-        public MESGPacket(long nonce, byte[] beforenm, byte[] payload) throws ProtocolException {
-            // Payload is prefixed by its length, yes, again
-            super(SHORT_NONCE_SIZE, 2 + payload.length, CMD_MESG);
+        public MESGPacket(long nonce, ByteBuffer payload) throws ProtocolException {
+            super(SHORT_NONCE_SIZE + SecretBox.TAG_SIZE + 2 + payload.remaining(), CMD_MESG);
 
-            decrypted.putShort((short) payload.length);
-            decrypted.put(payload);
+            payloadLength = payload.remaining();
+            if (payloadLength > MAX_PAYLOAD_SIZE) {
+                throw new ProtocolException("MESG payload too large: " + payloadLength);
+            }
 
             data.putLong(nonce);
-            putEncrypted("CurveCP-client-M", nonce, beforenm);
+            setPosition(PAYLOAD_OFFSET - 2);
+            // Payload is prefixed by its length, yes, again
+            data.putShort((short) payloadLength);
+            data.put(payload);
+            setPosition(0);
         }
 
-        public short getPayloadLength() {
-            return decrypted.getShort(OUTER_PAD + INNER_PAD);
+        /**
+         * Encrypt the packet in place
+         *
+         * Not done by the constructor, so that the caller's buffer can be released
+         * right away, while encryption is done later, possibly by another thread.
+         *
+         * @param key precomputed key for CLIENT_M_PREFIX
+         */
+        public void seal(int[] key) {
+            SecretBox.seal(key, getNonce(), data.array(), data.arrayOffset() + BOX_OFFSET, 2 + payloadLength);
         }
 
-        public InputStream getPayload() {
-            return new ByteArrayInputStream(decrypted.array(), OUTER_PAD + INNER_PAD + 2, getPayloadLength());
+        public long getNonce() {
+            return data.getLong(HEADER_SIZE);
+        }
+
+        public int getPayloadLength() {
+            return payloadLength;
+        }
+
+        /**
+         * Get decrypted payload
+         *
+         * This is a read-only view of the packet buffer, nothing is copied,
+         * so it's only valid while the packet buffer is.
+         *
+         * @return payload data
+         */
+        public ByteBuffer getPayloadBuffer() {
+            ByteBuffer view = data.duplicate();
+
+            ((Buffer) view).limit(PAYLOAD_OFFSET + payloadLength);
+            ((Buffer) view).position(PAYLOAD_OFFSET);
+            return view.slice().asReadOnlyBuffer();
+        }
+
+        @Override
+        public String toString() {
+            return super.toString() + " #" + getNonce();
         }
     }
 
-    private byte[] clientPubkey;
-    private byte[] clientPrivkey;
+    private final Identity identity;
     private byte[] serverPubkey;
     private byte[] tempPubkey;
     private byte[] tempPrivkey;
     private byte[] beforeNm;
-    private long nonce;
-    private Object sendLock = new Object();
+    private int[] sendKey;
+    private int[] receiveKey;
+    private final AtomicLong nonce = new AtomicLong();
+    // We can be called by arbitrary number of threads, but we need to make sure
+    // that packets are sent in the order of their nonces. Our remote peer simply
+    // hangs up if we fail to do so
+    private final SendSequencer sequencer = new SendSequencer(frame -> connection.sendRawDataAsync(frame));
 
     public MDGBinary(Connection conn, byte[] privKey) {
+        this(conn, new Identity(privKey));
+    }
+
+    public MDGBinary(Connection conn, Identity identity) {
         super(conn);
-        clientPrivkey = privKey.clone();
-        clientPubkey = SDG.calcPublicKey(clientPrivkey);
+        this.identity = identity;
     }
 
     @Override
     public MDGBinary makePeerTunnel(Connection conn) {
-        MDGBinary peer = new MDGBinary(conn, clientPrivkey);
-        peer.clientPubkey = clientPubkey;
-        return peer;
+        // Everything, derived from our keys, is shared
+        return new MDGBinary(conn, identity);
     }
 
     @Override
@@ -500,34 +576,30 @@ public class MDGBinary extends EncryptedProtocol {
         logger.trace("Received packet: {}", pkt);
 
         if (cmd == CMD_WELC) {
+            endPhase(HandshakePhase.WELCOME);
             serverPubkey = new WELCPacket(pkt).getPeerID();
             logger.trace("Received server public key: {}", new Hexdump(serverPubkey));
 
-            tempPubkey = new byte[SDG.KEY_SIZE];
-            tempPrivkey = new byte[SDG.KEY_SIZE];
-            curve25519xsalsa20poly1305.crypto_box_keypair(tempPubkey, tempPrivkey);
-            logger.trace("Created short-term public key: {}", new Hexdump(tempPubkey));
-            logger.trace("Created short-term secret key: {}", new Hexdump(tempPrivkey));
+            long heloNonce = getNextNonce();
 
-            sendPacket(new HELOPacket(serverPubkey, tempPubkey, tempPrivkey, getNextNonce()));
+            // Curve25519 math takes milliseconds, so it's done off the I/O thread.
+            // The handshake goes on in the continuation.
+            connection.offload(() -> makeHELO(heloNonce), this::sendPacket);
         } else if (cmd == CMD_COOK) {
-            COOKPacket cook = new COOKPacket(pkt, serverPubkey, tempPrivkey);
-            byte[] tempServerPubkey = cook.getShortTermPubkey();
-            byte[] serverCookie = cook.getCookie();
-
-            logger.trace("Received server short-term public key: {}", new Hexdump(tempServerPubkey));
-            logger.trace("Received server cookie: {}", new Hexdump(serverCookie));
-
-            beforeNm = new byte[curve25519xsalsa20poly1305.crypto_secretbox_BEFORENMBYTES];
-            curve25519xsalsa20poly1305.crypto_box_beforenm(beforeNm, tempServerPubkey, tempPrivkey);
-
-            sendPacket(new VOCHPacket(serverCookie, getNextNonce(), beforeNm, serverPubkey, clientPrivkey, clientPubkey,
-                    tempPubkey, null));
+            endPhase(HandshakePhase.COOKIE);
+            long vochNonce = getNextNonce();
+
+            connection.offload(() -> makeVOCH(pkt, vochNonce), voch -> {
+                sendPacket(voch);
+                // Data packets go on from here
+                sequencer.reset(nonce.get());
+            });
         } else if (cmd == CMD_REDY) {
+            endPhase(HandshakePhase.READY);
             handleREDY(new REDYPacket(pkt, beforeNm));
             return ReadResult.DONE;
         } else if (cmd == CMD_MESG) {
-            connection.handleDataPacket(new MESGPacket(pkt, beforeNm).getPayload());
+            connection.handleDataPacket(decrypt(pkt).getPayloadBuffer());
         } else {
             throw new ProtocolException("Unknown packet received: " + pkt.toString());
         }
@@ -535,6 +607,73 @@ public class MDGBinary extends EncryptedProtocol {
         return ReadResult.CONTINUE;
     }
 
+    // Handshake steps below run on a compute pool; the I/O thread doesn't touch
+    // our state until they're done
+
+    private HELOPacket makeHELO(long heloNonce) throws ProtocolException {
+        // Usually made in advance, but the pool may have run dry
+        KeyPair tempKeys = KeyPairPool.getShared().take();
+
+        tempPubkey = tempKeys.publicKey;
+        tempPrivkey = tempKeys.secretKey;
+        logger.trace("Created short-term public key: {}", new Hexdump(tempPubkey));
+        logger.trace("Created short-term secret key: {}", new Hexdump(tempPrivkey));
+
+        return new HELOPacket(serverPubkey, tempPubkey, tempPrivkey, heloNonce);
+    }
+
+    private VOCHPacket makeVOCH(Packet pkt, long vochNonce) throws ProtocolException {
+        COOKPacket cook = new COOKPacket(pkt, serverPubkey, tempPrivkey);
+        byte[] tempServerPubkey = cook.getShortTermPubkey();
+        byte[] serverCookie = cook.getCookie();
+
+        logger.trace("Received server short-term public key: {}", new Hexdump(tempServerPubkey));
+        logger.trace("Received server cookie: {}", new Hexdump(serverCookie));
+
+        beforeNm = beforenm(tempServerPubkey, tempPrivkey);
+        // Nonce prefixes for MESG packets never change, precompute the keys
+        sendKey = SecretBox.subkey(beforeNm, CLIENT_M_PREFIX);
+        receiveKey = SecretBox.subkey(beforeNm, SERVER_M_PREFIX);
+
+        return new VOCHPacket(serverCookie, vochNonce, beforeNm, identity.getSharedKey(serverPubkey),
+                identity.getPublicKey(), tempPubkey, null);
+    }
+
+    private MESGPacket decrypt(Packet pkt) throws ProtocolException {
+        long start = System.nanoTime();
+        MESGPacket mesg = new MESGPacket(pkt, receiveKey);
+
+        connection.handleDecrypted(System.nanoTime() - start);
+        return mesg;
+    }
+
+    // Reserve a nonce and copy the data into a new packet. This is the only step, which
+    // needs to be done in order, encryption itself may happen in parallel.
+    private MESGPacket prepare(ByteBuffer data) throws ProtocolException {
+        // Check before taking a nonce, a nonce, taken in vain, would be skipped
+        if (data.remaining() > MESGPacket.MAX_PAYLOAD_SIZE) {
+            throw new ProtocolException("MESG payload too large: " + data.remaining());
+        }
+        return new MESGPacket(getNextNonce(), data);
+    }
+
+    private void encryptAndCommit(MESGPacket pkt, CompletableFuture<Void> promise) {
+        long start = System.nanoTime();
+
+        try {
+            pkt.seal(sendKey);
+        } catch (RuntimeException e) {
+            // Let the following packets go
+            sequencer.commit(pkt.getNonce(), null, null);
+            promise.completeExceptionally(e);
+            return;
+        }
+
+        connection.handleEncrypted(System.nanoTime() - start);
+        logger.trace("Sending packet: {}", pkt);
+        sequencer.commit(pkt.getNonce(), pkt.getData(), promise);
+    }
+
     private void handleREDY(REDYPacket pkt)
             throws IOException, InterruptedException, ExecutionException, TimeoutException {
         // REDY packet from DEVISmart cloud is empty, nothing to do with it.
@@ -551,32 +690,72 @@ public class MDGBinary extends EncryptedProtocol {
     }
 
     private long getNextNonce() {
-        return nonce++;
+        return nonce.getAndIncrement();
     }
 
     @Override
-    public ReadResult establish() throws IOException, InterruptedException, ExecutionException, TimeoutException {
+    public void beginEstablish() throws IOException, InterruptedException, ExecutionException, TimeoutException {
         // Initialize nonce counter
-        nonce = 0;
+        nonce.set(0);
+        // Whatever hasn't been sent to the old socket, is gone
+        sequencer.reset(0);
+        startPhase();
         // Start encrypted tunnel establishment by sending TELL packet
         sendPacket(new TELLPacket());
-
-        return super.establish();
     }
 
     @Override
     public void sendData(byte[] data) throws IOException, InterruptedException, ExecutionException, TimeoutException {
-        // We can be called by arbitrary number of threads, but we need to make sure
-        // that packets are sent in the order of their nonces. Our remote peer simply
-        // hangs up if we fail to do so
-        synchronized (sendLock) {
-            sendPacket(new MESGPacket(getNextNonce(), beforeNm, data));
+        sendData(ByteBuffer.wrap(data));
+    }
+
+    @Override
+    public void sendData(ByteBuffer data)
+            throws IOException, InterruptedException, ExecutionException, TimeoutException {
+        CompletableFuture<Void> promise = new CompletableFuture<Void>();
+
+        // Synchronous sending only waits for queueing, write errors are reported
+        // via onError(). Always encrypt right here, the caller is waiting anyway.
+        encryptAndCommit(prepare(data), promise);
+        if (promise.isCompletedExceptionally()) {
+            promise.get();
+        }
+    }
+
+    @Override
+    public CompletableFuture<Void> sendDataAsync(ByteBuffer data) {
+        MESGPacket pkt;
+
+        try {
+            pkt = prepare(data);
+        } catch (ProtocolException e) {
+            return Utils.failedFuture(e);
         }
+
+        CompletableFuture<Void> promise = new CompletableFuture<Void>();
+        Executor pool = connection.encryptionExecutor();
+
+        if (pool != null) {
+            try {
+                pool.execute(() -> encryptAndCommit(pkt, promise));
+                return promise;
+            } catch (RejectedExecutionException e) {
+                // The pool is shutting down, do it ourselves
+            }
+        }
+
+        encryptAndCommit(pkt, promise);
+        return promise;
+    }
+
+    @Override
+    public int getMaxDataSize() {
+        return MESGPacket.MAX_PAYLOAD_SIZE;
     }
 
     @Override
-    public InputStream getData() throws ProtocolException {
-        return new MESGPacket(detachBuffer(), beforeNm).getPayload();
+    public ByteBuffer getData() throws ProtocolException {
+        return decrypt(new Packet(detachBuffer(), 0, CMD_MESG)).getPayloadBuffer();
     }
 
     @Override
@@ -586,7 +765,7 @@ public class MDGBinary extends EncryptedProtocol {
 
     @Override
     public byte[] getMyPeerId() {
-        return clientPubkey;
+        return identity.getPublicKey();
     }
 
     @Override
@@ -2,11 +2,11 @@ package io.github.sonic_amiga.opensdg.protocol;
 
 import java.io.IOException;
 import java.nio.ByteBuffer;
-import java.nio.ByteOrder;
 import java.util.concurrent.ExecutionException;
 import java.util.concurrent.TimeoutException;
 
 import io.github.sonic_amiga.opensdg.java.Connection.ReadResult;
+import io.github.sonic_amiga.opensdg.java.MetricsRecorder.HandshakePhase;
 
 /**
  * This is a base class for all the "raw" socket protocols
@@ -18,9 +18,10 @@ import io.github.sonic_amiga.opensdg.java.Connection.ReadResult;
 public abstract class RawProtocol {
     protected IConnection connection;
 
-    private ByteBuffer receiveBuffer = null;
-    private short bytesLeft = 0;
-    private int bytesReceived = 0;
+    // Heap buffers allow to decrypt packets in place. They cost the same single
+    // copy on read as a direct buffer would, that copy is just done by the JDK.
+    private final FrameDecoder decoder = new FrameDecoder(BufferPool.get());
+    private long phaseStart;
 
     public RawProtocol(IConnection conn) {
         connection = conn;
@@ -30,7 +31,8 @@ public abstract class RawProtocol {
      * Synchronously receive a raw packet into buffer
      *
      * Keeps reading synchronously until the full packet has been read
-     * or EOF reached
+     * or EOF reached. If the packet has already been read ahead, returns
+     * immediately.
      *
      * @return Result code
      * @throws IOException if packet decoding fails
@@ -40,28 +42,30 @@ public abstract class RawProtocol {
      */
     public ReadResult receiveRawPacket()
             throws IOException, InterruptedException, ExecutionException, TimeoutException {
-        ReadResult ret;
-
-        do {
+        while (!decoder.hasFrame()) {
             int size;
 
             try {
                 size = connection.syncReceive(getBuffer());
             } catch (InterruptedException | ExecutionException | TimeoutException e) {
-                receiveBuffer = null;
+                handleError();
                 throw e;
             }
 
-            ret = onRawDataReceived(size);
-        } while (ret == ReadResult.CONTINUE);
+            if (onRawDataReceived(size) == ReadResult.EOF) {
+                return ReadResult.EOF;
+            }
+        }
 
-        return ret;
+        return ReadResult.DONE;
     }
 
     /**
      * Handle receiving raw data
      *
-     * Advances current read buffer pointer, performing reallocation when needed
+     * A single read may bring in many packets at once. If DONE is returned, the caller
+     * should keep calling {@link #onPacketReceived()} while {@link #hasPendingPacket()}
+     * returns true.
      *
      * @param size Number of bytes received
      * @return Result code
@@ -71,49 +75,103 @@ public abstract class RawProtocol {
             return ReadResult.EOF;
         }
 
-        bytesReceived += size;
-        bytesLeft -= size;
+        decoder.onRead(size);
+        return decoder.hasFrame() ? ReadResult.DONE : ReadResult.CONTINUE;
+    }
 
-        if (bytesLeft > 0) {
-            return ReadResult.CONTINUE;
-        }
+    /**
+     * Check if a fully received packet is waiting to be processed
+     *
+     * @return true if there is a packet
+     */
+    public boolean hasPendingPacket() {
+        return decoder.hasFrame();
+    }
 
-        if (bytesReceived == 2) { // Received 2 bytes, length of the buffer
-            receiveBuffer.order(ByteOrder.BIG_ENDIAN);
-            // Data size is bigendian
-            bytesLeft = receiveBuffer.getShort(0);
+    /**
+     * Get a buffer to read raw data into
+     *
+     * @return a {@link ByteBuffer}
+     */
+    public ByteBuffer getBuffer() {
+        return decoder.getReadBuffer();
+    }
 
-            // Reallocate our buffer with the new size
-            receiveBuffer = ByteBuffer.allocateDirect(2 + bytesLeft);
-            receiveBuffer.putShort(bytesLeft);
+    /**
+     * Take away the next fully received packet
+     *
+     * The returned buffer is only valid until the next read
+     *
+     * @return a buffer, containing the packet
+     */
+    protected ByteBuffer detachBuffer() {
+        ByteBuffer frame = decoder.nextFrame();
 
-            return ReadResult.CONTINUE;
+        if (connection != null) {
+            connection.handleFrameReceived(frame.remaining());
         }
+        return frame;
+    }
 
-        return ReadResult.DONE;
+    /**
+     * Take over data, which has been read ahead by another protocol on the same socket
+     *
+     * @param from a protocol, which has been running on the socket previously
+     */
+    public void takeOverBuffer(RawProtocol from) {
+        decoder.takeOver(from.decoder);
     }
 
-    public ByteBuffer getBuffer() {
-        if (receiveBuffer == null) {
-            // Start receiving a new packet.
-            // Every packet is prefixed with length, read it first
-            receiveBuffer = ByteBuffer.allocateDirect(2);
-            bytesReceived = 0;
-            bytesLeft = 2;
-        }
+    public void handleError() {
+        decoder.reset();
+    }
 
-        return receiveBuffer;
+    /**
+     * Give the read buffer back to the pool after an error
+     *
+     * {@link #handleError()} can't do it, because a read into the buffer may still be
+     * pending. The reader calls this when it knows that the last read on the socket has
+     * completed. Does nothing unless the buffer has been discarded by {@link #handleError()}.
+     *
+     * @param buffer a buffer, obtained from {@link #getBuffer()}
+     */
+    public void recycleBuffer(ByteBuffer buffer) {
+        decoder.recycle(buffer);
     }
 
-    protected ByteBuffer detachBuffer() {
-        ByteBuffer buffer = receiveBuffer;
+    /**
+     * Start timing a handshake step
+     */
+    protected void startPhase() {
+        phaseStart = System.nanoTime();
+    }
 
-        receiveBuffer = null;
-        return buffer;
+    /**
+     * Report completion of a handshake step and start timing the next one
+     *
+     * @param phase the completed step
+     */
+    protected void endPhase(HandshakePhase phase) {
+        long now = System.nanoTime();
+
+        connection.handleHandshakePhase(phase, now - phaseStart);
+        phaseStart = now;
     }
 
-    public void handleError() {
-        receiveBuffer = null;
+    /**
+     * Start establishing this protocol
+     *
+     * Sends the initial packet, if the protocol has one. The rest of the handshake
+     * is driven by {@link #onPacketReceived()}, either synchronously by {@link #establish()}
+     * or asynchronously by the connection's read handler. The default implementation
+     * does nothing.
+     *
+     * @throws IOException if protocol fails
+     * @throws ExecutionException if the underlying I/O threw an exception
+     * @throws InterruptedException if the current thread was interrupted
+     * @throws TimeoutException if the operation has timed out
+     */
+    public void beginEstablish() throws IOException, InterruptedException, ExecutionException, TimeoutException {
     }
 
     /**
@@ -128,9 +186,10 @@ public abstract class RawProtocol {
      * @throws TimeoutException if the operation has timed out
      */
     public ReadResult establish() throws IOException, InterruptedException, ExecutionException, TimeoutException {
-
         ReadResult ret;
 
+        beginEstablish();
+
         do {
             ret = receiveRawPacket();
 
@@ -0,0 +1,126 @@
+package io.github.sonic_amiga.opensdg.protocol;
+
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.util.Iterator;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Releases encrypted frames to the socket in order of their nonces
+ *
+ * The peer hangs up if nonces arrive out of order, but there's no need to hold
+ * a lock while encrypting. A sender reserves a nonce, encrypts the frame on whatever
+ * thread it likes, then commits it here. A frame, which is ready too early, waits
+ * for its predecessors; whoever fills the gap releases all the consecutive frames,
+ * waiting behind it. Like {@link io.github.sonic_amiga.opensdg.java.Connection}'s
+ * write queue, only one thread releases at a time, others just leave their frames.
+ *
+ * @author Pavel Fedin
+ */
+class SendSequencer {
+    /**
+     * Where released frames go
+     */
+    interface Sink {
+        CompletableFuture<Void> send(ByteBuffer frame);
+    }
+
+    private static class Frame {
+        final ByteBuffer data;
+        final CompletableFuture<Void> promise;
+
+        Frame(ByteBuffer data, CompletableFuture<Void> promise) {
+            this.data = data;
+            this.promise = promise;
+        }
+    }
+
+    private final Sink sink;
+    private final ConcurrentHashMap<Long, Frame> ready = new ConcurrentHashMap<Long, Frame>();
+    private final AtomicBoolean releasing = new AtomicBoolean();
+    // The nonce to release next; only modified by the releasing thread
+    private volatile long next;
+
+    SendSequencer(Sink sink) {
+        this.sink = sink;
+    }
+
+    /**
+     * Start over, e. g. for a new connection
+     *
+     * Frames, still waiting, are failed. Must not be called concurrently
+     * with {@link #commit(long, ByteBuffer, CompletableFuture)}.
+     *
+     * @param first the nonce to release first
+     */
+    void reset(long first) {
+        next = first;
+        for (Iterator<Frame> it = ready.values().iterator(); it.hasNext();) {
+            Frame f = it.next();
+
+            it.remove();
+            if (f.promise != null) {
+                f.promise.completeExceptionally(new ClosedChannelException());
+            }
+        }
+    }
+
+    /**
+     * Hand over an encrypted frame
+     *
+     * @param nonce the frame's nonce, reserved before encryption
+     * @param frame the frame or null if encryption has failed; the nonce is then skipped,
+     *            otherwise all the following frames would hang forever
+     * @param promise completed when the frame has been written or null
+     */
+    void commit(long nonce, ByteBuffer frame, CompletableFuture<Void> promise) {
+        if (nonce < next) {
+            // Reserved before a reset, the connection is gone
+            if (promise != null) {
+                promise.completeExceptionally(new ClosedChannelException());
+            }
+            return;
+        }
+
+        ready.put(nonce, new Frame(frame, promise));
+
+        while (releasing.compareAndSet(false, true)) {
+            try {
+                release();
+            } finally {
+                releasing.set(false);
+            }
+            // Somebody could have committed the next frame after we've looked for it,
+            // but before we've dropped the flag, then it's up to us
+            if (!ready.containsKey(next)) {
+                break;
+            }
+        }
+    }
+
+    private void release() {
+        Frame f;
+
+        while ((f = ready.remove(next)) != null) {
+            next++;
+            if (f.data == null) {
+                continue;
+            }
+
+            CompletableFuture<Void> written = sink.send(f.data);
+            CompletableFuture<Void> promise = f.promise;
+
+            if (promise != null) {
+                written.whenComplete((v, e) -> {
+                    if (e != null) {
+                        promise.completeExceptionally(e);
+                    } else {
+                        promise.complete(null);
+                    }
+                });
+            }
+        }
+    }
+}
@@ -0,0 +1,26 @@
+package io.github.sonic_amiga.opensdg.internal;
+
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * Thread utilities, which depend on Java version
+ *
+ * This is the Java 21+ version, used from the multi-release part of the jar.
+ * Both versions must have the same public methods.
+ *
+ * Please do not use from outside of the library!
+ *
+ * @author Pavel Fedin
+ */
+public class Threads {
+    /**
+     * Create an executor, running every task in a new virtual thread
+     *
+     * @param name thread name prefix
+     * @return an {@link ExecutorService}
+     */
+    public static ExecutorService newThreadPerTaskExecutor(String name) {
+        return Executors.newThreadPerTaskExecutor(Thread.ofVirtual().name(name + ".", 1).factory());
+    }
+}
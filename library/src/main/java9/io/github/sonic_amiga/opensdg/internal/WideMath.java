@@ -0,0 +1,26 @@
+package io.github.sonic_amiga.opensdg.internal;
+
+/**
+ * Arithmetic utilities, which depend on Java version
+ *
+ * This is the Java 9+ version, used from the multi-release part of the jar.
+ * Both versions must have the same public methods.
+ *
+ * Please do not use from outside of the library!
+ *
+ * @author Pavel Fedin
+ */
+public class WideMath {
+    /**
+     * Upper 64 bits of a 128-bit product of two signed longs
+     *
+     * An intrinsic, a single instruction on x86-64 and aarch64
+     *
+     * @param x first factor
+     * @param y second factor
+     * @return upper half of x * y
+     */
+    public static long multiplyHigh(long x, long y) {
+        return Math.multiplyHigh(x, y);
+    }
+}
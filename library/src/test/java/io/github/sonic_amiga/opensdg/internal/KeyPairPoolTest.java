@@ -0,0 +1,46 @@
+package io.github.sonic_amiga.opensdg.internal;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Set;
+
+import org.junit.jupiter.api.Test;
+
+import com.neilalexander.jnacl.crypto.curve25519;
+
+class KeyPairPoolTest {
+    private static final int SIZE = 8;
+
+    private static void checkKeyPair(KeyPairPool.KeyPair kp) {
+        byte[] expected = new byte[Utils.SCALARMULT_BYTES];
+
+        curve25519.crypto_scalarmult_base(expected, kp.secretKey);
+        assertArrayEquals(expected, kp.publicKey);
+    }
+
+    @Test
+    void testTake() throws Exception {
+        KeyPairPool pool = new KeyPairPool(SIZE);
+        Set<String> seen = new HashSet<String>();
+
+        // The pool starts empty, the first key pair is made in place
+        assertEquals(0, pool.available());
+        checkKeyPair(pool.take());
+
+        // Gets filled up in background
+        for (int i = 0; i < 500 && pool.available() < SIZE; i++) {
+            Thread.sleep(10);
+        }
+        assertEquals(SIZE, pool.available());
+
+        // More than the pool holds, the rest is made in place or refilled
+        for (int i = 0; i < SIZE * 3; i++) {
+            KeyPairPool.KeyPair kp = pool.take();
+
+            checkKeyPair(kp);
+            assertTrue(seen.add(Arrays.toString(kp.secretKey)), "A key pair was given out twice");
+        }
+    }
+}
@@ -0,0 +1,77 @@
+package io.github.sonic_amiga.opensdg.internal;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+import java.util.Arrays;
+import java.util.Random;
+
+import org.junit.jupiter.api.Test;
+
+import com.neilalexander.jnacl.crypto.curve25519xsalsa20poly1305;
+
+class SecretBoxTest {
+    private static final int ZEROBYTES = curve25519xsalsa20poly1305.crypto_secretbox_ZEROBYTES;
+    private static final int BOXZEROBYTES = curve25519xsalsa20poly1305.crypto_secretbox_BOXZEROBYTES;
+
+    private final Random rnd = new Random(12345);
+
+    private byte[] random(int size) {
+        byte[] data = new byte[size];
+
+        rnd.nextBytes(data);
+        return data;
+    }
+
+    @Test
+    void testCompatibility() {
+        for (int length = 0; length < 300; length++) {
+            byte[] key = random(SecretBox.KEY_SIZE);
+            byte[] nonce = random(24);
+            byte[] msg = random(length);
+            long counter = 0;
+
+            for (int i = 16; i < 24; i++) {
+                counter = (counter << 8) | (nonce[i] & 0xFF);
+            }
+
+            // Reference encryption with jnacl
+            byte[] m = new byte[ZEROBYTES + length];
+            byte[] c = new byte[ZEROBYTES + length];
+
+            System.arraycopy(msg, 0, m, ZEROBYTES, length);
+            assertEquals(0, curve25519xsalsa20poly1305.crypto_box_afternm(c, m, nonce, key));
+
+            // Our encryption, at some offset
+            int[] subkey = SecretBox.subkey(key, Arrays.copyOf(nonce, SecretBox.PREFIX_SIZE));
+            int offset = 7;
+            byte[] buf = new byte[offset + SecretBox.TAG_SIZE + length + 5];
+
+            System.arraycopy(msg, 0, buf, offset + SecretBox.TAG_SIZE, length);
+            SecretBox.seal(subkey, counter, buf, offset, length);
+
+            assertArrayEquals(Arrays.copyOfRange(c, BOXZEROBYTES, c.length),
+                    Arrays.copyOfRange(buf, offset, offset + SecretBox.TAG_SIZE + length), "length " + length);
+
+            // Round trip
+            assertTrue(SecretBox.open(subkey, counter, buf, offset, length));
+            assertArrayEquals(msg, Arrays.copyOfRange(buf, offset + SecretBox.TAG_SIZE, offset + SecretBox.TAG_SIZE + length));
+        }
+    }
+
+    @Test
+    void testTamper() {
+        byte[] key = random(SecretBox.KEY_SIZE);
+        int[] subkey = SecretBox.subkey(key, random(SecretBox.PREFIX_SIZE));
+        byte[] msg = random(100);
+        byte[] buf = new byte[SecretBox.TAG_SIZE + msg.length];
+
+        System.arraycopy(msg, 0, buf, SecretBox.TAG_SIZE, msg.length);
+        SecretBox.seal(subkey, 42, buf, 0, msg.length);
+
+        byte[] tampered = buf.clone();
+        tampered[SecretBox.TAG_SIZE + 50] ^= 1;
+        assertFalse(SecretBox.open(subkey, 42, tampered, 0, msg.length));
+        // Wrong nonce
+        assertFalse(SecretBox.open(subkey, 43, buf.clone(), 0, msg.length));
+    }
+}
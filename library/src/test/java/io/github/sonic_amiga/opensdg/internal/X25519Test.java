@@ -0,0 +1,111 @@
+package io.github.sonic_amiga.opensdg.internal;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+import java.util.Arrays;
+import java.util.Random;
+
+import org.junit.jupiter.api.Test;
+
+import com.neilalexander.jnacl.crypto.curve25519;
+import com.neilalexander.jnacl.crypto.curve25519xsalsa20poly1305;
+
+class X25519Test {
+    private static void checkBase(byte[] n) {
+        byte[] expected = new byte[X25519.BYTES];
+        byte[] actual = new byte[X25519.BYTES];
+        byte[] copy = n.clone();
+
+        curve25519.crypto_scalarmult_base(expected, n);
+        X25519.scalarmultBase(actual, n);
+        assertArrayEquals(expected, actual, () -> "Scalar " + Arrays.toString(n));
+        assertArrayEquals(copy, n, "The scalar must not be modified");
+    }
+
+    @Test
+    void testScalarmultBase() {
+        // Fixed seed, so that a failure can be reproduced
+        Random random = new Random(25519);
+        byte[] n = new byte[X25519.BYTES];
+
+        for (int i = 0; i < 500; i++) {
+            random.nextBytes(n);
+            checkBase(n);
+        }
+
+        // Clamping makes these meaningful too
+        Arrays.fill(n, (byte) 0);
+        checkBase(n);
+        Arrays.fill(n, (byte) 0xFF);
+        checkBase(n);
+        for (int i = 0; i < X25519.BYTES; i++) {
+            Arrays.fill(n, (byte) 0);
+            n[i] = (byte) 0x88;
+            checkBase(n);
+        }
+    }
+
+    private static void check(byte[] n, byte[] p) {
+        byte[] expected = new byte[X25519.BYTES];
+        byte[] actual = new byte[X25519.BYTES];
+
+        curve25519.crypto_scalarmult(expected, n, p);
+        X25519.scalarmult(actual, n, p);
+        assertArrayEquals(expected, actual, () -> "Scalar " + Arrays.toString(n) + " point " + Arrays.toString(p));
+    }
+
+    @Test
+    void testScalarmult() {
+        Random random = new Random(7748);
+        byte[] n = new byte[X25519.BYTES];
+        byte[] p = new byte[X25519.BYTES];
+
+        // Random bytes, so half of the points have the top bit set, which jnacl doesn't ignore
+        for (int i = 0; i < 200; i++) {
+            random.nextBytes(n);
+            random.nextBytes(p);
+            check(n, p);
+        }
+
+        // Real public keys
+        for (int i = 0; i < 50; i++) {
+            random.nextBytes(n);
+            random.nextBytes(p);
+            check(n, Utils.crypto_scalarmult_base(p));
+        }
+
+        // Zero, one, p - 1, p, p + 1, 2^256 - 1
+        random.nextBytes(n);
+        Arrays.fill(p, (byte) 0);
+        check(n, p);
+        p[0] = 1;
+        check(n, p);
+        Arrays.fill(p, (byte) 0xFF);
+        p[31] = 0x7F;
+        p[0] = (byte) 0xEC;
+        check(n, p);
+        p[0] = (byte) 0xED;
+        check(n, p);
+        p[0] = (byte) 0xEE;
+        check(n, p);
+        Arrays.fill(p, (byte) 0xFF);
+        check(n, p);
+    }
+
+    @Test
+    void testBeforenm() {
+        Random random = new Random(1305);
+        byte[] sk = new byte[X25519.BYTES];
+        byte[] pk = new byte[X25519.BYTES];
+        byte[] expected = new byte[curve25519xsalsa20poly1305.crypto_secretbox_BEFORENMBYTES];
+        byte[] actual = new byte[curve25519xsalsa20poly1305.crypto_secretbox_BEFORENMBYTES];
+
+        for (int i = 0; i < 20; i++) {
+            random.nextBytes(sk);
+            random.nextBytes(pk);
+            curve25519xsalsa20poly1305.crypto_box_beforenm(expected, pk, sk);
+            Utils.crypto_box_beforenm(actual, pk, sk);
+            assertArrayEquals(expected, actual);
+        }
+    }
+}
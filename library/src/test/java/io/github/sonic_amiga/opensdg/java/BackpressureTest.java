@@ -0,0 +1,159 @@
+package io.github.sonic_amiga.opensdg.java;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.StandardSocketOptions;
+import java.nio.ByteBuffer;
+import java.nio.channels.AsynchronousServerSocketChannel;
+import java.nio.channels.AsynchronousSocketChannel;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+import org.junit.jupiter.api.Test;
+
+import io.github.sonic_amiga.opensdg.java.Connection.OverflowPolicy;
+
+class BackpressureTest {
+    private static final int LOW = 64 * 1024;
+    private static final int HIGH = 256 * 1024;
+    private static final int PACKET_SIZE = 16 * 1024;
+    private static final int SOCKET_BUFFER = 64 * 1024;
+
+    private static class TestConnection extends PeerConnection {
+        final BlockingQueue<Boolean> events = new LinkedBlockingQueue<Boolean>();
+
+        @Override
+        protected void onWritabilityChanged(boolean writable) {
+            events.add(writable);
+        }
+    }
+
+    private interface Body {
+        void run(TestConnection conn, AsynchronousSocketChannel peer) throws Exception;
+    }
+
+    // A connection to a peer, which reads nothing until told to
+    private static void withStalledPeer(OverflowPolicy policy, Body body) throws Exception {
+        try (AsynchronousServerSocketChannel server = AsynchronousServerSocketChannel.open()) {
+            // Small socket buffers, so that they fill up quickly; accepted sockets inherit this
+            server.setOption(StandardSocketOptions.SO_RCVBUF, SOCKET_BUFFER);
+            server.bind(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0));
+
+            Future<AsynchronousSocketChannel> accepted = server.accept();
+            TestConnection conn = new TestConnection();
+
+            // There's no tunnel, so no key to choose a loop by
+            conn.setLoadBalancing(true);
+
+            AsynchronousSocketChannel ch = conn.createSocket();
+
+            ch.setOption(StandardSocketOptions.SO_SNDBUF, SOCKET_BUFFER);
+
+            conn.setWriteBufferWaterMarks(LOW, HIGH);
+            conn.setOverflowPolicy(policy);
+            ch.connect(server.getLocalAddress()).get(5, TimeUnit.SECONDS);
+            conn.adoptSocket(ch);
+            // So that close() cleans up
+            conn.setState(Connection.State.CONNECTED);
+
+            try (AsynchronousSocketChannel peer = accepted.get(5, TimeUnit.SECONDS)) {
+                body.run(conn, peer);
+            } finally {
+                conn.close();
+            }
+        }
+    }
+
+    // Send until the queue overflows. Socket buffers have to fill up first, and the
+    // system may still enlarge them, so we don't know how much it takes.
+    private static List<CompletableFuture<Void>> fill(TestConnection conn) throws InterruptedException {
+        List<CompletableFuture<Void>> sent = new ArrayList<CompletableFuture<Void>>();
+
+        for (int i = 0; i < 100 * 1024 * 1024 / PACKET_SIZE; i++) {
+            if (conn.isWritable()) {
+                sent.add(conn.doSendRawDataAsync(ByteBuffer.allocate(PACKET_SIZE)));
+            } else {
+                // Make sure it's stuck for real
+                Thread.sleep(100);
+                if (!conn.isWritable()) {
+                    break;
+                }
+            }
+        }
+
+        assertFalse(conn.isWritable());
+        return sent;
+    }
+
+    private static void drain(TestConnection conn, AsynchronousSocketChannel peer) throws Exception {
+        ByteBuffer buffer = ByteBuffer.allocate(1024 * 1024);
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(10);
+
+        Future<Integer> read = null;
+
+        while (conn.getPendingWriteBytes() != 0) {
+            assertTrue(System.nanoTime() < deadline, "Outbound queue doesn't drain");
+            if (read == null) {
+                read = peer.read(buffer);
+            }
+            try {
+                read.get(100, TimeUnit.MILLISECONDS);
+                read = null;
+                buffer.clear();
+            } catch (TimeoutException e) {
+                // Completion of the last write may come a bit later than we read its data
+            }
+        }
+    }
+
+    @Test
+    void testWritability() throws Exception {
+        withStalledPeer(OverflowPolicy.FAIL, (conn, peer) -> {
+            fill(conn);
+            assertEquals(Boolean.FALSE, conn.events.poll(5, TimeUnit.SECONDS));
+            assertThrows(WriteBufferFullException.class, conn::applyOverflowPolicy);
+
+            // Let the data flow, the queue must drain
+            drain(conn, peer);
+
+            assertTrue(conn.isWritable());
+            assertEquals(Boolean.TRUE, conn.events.poll(5, TimeUnit.SECONDS));
+            conn.applyOverflowPolicy();
+        });
+    }
+
+    @Test
+    void testDropOldest() throws Exception {
+        withStalledPeer(OverflowPolicy.DROP_OLDEST, (conn, peer) -> {
+            List<CompletableFuture<Void>> sent = fill(conn);
+            long pending = conn.getPendingWriteBytes();
+
+            conn.applyOverflowPolicy();
+            assertTrue(conn.getPendingWriteBytes() < pending);
+
+            // Packets, which are being written, can't be dropped, the rest must go through
+            drain(conn, peer);
+
+            int dropped = 0;
+
+            for (CompletableFuture<Void> f : sent) {
+                try {
+                    f.get(5, TimeUnit.SECONDS);
+                } catch (ExecutionException e) {
+                    assertTrue(e.getCause() instanceof WriteBufferFullException);
+                    dropped++;
+                }
+            }
+            assertTrue(dropped > 0);
+        });
+    }
+}
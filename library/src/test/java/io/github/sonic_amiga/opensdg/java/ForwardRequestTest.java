@@ -0,0 +1,61 @@
+package io.github.sonic_amiga.opensdg.java;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+import java.nio.channels.ClosedChannelException;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+import org.junit.jupiter.api.Test;
+
+import io.github.sonic_amiga.opensdg.protocol.generated.ControlProtocol.PeerReply;
+
+class ForwardRequestTest {
+
+    @Test
+    void testReply() throws Exception {
+        ForwardRequest request = new ForwardRequest(5);
+        PeerReply reply = PeerReply.newBuilder().setId(5).setResult(0).build();
+
+        request.reportDone(reply);
+        assertSame(reply, request.get(1, TimeUnit.SECONDS));
+    }
+
+    @Test
+    void testTimeout() {
+        ForwardRequest request = new ForwardRequest(0);
+        long start = System.nanoTime();
+
+        // 200 ms must not be mistaken for 200 seconds or 0.2 milliseconds
+        assertThrows(TimeoutException.class, () -> request.get(200, TimeUnit.MILLISECONDS));
+
+        long elapsed = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+        assertTrue(elapsed >= 150 && elapsed < 5000, "Waited for " + elapsed + " ms");
+        // A timed out request is abandoned
+        assertTrue(request.isCancelled());
+    }
+
+    @Test
+    void testError() {
+        ForwardRequest request = new ForwardRequest(1);
+
+        request.reportError(new ClosedChannelException());
+
+        ExecutionException e = assertThrows(ExecutionException.class, () -> request.get());
+        assertEquals("Grid is not connected", e.getMessage());
+        assertTrue(e.getCause() instanceof ClosedChannelException);
+    }
+
+    @Test
+    void testCancel() {
+        ForwardRequest request = new ForwardRequest(2);
+
+        assertTrue(request.cancel(false));
+        assertThrows(CancellationException.class, () -> request.get());
+        // A late reply is ignored
+        request.reportDone(PeerReply.newBuilder().setId(2).setResult(0).build());
+        assertTrue(request.isCancelled());
+    }
+}
@@ -0,0 +1,102 @@
+package io.github.sonic_amiga.opensdg.java;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+
+class HashedWheelTimerTest {
+    // A tiny wheel, so that delays below span many revolutions
+    private final HashedWheelTimer timer = new HashedWheelTimer("Test timer", 10, TimeUnit.MILLISECONDS, 4);
+
+    @AfterEach
+    void stopTimer() {
+        timer.stop();
+    }
+
+    private Timer.Timeout scheduleTimed(CountDownLatch latch, AtomicLong elapsed, long delay) {
+        long start = System.nanoTime();
+
+        return timer.schedule(() -> {
+            elapsed.set(TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start));
+            latch.countDown();
+        }, delay, TimeUnit.MILLISECONDS);
+    }
+
+    @Test
+    void testExpiry() throws Exception {
+        CountDownLatch latch = new CountDownLatch(3);
+        AtomicLong shortDelay = new AtomicLong();
+        AtomicLong longDelay = new AtomicLong();
+        AtomicLong late = new AtomicLong();
+
+        scheduleTimed(latch, shortDelay, 20);
+        scheduleTimed(latch, longDelay, 250);
+        // Already overdue, must run on the next tick
+        scheduleTimed(latch, late, -100);
+
+        assertTrue(latch.await(5, TimeUnit.SECONDS));
+        assertTrue(shortDelay.get() >= 20, "Fired after " + shortDelay.get() + " ms");
+        assertTrue(longDelay.get() >= 250, "Fired after " + longDelay.get() + " ms");
+        assertTrue(late.get() < 1000, "Fired after " + late.get() + " ms");
+    }
+
+    @Test
+    void testCancel() throws Exception {
+        AtomicBoolean fired = new AtomicBoolean();
+        Timer.Timeout cancelled = timer.schedule(() -> fired.set(true), 50, TimeUnit.MILLISECONDS);
+        CountDownLatch latch = new CountDownLatch(1);
+        Timer.Timeout expired = scheduleTimed(latch, new AtomicLong(), 100);
+
+        assertTrue(cancelled.cancel());
+        assertFalse(cancelled.cancel());
+
+        assertTrue(latch.await(5, TimeUnit.SECONDS));
+        assertFalse(fired.get());
+        // Too late to cancel
+        assertFalse(expired.cancel());
+    }
+
+    @Test
+    void testWakeup() throws Exception {
+        // A full-size wheel, so that the timer thread really sleeps for long
+        HashedWheelTimer sleepy = new HashedWheelTimer("Sleepy timer", 10, TimeUnit.MILLISECONDS, 1024);
+
+        try {
+            CountDownLatch first = new CountDownLatch(1);
+            CountDownLatch second = new CountDownLatch(1);
+            AtomicLong firstDelay = new AtomicLong();
+            AtomicLong secondDelay = new AtomicLong();
+
+            // Parked on the empty wheel
+            Thread.sleep(50);
+            long start = System.nanoTime();
+            sleepy.schedule(() -> {
+                firstDelay.set(TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start));
+                first.countDown();
+            }, 20, TimeUnit.MILLISECONDS);
+            assertTrue(first.await(1, TimeUnit.SECONDS));
+            assertTrue(firstDelay.get() < 500, "Fired after " + firstDelay.get() + " ms");
+
+            // Sleeping until a far timeout; an earlier one must wake the thread up
+            Timer.Timeout far = sleepy.schedule(() -> {
+            }, 5, TimeUnit.SECONDS);
+            Thread.sleep(50);
+            long start2 = System.nanoTime();
+            sleepy.schedule(() -> {
+                secondDelay.set(TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start2));
+                second.countDown();
+            }, 20, TimeUnit.MILLISECONDS);
+            assertTrue(second.await(1, TimeUnit.SECONDS));
+            assertTrue(secondDelay.get() >= 20, "Fired after " + secondDelay.get() + " ms");
+            assertTrue(far.cancel());
+        } finally {
+            sleepy.stop();
+        }
+    }
+}
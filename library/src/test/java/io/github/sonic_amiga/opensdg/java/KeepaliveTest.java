@@ -0,0 +1,80 @@
+package io.github.sonic_amiga.opensdg.java;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+import java.util.concurrent.TimeUnit;
+
+import org.junit.jupiter.api.Test;
+
+class KeepaliveTest {
+    private static final long BASE = TimeUnit.SECONDS.toNanos(30);
+    private static final long RTT = TimeUnit.MILLISECONDS.toNanos(40);
+
+    @Test
+    void testStretch() {
+        Keepalive keepalive = new Keepalive(30);
+
+        assertEquals(BASE, keepalive.getInterval());
+
+        // A stable link goes up to the maximum and stays there
+        for (int i = 0; i < 20; i++) {
+            keepalive.onRoundTrip(RTT + (i % 2) * TimeUnit.MILLISECONDS.toNanos(5));
+            assertTrue(keepalive.getInterval() <= Keepalive.MAX_INTERVAL);
+        }
+        assertEquals(Keepalive.MAX_INTERVAL, keepalive.getInterval());
+    }
+
+    @Test
+    void testJitter() {
+        Keepalive keepalive = new Keepalive(30);
+
+        for (int i = 0; i < 20; i++) {
+            keepalive.onRoundTrip(RTT);
+        }
+
+        // A sudden one second delay is suspicious
+        keepalive.onRoundTrip(TimeUnit.SECONDS.toNanos(1));
+        assertEquals(BASE, keepalive.getInterval());
+
+        // Back to normal, but the variation has to settle down first
+        keepalive.onRoundTrip(RTT);
+        assertEquals(BASE, keepalive.getInterval());
+        for (int i = 0; i < 20; i++) {
+            keepalive.onRoundTrip(RTT);
+        }
+        assertEquals(Keepalive.MAX_INTERVAL, keepalive.getInterval());
+    }
+
+    @Test
+    void testFixed() {
+        Keepalive keepalive = new Keepalive(30);
+
+        keepalive.setAdaptive(false);
+        for (int i = 0; i < 20; i++) {
+            keepalive.onRoundTrip(RTT);
+        }
+        assertEquals(BASE, keepalive.getInterval());
+        assertEquals(RTT, keepalive.getSmoothedRoundTrip());
+    }
+
+    @Test
+    void testHistogram() {
+        LatencyHistogram histogram = new LatencyHistogram();
+
+        assertEquals(0, histogram.getPercentile(50));
+
+        for (int i = 1; i <= 100; i++) {
+            histogram.record(TimeUnit.MILLISECONDS.toNanos(i));
+        }
+
+        long p50 = histogram.getPercentile(50);
+        long p99 = histogram.getPercentile(99);
+
+        assertEquals(100, histogram.getCount());
+        assertEquals(TimeUnit.MILLISECONDS.toNanos(1), histogram.getMin());
+        assertEquals(TimeUnit.MILLISECONDS.toNanos(100), histogram.getPercentile(100));
+        // Buckets are within 25% of the value
+        assertTrue(p50 >= TimeUnit.MILLISECONDS.toNanos(50) && p50 <= TimeUnit.MILLISECONDS.toNanos(63), "p50 " + p50);
+        assertTrue(p99 >= TimeUnit.MILLISECONDS.toNanos(99) && p99 <= TimeUnit.MILLISECONDS.toNanos(100), "p99 " + p99);
+    }
+}
@@ -0,0 +1,68 @@
+package io.github.sonic_amiga.opensdg.java;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+import java.net.ProtocolException;
+import java.nio.ByteBuffer;
+import java.util.Random;
+
+import org.junit.jupiter.api.Test;
+
+class MessageAssemblerTest {
+    private static ByteBuffer encode(byte[] body) {
+        ByteBuffer data = ByteBuffer.allocate(MessageAssembler.HEADER_SIZE + body.length);
+
+        data.putInt(body.length);
+        data.put(body);
+        data.flip();
+        return data;
+    }
+
+    private static ByteBuffer fragment(ByteBuffer data, int size) {
+        ByteBuffer f = data.duplicate();
+
+        f.limit(f.position() + Math.min(size, data.remaining()));
+        data.position(f.limit());
+        return f.asReadOnlyBuffer();
+    }
+
+    @Test
+    void testReassembly() throws Exception {
+        MessageAssembler assembler = new MessageAssembler(1000000);
+        byte[] body = new byte[200000];
+
+        new Random(1).nextBytes(body);
+
+        ByteBuffer data = encode(body);
+        ByteBuffer message = null;
+
+        // Split the header too, for a good measure
+        assertNull(assembler.add(fragment(data, 2)));
+        while (data.hasRemaining()) {
+            assertNull(message);
+            message = assembler.add(fragment(data, 65000));
+        }
+
+        assertNotNull(message);
+        assertEquals(ByteBuffer.wrap(body), message);
+
+        // Empty messages are fine too
+        assertEquals(0, assembler.add(encode(new byte[0])).remaining());
+    }
+
+    @Test
+    void testErrors() throws Exception {
+        MessageAssembler assembler = new MessageAssembler(100);
+
+        assertThrows(ProtocolException.class, () -> assembler.add(encode(new byte[101])));
+
+        assembler.reset();
+        ByteBuffer data = encode(new byte[10]);
+        ByteBuffer withGarbage = ByteBuffer.allocate(data.remaining() + 1);
+
+        withGarbage.put(data);
+        withGarbage.put((byte) 0);
+        withGarbage.flip();
+        assertThrows(ProtocolException.class, () -> assembler.add(withGarbage));
+    }
+}
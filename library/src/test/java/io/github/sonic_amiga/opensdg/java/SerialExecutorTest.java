@@ -0,0 +1,85 @@
+package io.github.sonic_amiga.opensdg.java;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+
+class SerialExecutorTest {
+    private final ExecutorService pool = Executors.newFixedThreadPool(4);
+
+    @AfterEach
+    void stopPool() {
+        pool.shutdownNow();
+    }
+
+    @Test
+    void testOrder() throws Exception {
+        final int count = 1000;
+        AtomicInteger done = new AtomicInteger();
+        SerialExecutor executor = new SerialExecutor(pool, done::incrementAndGet);
+        List<Integer> order = Collections.synchronizedList(new ArrayList<Integer>());
+        AtomicInteger running = new AtomicInteger();
+        AtomicInteger overlaps = new AtomicInteger();
+        CountDownLatch latch = new CountDownLatch(count);
+
+        for (int i = 0; i < count; i++) {
+            final int n = i;
+
+            executor.execute(() -> {
+                if (running.incrementAndGet() != 1) {
+                    overlaps.incrementAndGet();
+                }
+                order.add(n);
+                running.decrementAndGet();
+                latch.countDown();
+            });
+        }
+
+        assertTrue(latch.await(5, TimeUnit.SECONDS));
+        assertEquals(0, overlaps.get());
+        for (int i = 0; i < count; i++) {
+            assertEquals(i, order.get(i));
+        }
+        // onTaskDone runs after the task, so it may lag a little behind the latch
+        pool.shutdown();
+        assertTrue(pool.awaitTermination(5, TimeUnit.SECONDS));
+        assertEquals(count, done.get());
+        assertEquals(0, executor.size());
+    }
+
+    @Test
+    void testSize() throws Exception {
+        CountDownLatch block = new CountDownLatch(1);
+        CountDownLatch latch = new CountDownLatch(3);
+        SerialExecutor executor = new SerialExecutor(pool, latch::countDown);
+
+        executor.execute(() -> {
+            try {
+                block.await();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        });
+        executor.execute(() -> {
+            throw new IllegalStateException("A broken callback");
+        });
+        executor.execute(() -> {
+        });
+
+        assertEquals(3, executor.size());
+        block.countDown();
+        // A throwing task doesn't stop the queue
+        assertTrue(latch.await(5, TimeUnit.SECONDS));
+        assertEquals(0, executor.size());
+    }
+}
@@ -0,0 +1,151 @@
+package io.github.sonic_amiga.opensdg.protocol;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+
+import org.junit.jupiter.api.Test;
+
+class FrameDecoderTest {
+
+    private static byte[] makeFrame(int payloadSize, int seed) {
+        byte[] frame = new byte[2 + payloadSize];
+
+        frame[0] = (byte) (payloadSize >> 8);
+        frame[1] = (byte) payloadSize;
+        for (int i = 0; i < payloadSize; i++) {
+            frame[2 + i] = (byte) (seed + i);
+        }
+
+        return frame;
+    }
+
+    // Feed the given stream to the decoder in chunks of the given size,
+    // collecting all the decoded frames
+    private static ArrayList<byte[]> decode(byte[] stream, int chunkSize) {
+        FrameDecoder decoder = new FrameDecoder(new BufferPool(65536));
+        ArrayList<byte[]> frames = new ArrayList<byte[]>();
+        int offset = 0;
+
+        while (offset < stream.length) {
+            ByteBuffer buffer = decoder.getReadBuffer();
+            int size = Math.min(Math.min(chunkSize, buffer.remaining()), stream.length - offset);
+
+            buffer.put(stream, offset, size);
+            offset += size;
+            decoder.onRead(size);
+
+            while (decoder.hasFrame()) {
+                ByteBuffer frame = decoder.nextFrame();
+                byte[] data = new byte[frame.remaining()];
+
+                frame.get(data);
+                frames.add(data);
+            }
+        }
+
+        return frames;
+    }
+
+    private static void check(int[] sizes, int chunkSize) {
+        ArrayList<byte[]> expected = new ArrayList<byte[]>();
+        int total = 0;
+
+        for (int i = 0; i < sizes.length; i++) {
+            byte[] frame = makeFrame(sizes[i], i);
+
+            expected.add(frame);
+            total += frame.length;
+        }
+
+        byte[] stream = new byte[total];
+        int offset = 0;
+
+        for (byte[] frame : expected) {
+            System.arraycopy(frame, 0, stream, offset, frame.length);
+            offset += frame.length;
+        }
+
+        ArrayList<byte[]> frames = decode(stream, chunkSize);
+
+        assertEquals(expected.size(), frames.size());
+        for (int i = 0; i < frames.size(); i++) {
+            assertArrayEquals(expected.get(i), frames.get(i), "Frame #" + i);
+        }
+    }
+
+    @Test
+    void testManyFramesPerRead() {
+        check(new int[] { 10, 0, 1, 100, 57, 3, 200 }, 65536);
+    }
+
+    @Test
+    void testPartialFrames() {
+        int[] sizes = new int[] { 10, 0, 1, 100, 57, 3, 200 };
+
+        for (int chunk = 1; chunk < 20; chunk++) {
+            check(sizes, chunk);
+        }
+    }
+
+    @Test
+    void testLargeFrames() {
+        // Frames, larger than the initial buffer, require growing
+        check(new int[] { 5, 40000, 7, 65535, 3 }, 1000);
+        check(new int[] { 5, 40000, 7, 65535, 3 }, 65536);
+    }
+
+    @Test
+    void testRecycle() {
+        BufferPool pool = new BufferPool(65536);
+        FrameDecoder decoder = new FrameDecoder(pool);
+        ByteBuffer buffer = decoder.getReadBuffer();
+
+        // Not discarded, so still in use
+        decoder.recycle(buffer);
+        assertNotSame(buffer, pool.lease(buffer.capacity()));
+
+        decoder.reset();
+        decoder.recycle(buffer);
+        assertSame(buffer, pool.lease(buffer.capacity()));
+
+        // Only once
+        decoder.recycle(buffer);
+        assertNotSame(buffer, pool.lease(buffer.capacity()));
+    }
+
+    @Test
+    void testMaxFramePooled() {
+        BufferPool pool = new BufferPool(1024 * 1024);
+        FrameDecoder decoder = new FrameDecoder(pool);
+        byte[] stream = makeFrame(0xFFFF, 0);
+        ByteBuffer buffer = null;
+        byte[] frame = null;
+        int offset = 0;
+
+        assertEquals(FrameDecoder.MAX_FRAME_SIZE, stream.length);
+
+        while (frame == null) {
+            buffer = decoder.getReadBuffer();
+            int size = Math.min(buffer.remaining(), stream.length - offset);
+
+            buffer.put(stream, offset, size);
+            offset += size;
+            decoder.onRead(size);
+
+            if (decoder.hasFrame()) {
+                ByteBuffer f = decoder.nextFrame();
+
+                frame = new byte[f.remaining()];
+                f.get(frame);
+            }
+        }
+        assertArrayEquals(stream, frame);
+
+        // A buffer, holding the largest frame, must go back to the pool, not to the GC
+        decoder.reset();
+        decoder.recycle(buffer);
+        assertSame(buffer, pool.lease(FrameDecoder.MAX_FRAME_SIZE));
+    }
+}
@@ -29,8 +29,7 @@ class HELOPacketTest {
         try {
             MDGBinary.HELOPacket pkt = new MDGBinary.HELOPacket(serverPubkey, tempPubkey, tempPrivkey, nonce);
             ByteBuffer data = pkt.getData().rewind();
-            // Packet constructors use direct ByteBuffers, so we have to explicitly
-            // copy its contents to an array
+            // Copy the packet's contents to an array for printing
             byte[] rawData = new byte[data.remaining()];
 
             pkt.getData().get(rawData);
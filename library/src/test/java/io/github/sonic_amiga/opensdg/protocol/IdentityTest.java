@@ -0,0 +1,46 @@
+package io.github.sonic_amiga.opensdg.protocol;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+import org.junit.jupiter.api.Test;
+
+import com.neilalexander.jnacl.crypto.curve25519xsalsa20poly1305;
+
+import io.github.sonic_amiga.opensdg.java.SDG;
+
+class IdentityTest {
+    private static final byte[] privKey = SDG
+            .hex2bin("2A9C6F2FF8E9D6A4B3C5DDA9A2C7E0E6F08C3F74A4F06A3A1A8C0B0F3A5E6D41");
+
+    private static byte[] peerKey(int n) {
+        return SDG.calcPublicKey(SDG.hex2bin(String.format("%064X", n + 1)));
+    }
+
+    @Test
+    void testSharedKey() {
+        Identity identity = new Identity(privKey);
+        byte[] peer = peerKey(0);
+        byte[] expected = new byte[curve25519xsalsa20poly1305.crypto_secretbox_BEFORENMBYTES];
+
+        curve25519xsalsa20poly1305.crypto_box_beforenm(expected, peer, privKey);
+
+        assertArrayEquals(SDG.calcPublicKey(privKey), identity.getPublicKey());
+        assertArrayEquals(expected, identity.getSharedKey(peer));
+        // Computed only once
+        assertSame(identity.getSharedKey(peer), identity.getSharedKey(peer.clone()));
+    }
+
+    @Test
+    void testEviction() {
+        Identity identity = new Identity(privKey, 2);
+        byte[] first = identity.getSharedKey(peerKey(0));
+
+        identity.getSharedKey(peerKey(1));
+        // Touch the first one, so that the second one is the least recently used
+        assertSame(first, identity.getSharedKey(peerKey(0)));
+        identity.getSharedKey(peerKey(2));
+
+        assertEquals(2, identity.getSharedKeyCount());
+        assertSame(first, identity.getSharedKey(peerKey(0)));
+    }
+}
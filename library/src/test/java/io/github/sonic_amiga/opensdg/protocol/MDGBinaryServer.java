@@ -0,0 +1,334 @@
+package io.github.sonic_amiga.opensdg.protocol;
+
+import java.net.ProtocolException;
+import java.nio.Buffer;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+import com.neilalexander.jnacl.crypto.curve25519xsalsa20poly1305;
+
+import io.github.sonic_amiga.opensdg.internal.SecretBox;
+import io.github.sonic_amiga.opensdg.internal.Utils;
+import io.github.sonic_amiga.opensdg.java.SDG;
+
+/**
+ * Server side of a single {@link MDGBinary} session
+ *
+ * Shared by benchmarks, which talk to it in memory, and by the Grid simulator, which
+ * talks to it over a socket. Only deals with packets; framing, I/O and forwarding are
+ * up to the caller. Cookies are all zeroes, the client doesn't look into them anyway.
+ *
+ * Packets are passed in as array-backed buffers, where the packet starts at offset 0
+ * of the array and ends at the limit. Packets, returned by the server, are flipped,
+ * ready to be written.
+ *
+ * Not thread-safe.
+ *
+ * @author Pavel Fedin
+ */
+public class MDGBinaryServer {
+    private static final int MAGIC = 0xf09f909f;
+    private static final int HEADER_SIZE = 10;
+
+    private static final int CMD_TELL = cmd("TELL");
+    private static final int CMD_WELC = cmd("WELC");
+    private static final int CMD_HELO = cmd("HELO");
+    private static final int CMD_COOK = cmd("COOK");
+    private static final int CMD_VOCH = cmd("VOCH");
+    private static final int CMD_REDY = cmd("REDY");
+    private static final int CMD_MESG = cmd("MESG");
+
+    private static final byte[] CLIENT_H_PREFIX = prefix("CurveCP-client-H");
+    private static final byte[] CLIENT_I_PREFIX = prefix("CurveCP-client-I");
+    private static final byte[] CLIENT_M_PREFIX = prefix("CurveCP-client-M");
+    private static final byte[] SERVER_R_PREFIX = prefix("CurveCP-server-R");
+    private static final byte[] SERVER_M_PREFIX = prefix("CurveCP-server-M");
+    private static final byte[] COOKIE_PREFIX = prefix("CurveCPK");
+    private static final byte[] VOUCH_PREFIX = prefix("CurveCPV");
+
+    private static final int PAD = curve25519xsalsa20poly1305.crypto_secretbox_BOXZEROBYTES;
+    private static final int KEY_SIZE = SDG.KEY_SIZE;
+    private static final int LONG_NONCE_SIZE = 16;
+    private static final int COOKIE_SIZE = 96;
+    // MESG layout offsets, see MDGBinary.MESGPacket
+    private static final int MESG_BOX_OFFSET = HEADER_SIZE + 8;
+    private static final int MESG_PAYLOAD_OFFSET = MESG_BOX_OFFSET + SecretBox.TAG_SIZE + 2;
+
+    private static int cmd(String s) {
+        return ByteBuffer.wrap(s.getBytes(StandardCharsets.US_ASCII)).getInt();
+    }
+
+    private static byte[] prefix(String s) {
+        return s.getBytes(StandardCharsets.US_ASCII);
+    }
+
+    private static byte[] nonce(byte[] prefix, long value) {
+        return ByteBuffer.allocate(24).put(prefix).putLong(value).array();
+    }
+
+    private static byte[] nonce(byte[] prefix, byte[] value) {
+        return ByteBuffer.allocate(24).put(prefix).put(value).array();
+    }
+
+    private static void check(int ret, String what) throws ProtocolException {
+        if (ret != 0) {
+            throw new ProtocolException(what + " failed, code " + ret);
+        }
+    }
+
+    /**
+     * Keys of the server
+     *
+     * May be shared by many sessions, then they all use the same short-term key pair.
+     * That's not how a real server works, but cheaper.
+     */
+    public static class Keys {
+        public final byte[] publicKey;
+        public final byte[] privateKey;
+        final byte[] tempPublicKey = new byte[KEY_SIZE];
+        final byte[] tempPrivateKey = new byte[KEY_SIZE];
+
+        /**
+         * Create all the keys at random
+         */
+        public Keys() {
+            this(new byte[KEY_SIZE], new byte[KEY_SIZE]);
+            curve25519xsalsa20poly1305.crypto_box_keypair(publicKey, privateKey);
+        }
+
+        /**
+         * Use the given long-term key pair and a random short-term one
+         *
+         * @param publicKey long-term public key
+         * @param privateKey long-term private key
+         */
+        public Keys(byte[] publicKey, byte[] privateKey) {
+            this.publicKey = publicKey;
+            this.privateKey = privateKey;
+            curve25519xsalsa20poly1305.crypto_box_keypair(tempPublicKey, tempPrivateKey);
+        }
+    }
+
+    private final Keys keys;
+    private final boolean verifyVouch;
+
+    private byte[] clientTempPk;
+    private byte[] clientPk;
+    private int[] sendKey;
+    private int[] receiveKey;
+    private long sendNonce;
+    private boolean established;
+
+    /**
+     * Creates a {@link MDGBinaryServer}
+     *
+     * @param keys server keys
+     * @param verifyVouch whether to verify the inner box of VOCH, signed by the client's
+     *            long-term key. Costs a curve25519 operation, benchmarks may want to skip it.
+     */
+    public MDGBinaryServer(Keys keys, boolean verifyVouch) {
+        this.keys = keys;
+        this.verifyVouch = verifyVouch;
+    }
+
+    /**
+     * @param frame a frame, received from a socket
+     * @return true if this is an MDGBinary packet, false if it's something else, e. g.
+     *         a forwarding request
+     */
+    public static boolean isPacket(ByteBuffer frame) {
+        return frame.limit() >= HEADER_SIZE && frame.getInt(2) == MAGIC;
+    }
+
+    /**
+     * @return true if VOCH has been received and MESG packets can flow
+     */
+    public boolean isEstablished() {
+        return established;
+    }
+
+    /**
+     * @return client's long-term public key, known after VOCH
+     */
+    public byte[] getClientKey() {
+        return clientPk;
+    }
+
+    private static ByteBuffer newPacket(int cmd, int dataSize) {
+        ByteBuffer pkt = ByteBuffer.allocate(HEADER_SIZE + dataSize).order(ByteOrder.BIG_ENDIAN);
+
+        pkt.putShort((short) (HEADER_SIZE + dataSize - 2));
+        pkt.putInt(MAGIC);
+        pkt.putInt(cmd);
+        return pkt;
+    }
+
+    private static ByteBuffer done(ByteBuffer pkt) {
+        // Binary incompatibility workaround, see MDGBinary.Packet.setPosition()
+        ((Buffer) pkt).flip();
+        return pkt;
+    }
+
+    /**
+     * Process a packet, sent by the client
+     *
+     * @param frame a packet from the client
+     * @return a reply packet or null if there's none
+     * @throws ProtocolException if the packet is malformed or comes out of order
+     */
+    public ByteBuffer onPacket(ByteBuffer frame) throws ProtocolException {
+        if (!isPacket(frame)) {
+            throw new ProtocolException("Bad magic");
+        }
+
+        int cmd = frame.getInt(6);
+
+        if (cmd == CMD_TELL) {
+            return done(newPacket(CMD_WELC, KEY_SIZE).put(keys.publicKey));
+        } else if (cmd == CMD_HELO) {
+            return onHELO(frame);
+        } else if (cmd == CMD_VOCH) {
+            return onVOCH(frame);
+        } else if (cmd == CMD_MESG) {
+            openMESG(frame);
+            return null;
+        } else {
+            throw new ProtocolException("Unexpected packet received");
+        }
+    }
+
+    private ByteBuffer onHELO(ByteBuffer frame) throws ProtocolException {
+        byte[] buf = frame.array();
+        byte[] k = new byte[KEY_SIZE];
+        byte[] c = new byte[PAD + 80];
+        byte[] m = new byte[c.length];
+
+        clientTempPk = Arrays.copyOfRange(buf, HEADER_SIZE, HEADER_SIZE + KEY_SIZE);
+
+        // Both HELO and COOK boxes use the same pair of keys
+        curve25519xsalsa20poly1305.crypto_box_beforenm(k, clientTempPk, keys.privateKey);
+        System.arraycopy(buf, HEADER_SIZE + KEY_SIZE + 8, c, PAD, 80);
+        check(curve25519xsalsa20poly1305.crypto_box_open_afternm(m, c,
+                nonce(CLIENT_H_PREFIX, frame.getLong(HEADER_SIZE + KEY_SIZE)), k), "HELO decryption");
+
+        byte[] longNonce = Utils.randomBytes(LONG_NONCE_SIZE);
+
+        m = new byte[2 * PAD + KEY_SIZE + COOKIE_SIZE];
+        c = new byte[m.length];
+        System.arraycopy(keys.tempPublicKey, 0, m, 2 * PAD, KEY_SIZE);
+        check(curve25519xsalsa20poly1305.crypto_box_afternm(c, m, nonce(COOKIE_PREFIX, longNonce), k),
+                "COOK encryption");
+
+        ByteBuffer pkt = newPacket(CMD_COOK, LONG_NONCE_SIZE + c.length - PAD);
+        pkt.put(longNonce);
+        pkt.put(c, PAD, c.length - PAD);
+        return done(pkt);
+    }
+
+    private ByteBuffer onVOCH(ByteBuffer frame) throws ProtocolException {
+        if (clientTempPk == null) {
+            throw new ProtocolException("VOCH before HELO");
+        }
+
+        byte[] buf = frame.array();
+        byte[] beforeNm = new byte[KEY_SIZE];
+        int boxStart = HEADER_SIZE + COOKIE_SIZE + 8;
+        byte[] c = new byte[PAD + frame.limit() - boxStart];
+        byte[] m = new byte[c.length];
+
+        curve25519xsalsa20poly1305.crypto_box_beforenm(beforeNm, clientTempPk, keys.tempPrivateKey);
+        System.arraycopy(buf, boxStart, c, PAD, frame.limit() - boxStart);
+        check(curve25519xsalsa20poly1305.crypto_box_open_afternm(m, c,
+                nonce(CLIENT_I_PREFIX, frame.getLong(HEADER_SIZE + COOKIE_SIZE)), beforeNm), "VOCH decryption");
+
+        // Decrypted: client key, long nonce, inner box with client's short-term key
+        clientPk = Arrays.copyOfRange(m, 2 * PAD, 2 * PAD + KEY_SIZE);
+
+        if (verifyVouch) {
+            int innerStart = 2 * PAD + KEY_SIZE;
+            byte[] longNonce = Arrays.copyOfRange(m, innerStart, innerStart + LONG_NONCE_SIZE);
+            byte[] ic = new byte[2 * PAD + KEY_SIZE];
+            byte[] im = new byte[ic.length];
+
+            System.arraycopy(m, innerStart + LONG_NONCE_SIZE, ic, PAD, PAD + KEY_SIZE);
+            check(curve25519xsalsa20poly1305.crypto_box_open(im, ic, nonce(VOUCH_PREFIX, longNonce), clientPk,
+                    keys.privateKey), "VOCH inner box decryption");
+            if (!Arrays.equals(Arrays.copyOfRange(im, 2 * PAD, 2 * PAD + KEY_SIZE), clientTempPk)) {
+                throw new ProtocolException("VOCH short-term key mismatch");
+            }
+        }
+
+        sendKey = SecretBox.subkey(beforeNm, SERVER_M_PREFIX);
+        receiveKey = SecretBox.subkey(beforeNm, CLIENT_M_PREFIX);
+
+        // REDY carries an empty box
+        long n = sendNonce++;
+
+        m = new byte[2 * PAD];
+        c = new byte[m.length];
+        check(curve25519xsalsa20poly1305.crypto_box_afternm(c, m, nonce(SERVER_R_PREFIX, n), beforeNm),
+                "REDY encryption");
+
+        ByteBuffer pkt = newPacket(CMD_REDY, 8 + PAD);
+        pkt.putLong(n);
+        pkt.put(c, PAD, PAD);
+        established = true;
+        return done(pkt);
+    }
+
+    /**
+     * @param frame a packet from the client
+     * @return true if this is a MESG packet
+     */
+    public static boolean isMESG(ByteBuffer frame) {
+        return isPacket(frame) && frame.getInt(6) == CMD_MESG;
+    }
+
+    /**
+     * Decrypt a MESG packet in place
+     *
+     * @param frame a MESG packet from the client
+     * @return the payload, a view of the packet's array
+     * @throws ProtocolException if the packet can't be decrypted
+     */
+    public ByteBuffer openMESG(ByteBuffer frame) throws ProtocolException {
+        if (receiveKey == null) {
+            throw new ProtocolException("MESG before VOCH");
+        }
+
+        byte[] buf = frame.array();
+
+        if (!SecretBox.open(receiveKey, frame.getLong(HEADER_SIZE), buf, MESG_BOX_OFFSET,
+                frame.limit() - MESG_BOX_OFFSET - SecretBox.TAG_SIZE)) {
+            throw new ProtocolException("MESG decryption failed");
+        }
+
+        int length = frame.getShort(MESG_PAYLOAD_OFFSET - 2) & 0xFFFF;
+
+        return ByteBuffer.wrap(buf, MESG_PAYLOAD_OFFSET, length);
+    }
+
+    /**
+     * Make an encrypted MESG packet, to be sent to the client
+     *
+     * Nonces are assigned in order of calls, so the packets must be sent in the same order.
+     *
+     * @param data buffer, containing the payload
+     * @param offset payload offset in the buffer
+     * @param length payload length
+     * @return the packet
+     */
+    public ByteBuffer sealMESG(byte[] data, int offset, int length) {
+        ByteBuffer pkt = newPacket(CMD_MESG, 8 + SecretBox.TAG_SIZE + 2 + length);
+        long n = sendNonce++;
+
+        pkt.putLong(n);
+        ((Buffer) pkt).position(MESG_PAYLOAD_OFFSET - 2);
+        pkt.putShort((short) length);
+        pkt.put(data, offset, length);
+        SecretBox.seal(sendKey, n, pkt.array(), MESG_BOX_OFFSET, 2 + length);
+        return done(pkt);
+    }
+}
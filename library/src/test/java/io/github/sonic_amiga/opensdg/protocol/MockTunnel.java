@@ -1,7 +1,6 @@
 package io.github.sonic_amiga.opensdg.protocol;
 
 import java.io.IOException;
-import java.io.InputStream;
 import java.net.ProtocolException;
 import java.nio.ByteBuffer;
 import java.util.concurrent.ExecutionException;
@@ -43,7 +42,7 @@ public class MockTunnel extends EncryptedProtocol {
     }
 
     @Override
-    public InputStream getData() throws ProtocolException {
+    public ByteBuffer getData() throws ProtocolException {
         // TODO Auto-generated method stub
         return null;
     }
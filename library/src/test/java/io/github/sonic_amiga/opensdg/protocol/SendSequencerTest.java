@@ -0,0 +1,101 @@
+package io.github.sonic_amiga.opensdg.protocol;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.junit.jupiter.api.Test;
+
+class SendSequencerTest {
+    private final List<Long> sent = Collections.synchronizedList(new ArrayList<Long>());
+    private final SendSequencer sequencer = new SendSequencer(frame -> {
+        sent.add(frame.getLong(0));
+        return CompletableFuture.completedFuture(null);
+    });
+
+    private static ByteBuffer frame(long nonce) {
+        ByteBuffer buf = ByteBuffer.allocate(8);
+
+        buf.putLong(0, nonce);
+        return buf;
+    }
+
+    @Test
+    void testOutOfOrder() throws Exception {
+        CompletableFuture<Void> late = new CompletableFuture<Void>();
+        CompletableFuture<Void> early = new CompletableFuture<Void>();
+
+        sequencer.reset(2);
+        sequencer.commit(3, frame(3), early);
+        // Waits for #2
+        assertTrue(sent.isEmpty());
+        assertFalse(early.isDone());
+
+        sequencer.commit(2, frame(2), late);
+        assertEquals(Arrays.asList(2L, 3L), sent);
+        assertTrue(late.isDone());
+        assertTrue(early.isDone());
+    }
+
+    @Test
+    void testSkip() {
+        sequencer.reset(0);
+        sequencer.commit(1, frame(1), null);
+        // Encryption of #0 has failed
+        sequencer.commit(0, null, null);
+        assertEquals(Arrays.asList(1L), sent);
+    }
+
+    @Test
+    void testReset() throws Exception {
+        CompletableFuture<Void> waiting = new CompletableFuture<Void>();
+        CompletableFuture<Void> stale = new CompletableFuture<Void>();
+
+        sequencer.reset(0);
+        sequencer.commit(5, frame(5), waiting);
+        sequencer.reset(10);
+        sequencer.commit(7, frame(7), stale);
+
+        assertTrue(sent.isEmpty());
+        ExecutionException e = assertThrows(ExecutionException.class, () -> waiting.get());
+        assertTrue(e.getCause() instanceof ClosedChannelException);
+        e = assertThrows(ExecutionException.class, () -> stale.get());
+        assertTrue(e.getCause() instanceof ClosedChannelException);
+    }
+
+    @Test
+    void testConcurrent() throws Exception {
+        final int count = 10000;
+        AtomicLong nonce = new AtomicLong();
+        ExecutorService pool = Executors.newFixedThreadPool(4);
+        List<CompletableFuture<Void>> promises = new ArrayList<CompletableFuture<Void>>();
+
+        sequencer.reset(0);
+        for (int i = 0; i < count; i++) {
+            long n = nonce.getAndIncrement();
+            CompletableFuture<Void> promise = new CompletableFuture<Void>();
+
+            promises.add(promise);
+            pool.execute(() -> sequencer.commit(n, frame(n), promise));
+        }
+
+        CompletableFuture.allOf(promises.toArray(new CompletableFuture<?>[0])).get(10, TimeUnit.SECONDS);
+        pool.shutdown();
+
+        assertEquals(count, sent.size());
+        for (int i = 0; i < count; i++) {
+            assertEquals((long) i, (long) sent.get(i));
+        }
+    }
+}
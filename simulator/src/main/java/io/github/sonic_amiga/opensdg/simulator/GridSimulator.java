@@ -0,0 +1,259 @@
+package io.github.sonic_amiga.opensdg.simulator;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.AsynchronousChannelGroup;
+import java.nio.channels.AsynchronousServerSocketChannel;
+import java.nio.channels.AsynchronousSocketChannel;
+import java.nio.channels.CompletionHandler;
+import java.util.ArrayDeque;
+import java.util.HashMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import io.github.sonic_amiga.opensdg.internal.Utils;
+import io.github.sonic_amiga.opensdg.java.SDG;
+
+/**
+ * An in-process Grid server for load testing
+ *
+ * The simulator listens on loopback and speaks the server side of MDGBinary
+ * protocol. It services both grid (control) connections and forwarded peer
+ * connections on the same port.
+ *
+ * When a client calls a peer, which is itself connected to the simulator as a grid
+ * client, and that peer calls back, both tunnels are bridged together, so that two
+ * local clients can talk to each other. Otherwise the called peer is simulated by
+ * an echo device, which sends every received message back.
+ *
+ * @author Pavel Fedin
+ */
+public class GridSimulator {
+    private final Logger logger = LoggerFactory.getLogger(GridSimulator.class);
+
+    private final byte[] privateKey = SDG.createPrivateKey();
+    private final byte[] publicKey = SDG.calcPublicKey(privateKey);
+
+    private final AsynchronousChannelGroup group;
+    private final AsynchronousServerSocketChannel server;
+    private final InetSocketAddress address;
+
+    // Grid clients, currently connected, by their hex peer IDs
+    private final ConcurrentHashMap<String, ServerSession> clients = new ConcurrentHashMap<String, ServerSession>();
+    // Tunnels, waiting to be forwarded, by tunnel ID
+    private final ConcurrentHashMap<ByteBuffer, Tunnel> tunnels = new ConcurrentHashMap<ByteBuffer, Tunnel>();
+    // Bridged tunnels, waiting for the second side to call back, by caller and callee IDs
+    private final HashMap<String, ArrayDeque<Tunnel>> pendingBridges = new HashMap<String, ArrayDeque<Tunnel>>();
+
+    private final AtomicInteger activeSessions = new AtomicInteger();
+    final LongAdder handshakes = new LongAdder();
+    final LongAdder messagesIn = new LongAdder();
+    final LongAdder messagesOut = new LongAdder();
+
+    private final CompletionHandler<AsynchronousSocketChannel, Void> acceptHandler = new CompletionHandler<AsynchronousSocketChannel, Void>() {
+        @Override
+        public void completed(AsynchronousSocketChannel ch, Void attachment) {
+            server.accept(null, this);
+            activeSessions.incrementAndGet();
+            new ServerSession(GridSimulator.this, ch).start();
+        }
+
+        @Override
+        public void failed(Throwable exc, Void attachment) {
+            if (server.isOpen()) {
+                logger.warn("Accept failed: {}", exc.toString());
+                server.accept(null, this);
+            }
+        }
+    };
+
+    /**
+     * Creates and starts a simulator on a random loopback port
+     *
+     * @param numThreads number of server threads
+     * @throws IOException if the server socket can't be created
+     */
+    public GridSimulator(int numThreads) throws IOException {
+        this(numThreads, 0);
+    }
+
+    /**
+     * Creates and starts a simulator on the given loopback port
+     *
+     * @param numThreads number of server threads
+     * @param port port number, 0 for random
+     * @throws IOException if the server socket can't be created
+     */
+    public GridSimulator(int numThreads, int port) throws IOException {
+        group = AsynchronousChannelGroup.withFixedThreadPool(numThreads,
+                Executors.defaultThreadFactory());
+        server = AsynchronousServerSocketChannel.open(group);
+        server.bind(new InetSocketAddress(InetAddress.getLoopbackAddress(), port), 1024);
+        address = (InetSocketAddress) server.getLocalAddress();
+        server.accept(null, acceptHandler);
+
+        logger.info("Grid simulator listening on {}, public key {}", address, SDG.bin2hex(publicKey));
+    }
+
+    /**
+     * Gets the host name to connect to
+     *
+     * @return host address
+     */
+    public String getHost() {
+        return address.getAddress().getHostAddress();
+    }
+
+    /**
+     * Gets the port number to connect to
+     *
+     * @return port number
+     */
+    public int getPort() {
+        return address.getPort();
+    }
+
+    /**
+     * Gets the server's long-term public key
+     *
+     * @return public key
+     */
+    public byte[] getPublicKey() {
+        return publicKey;
+    }
+
+    byte[] getPrivateKey() {
+        return privateKey;
+    }
+
+    /**
+     * Gets number of currently open sessions, both grid and peer
+     *
+     * @return number of sessions
+     */
+    public int getActiveSessions() {
+        return activeSessions.get();
+    }
+
+    /**
+     * Gets number of completed MDGBinary handshakes
+     *
+     * @return number of handshakes
+     */
+    public long getHandshakes() {
+        return handshakes.sum();
+    }
+
+    /**
+     * Gets number of MESG packets, received from clients
+     *
+     * @return number of packets
+     */
+    public long getMessagesIn() {
+        return messagesIn.sum();
+    }
+
+    /**
+     * Gets number of MESG packets, sent to clients
+     *
+     * @return number of packets
+     */
+    public long getMessagesOut() {
+        return messagesOut.sum();
+    }
+
+    /**
+     * Stops the simulator, closing all the connections
+     */
+    public void stop() {
+        try {
+            server.close();
+        } catch (IOException e) {
+            // Nothing to do
+        }
+        group.shutdown();
+        try {
+            group.shutdownNow();
+        } catch (IOException e) {
+            // Nothing to do
+        }
+    }
+
+    void onClientReady(ServerSession session) {
+        clients.put(SDG.bin2hex(session.getClientKey()), session);
+    }
+
+    void onSessionClosed(ServerSession session) {
+        activeSessions.decrementAndGet();
+        if (session.getClientKey() != null) {
+            clients.remove(SDG.bin2hex(session.getClientKey()), session);
+        }
+    }
+
+    /**
+     * Create a tunnel for the given call
+     *
+     * @param caller peer ID of the caller in hex
+     * @param callee peer ID of the called peer in hex
+     * @return a new tunnel
+     */
+    Tunnel createTunnel(String caller, String callee) {
+        caller = caller.toLowerCase();
+        callee = callee.toLowerCase();
+
+        if (clients.containsKey(callee)) {
+            // The called peer is one of our clients, it has to call back. Calls are
+            // matched in order, so that two peers can open many tunnels to each other.
+            synchronized (pendingBridges) {
+                ArrayDeque<Tunnel> callbacks = pendingBridges.get(callee + caller);
+
+                if (callbacks != null) {
+                    Tunnel t = callbacks.poll();
+
+                    if (callbacks.isEmpty()) {
+                        pendingBridges.remove(callee + caller);
+                    }
+                    return t;
+                }
+
+                Tunnel t = newTunnel(true);
+
+                pendingBridges.computeIfAbsent(caller + callee, k -> new ArrayDeque<Tunnel>()).add(t);
+                return t;
+            }
+        }
+
+        return newTunnel(false);
+    }
+
+    private Tunnel newTunnel(boolean bridge) {
+        Tunnel t = new Tunnel(Utils.randomBytes(Tunnel.ID_SIZE), bridge);
+
+        tunnels.put(ByteBuffer.wrap(t.getId()), t);
+        return t;
+    }
+
+    /**
+     * Attach a forwarded session to a tunnel
+     *
+     * @param id tunnel ID
+     * @param session session to attach
+     * @return a {@link Tunnel} or null if there's no such tunnel
+     */
+    Tunnel attachToTunnel(byte[] id, ServerSession session) {
+        Tunnel t = tunnels.get(ByteBuffer.wrap(id));
+
+        if (t != null && t.attach(session)) {
+            // All the sides have arrived, nobody else can join
+            tunnels.remove(ByteBuffer.wrap(id));
+        }
+        return t;
+    }
+}
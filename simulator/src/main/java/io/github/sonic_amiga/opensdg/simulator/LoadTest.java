@@ -0,0 +1,326 @@
+package io.github.sonic_amiga.opensdg.simulator;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import io.github.sonic_amiga.opensdg.java.ConnectionMetrics;
+import io.github.sonic_amiga.opensdg.java.GridConnection;
+import io.github.sonic_amiga.opensdg.java.Metrics;
+import io.github.sonic_amiga.opensdg.java.MetricsRecorder.HandshakePhase;
+import io.github.sonic_amiga.opensdg.java.PeerConnection;
+import io.github.sonic_amiga.opensdg.java.SDG;
+
+/**
+ * A load test, running the real client code against {@link GridSimulator}
+ *
+ * First the given number of tunnels is opened, then every tunnel does the given
+ * number of round trips, keeping up to a window of messages in flight. By default
+ * the remote side of a tunnel is an echo device, simulated by the server. In bridge
+ * mode two local grid clients call each other, and the called side echoes messages
+ * using the same client code.
+ *
+ * Tunnels are opened synchronously, using the blocking API, by a pool of the given size.
+ * With -connect-threads 0 every tunnel gets a thread of its own, on Java 21+ a virtual one.
+ *
+ * With -framed tunnels work in message mode, so -size may exceed the maximum packet size.
+ * The echo device returns fragments one by one, the bridged one returns whole messages.
+ *
+ * With -callback-threads N data callbacks of all the tunnels run on a shared pool of
+ * the given size instead of event loops.
+ *
+ * With -encrypt-threads N senders encrypt their data on a shared pool of the given size.
+ *
+ * Usage: LoadTest [-tunnels N] [-messages N] [-size BYTES] [-window N] [-connect-threads N]
+ * [-server-threads N] [-callback-threads N] [-encrypt-threads N] [-bridge] [-framed]
+ *
+ * @author Pavel Fedin
+ */
+public class LoadTest {
+    private static final String PROTOCOL = "loadtest";
+
+    private int numTunnels = 1000;
+    private int numMessages = 1000;
+    private int messageSize = 100;
+    private int window = 16;
+    private int connectThreads = Runtime.getRuntime().availableProcessors() * 2;
+    private int serverThreads = Runtime.getRuntime().availableProcessors();
+    private int callbackThreads = 0;
+    private int encryptThreads = 0;
+    private boolean bridge;
+    private boolean framed;
+
+    private final AtomicInteger failures = new AtomicInteger();
+    private CountDownLatch finished;
+    private ExecutorService callbackPool;
+    private ExecutorService encryptPool;
+
+    /**
+     * The calling side of a tunnel
+     *
+     * Sends a new message every time a reply comes back, until done.
+     */
+    private class Sender extends PeerConnection {
+        private final byte[] payload = new byte[messageSize];
+        private final AtomicInteger sent = new AtomicInteger();
+        private int received;
+
+        Sender() {
+            setMessageMode(framed);
+            setCallbackExecutor(callbackPool);
+            setEncryptionExecutor(encryptPool);
+        }
+
+        void start() {
+            for (int i = 0; i < window; i++) {
+                sendNext();
+            }
+        }
+
+        private void sendNext() {
+            if (sent.getAndIncrement() < numMessages) {
+                ByteBuffer data = ByteBuffer.wrap(payload);
+
+                (framed ? sendMessageAsync(data) : sendDataAsync(data)).whenComplete((result, error) -> {
+                    if (error != null) {
+                        onError(error);
+                    }
+                });
+            }
+        }
+
+        @Override
+        protected void onDataReceived(ByteBuffer data) {
+            onReply();
+        }
+
+        @Override
+        protected void onMessageReceived(ByteBuffer message) {
+            onReply();
+        }
+
+        private synchronized void onReply() {
+            if (++received == numMessages) {
+                finished.countDown();
+            } else {
+                sendNext();
+            }
+        }
+
+        @Override
+        protected synchronized void onError(Throwable exc) {
+            if (received < numMessages) {
+                received = numMessages;
+                failures.incrementAndGet();
+                finished.countDown();
+            }
+        }
+    }
+
+    /**
+     * The called side of a bridged tunnel, sends everything back
+     */
+    private class Echo extends PeerConnection {
+        Echo() {
+            setMessageMode(framed);
+            setCallbackExecutor(callbackPool);
+        }
+
+        @Override
+        protected void onDataReceived(ByteBuffer data) {
+            // The data is copied straight from the receive buffer into the reply
+            sendDataAsync(data);
+        }
+
+        @Override
+        protected void onMessageReceived(ByteBuffer message) {
+            sendMessageAsync(message);
+        }
+
+        @Override
+        protected void onError(Throwable exc) {
+            // The sender will notice
+        }
+    }
+
+    private void parseArgs(String[] args) {
+        for (int i = 0; i < args.length; i++) {
+            switch (args[i]) {
+                case "-tunnels":
+                    numTunnels = Integer.parseInt(args[++i]);
+                    break;
+                case "-messages":
+                    numMessages = Integer.parseInt(args[++i]);
+                    break;
+                case "-size":
+                    messageSize = Integer.parseInt(args[++i]);
+                    break;
+                case "-window":
+                    window = Integer.parseInt(args[++i]);
+                    break;
+                case "-connect-threads":
+                    connectThreads = Integer.parseInt(args[++i]);
+                    break;
+                case "-server-threads":
+                    serverThreads = Integer.parseInt(args[++i]);
+                    break;
+                case "-callback-threads":
+                    callbackThreads = Integer.parseInt(args[++i]);
+                    break;
+                case "-encrypt-threads":
+                    encryptThreads = Integer.parseInt(args[++i]);
+                    break;
+                case "-bridge":
+                    bridge = true;
+                    break;
+                case "-framed":
+                    framed = true;
+                    break;
+                default:
+                    throw new IllegalArgumentException("Unknown option " + args[i]);
+            }
+        }
+    }
+
+    private static double perSecond(long count, long nanos) {
+        return count * 1e9 / nanos;
+    }
+
+    private static double average(long nanos, long count) {
+        return count == 0 ? 0 : nanos / 1000.0 / count;
+    }
+
+    private static void printMetrics() {
+        Metrics m = Metrics.getGlobal();
+        ConnectionMetrics traffic = m.getTraffic();
+
+        System.out.printf("Client: %d frames in, %d frames out, %.1f us/encrypt, %.1f us/decrypt%n",
+                traffic.getFramesIn(), traffic.getFramesOut(),
+                average(traffic.getEncryptNanos(), traffic.getEncryptCount()),
+                average(traffic.getDecryptNanos(), traffic.getDecryptCount()));
+        for (HandshakePhase phase : HandshakePhase.values()) {
+            long count = m.getHandshakePhaseCount(phase);
+
+            if (count != 0) {
+                System.out.printf("  %-8s %6d times, %10.1f us average%n", phase, count,
+                        average(m.getHandshakePhaseNanos(phase), count));
+            }
+        }
+        System.out.printf("  Forwarding requests: %d, %.1f us average, %d failed%n", m.getForwardRequests(),
+                average(m.getForwardRequestNanos(), m.getForwardRequests()), m.getForwardRequestFailures());
+    }
+
+    private void run() throws Exception {
+        GridSimulator sim = new GridSimulator(serverThreads);
+        GridConnection.Endpoint[] servers = { new GridConnection.Endpoint(sim.getHost(), sim.getPort()) };
+        GridConnection caller = new GridConnection(SDG.createPrivateKey());
+        GridConnection callee = bridge ? new GridConnection(SDG.createPrivateKey()) : null;
+
+        caller.connect(servers);
+        if (callee != null) {
+            callee.connect(servers);
+        }
+
+        System.out.printf("%d tunnels, %d messages of %d bytes each, window %d, %s%s%n", numTunnels, numMessages,
+                messageSize, window, bridge ? "bridged" : "echo", framed ? ", framed" : "");
+
+        if (callbackThreads > 0) {
+            callbackPool = Executors.newFixedThreadPool(callbackThreads);
+        }
+        if (encryptThreads > 0) {
+            encryptPool = Executors.newFixedThreadPool(encryptThreads);
+        }
+
+        // Phase 1: open tunnels
+        List<Sender> senders = new ArrayList<Sender>(numTunnels);
+        List<Echo> echoes = new ArrayList<Echo>();
+        ExecutorService pool = connectThreads == 0 ? SDG.newThreadPerTaskExecutor("LoadTest connect")
+                : Executors.newFixedThreadPool(connectThreads);
+        List<Future<Sender>> pending = new ArrayList<Future<Sender>>(numTunnels);
+        long start = System.nanoTime();
+
+        for (int i = 0; i < numTunnels; i++) {
+            pending.add(pool.submit(() -> {
+                Sender s = new Sender();
+
+                if (callee == null) {
+                    s.connectToRemote(caller, SDG.createPrivateKey(), PROTOCOL);
+                } else {
+                    Echo e = new Echo();
+
+                    s.connectToRemote(caller, callee.getMyPeerId(), PROTOCOL);
+                    e.connectToRemote(callee, caller.getMyPeerId(), PROTOCOL);
+                    e.asyncReceive();
+                    synchronized (echoes) {
+                        echoes.add(e);
+                    }
+                }
+                s.asyncReceive();
+                return s;
+            }));
+        }
+
+        for (Future<Sender> f : pending) {
+            senders.add(f.get());
+        }
+
+        long elapsed = System.nanoTime() - start;
+        int connections = numTunnels * (bridge ? 2 : 1);
+
+        System.out.printf("Opened %d connections in %d ms: %.1f connections/s%n", connections,
+                TimeUnit.NANOSECONDS.toMillis(elapsed), perSecond(connections, elapsed));
+
+        // Phase 2: messages
+        finished = new CountDownLatch(numTunnels);
+        start = System.nanoTime();
+
+        for (Sender s : senders) {
+            s.start();
+        }
+        finished.await();
+
+        elapsed = System.nanoTime() - start;
+        long roundTrips = (long) numTunnels * numMessages;
+
+        System.out.printf("Completed %d round trips in %d ms: %.1f round trips/s, %.1f MB/s each way, %d failed tunnels%n",
+                roundTrips, TimeUnit.NANOSECONDS.toMillis(elapsed), perSecond(roundTrips, elapsed),
+                perSecond(roundTrips * messageSize, elapsed) / 1e6, failures.get());
+        System.out.printf("Server: %d handshakes, %d messages in, %d messages out%n", sim.getHandshakes(),
+                sim.getMessagesIn(), sim.getMessagesOut());
+        printMetrics();
+
+        pool.shutdown();
+        if (callbackPool != null) {
+            callbackPool.shutdown();
+        }
+        if (encryptPool != null) {
+            encryptPool.shutdown();
+        }
+        for (Sender s : senders) {
+            s.close();
+        }
+        for (Echo e : echoes) {
+            e.close();
+        }
+        caller.close();
+        if (callee != null) {
+            callee.close();
+        }
+        sim.stop();
+    }
+
+    public static void main(String[] args) throws Exception {
+        LoadTest test = new LoadTest();
+
+        test.parseArgs(args);
+        test.run();
+        // Make sure no lingering library threads keep us running
+        System.exit(0);
+    }
+}
@@ -0,0 +1,309 @@
+package io.github.sonic_amiga.opensdg.simulator;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.net.ProtocolException;
+import java.nio.Buffer;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.AsynchronousSocketChannel;
+import java.nio.channels.CompletionHandler;
+import java.util.ArrayDeque;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.google.protobuf.AbstractMessage;
+import com.google.protobuf.ByteString;
+
+import io.github.sonic_amiga.opensdg.internal.Utils;
+import io.github.sonic_amiga.opensdg.java.SDG;
+import io.github.sonic_amiga.opensdg.protocol.Control;
+import io.github.sonic_amiga.opensdg.protocol.MDGBinaryServer;
+import io.github.sonic_amiga.opensdg.protocol.generated.ControlProtocol.ConnectToPeer;
+import io.github.sonic_amiga.opensdg.protocol.generated.ControlProtocol.PairRemote;
+import io.github.sonic_amiga.opensdg.protocol.generated.ControlProtocol.PeerInfo;
+import io.github.sonic_amiga.opensdg.protocol.generated.ControlProtocol.PeerReply;
+import io.github.sonic_amiga.opensdg.protocol.generated.ControlProtocol.Ping;
+import io.github.sonic_amiga.opensdg.protocol.generated.ControlProtocol.Pong;
+import io.github.sonic_amiga.opensdg.protocol.generated.ControlProtocol.ProtocolVersion;
+import io.github.sonic_amiga.opensdg.protocol.generated.ForwardProtocol.ForwardReply;
+import io.github.sonic_amiga.opensdg.protocol.generated.ForwardProtocol.ForwardRequest;
+
+/**
+ * Server side of a single client connection
+ *
+ * A session starts either with MDGBinary handshake (a grid connection) or with
+ * a forwarding request (a peer connection). In the latter case the session then
+ * plays the role of the called peer, so MDGBinary handshake follows, and MESG
+ * packets are passed to the {@link Tunnel}.
+ *
+ * @author Pavel Fedin
+ */
+class ServerSession {
+    private final Logger logger = LoggerFactory.getLogger(ServerSession.class);
+
+    private static final byte MSG_FORWARD_REQUEST = 0;
+    private static final byte MSG_FORWARD_REPLY = 2;
+    private static final String FORWARD_REMOTE_SIGNATURE = "Mdg-NaCl/binary";
+
+    private final GridSimulator grid;
+    private final AsynchronousSocketChannel socket;
+
+    private ByteBuffer readBuffer = ByteBuffer.allocate(65536 + 2).order(ByteOrder.BIG_ENDIAN);
+    private final ArrayDeque<ByteBuffer> writeQueue = new ArrayDeque<ByteBuffer>();
+    private boolean writing;
+    private volatile boolean closed;
+
+    private MDGBinaryServer mdg;
+    private Tunnel tunnel;
+    private boolean ready;
+
+    private final CompletionHandler<Integer, Void> readHandler = new CompletionHandler<Integer, Void>() {
+        @Override
+        public void completed(Integer result, Void attachment) {
+            if (result < 0) {
+                close();
+                return;
+            }
+            try {
+                processInput();
+            } catch (Exception e) {
+                logger.debug("Session error: {}", e.toString());
+                close();
+                return;
+            }
+            if (!closed) {
+                socket.read(readBuffer, null, this);
+            }
+        }
+
+        @Override
+        public void failed(Throwable exc, Void attachment) {
+            close();
+        }
+    };
+
+    private final CompletionHandler<Long, ByteBuffer[]> writeHandler = new CompletionHandler<Long, ByteBuffer[]>() {
+        @Override
+        public void completed(Long result, ByteBuffer[] buffers) {
+            if (buffers[buffers.length - 1].hasRemaining()) {
+                socket.write(buffers, 0, buffers.length, 0, null, buffers, this);
+                return;
+            }
+            flush(true);
+        }
+
+        @Override
+        public void failed(Throwable exc, ByteBuffer[] buffers) {
+            close();
+        }
+    };
+
+    ServerSession(GridSimulator grid, AsynchronousSocketChannel socket) {
+        this.grid = grid;
+        this.socket = socket;
+    }
+
+    void start() {
+        socket.read(readBuffer, null, readHandler);
+    }
+
+    byte[] getClientKey() {
+        return mdg != null ? mdg.getClientKey() : null;
+    }
+
+    void close() {
+        synchronized (this) {
+            if (closed) {
+                return;
+            }
+            closed = true;
+        }
+        try {
+            socket.close();
+        } catch (IOException e) {
+            // Nothing to do
+        }
+        grid.onSessionClosed(this);
+        if (tunnel != null) {
+            tunnel.onClosed(this);
+        }
+    }
+
+    private void processInput() throws IOException {
+        ((Buffer) readBuffer).flip();
+
+        while (readBuffer.remaining() >= 2) {
+            int length = 2 + (readBuffer.getShort(readBuffer.position()) & 0xFFFF);
+
+            if (readBuffer.remaining() < length) {
+                break;
+            }
+
+            byte[] frame = new byte[length];
+            readBuffer.get(frame);
+            onFrame(ByteBuffer.wrap(frame).order(ByteOrder.BIG_ENDIAN));
+
+            if (closed) {
+                return;
+            }
+        }
+
+        readBuffer.compact();
+    }
+
+    private void onFrame(ByteBuffer frame) throws IOException {
+        if (MDGBinaryServer.isPacket(frame)) {
+            onMDGPacket(frame);
+        } else if (frame.limit() >= 3 && frame.get(2) == MSG_FORWARD_REQUEST && mdg == null) {
+            onForwardRequest(frame);
+        } else {
+            throw new ProtocolException("Unknown packet received");
+        }
+    }
+
+    private void onForwardRequest(ByteBuffer frame) throws IOException {
+        ForwardRequest req = ForwardRequest.parseFrom(ByteString.copyFrom(frame.array(), 3, frame.limit() - 3));
+
+        tunnel = grid.attachToTunnel(req.getTunnelId().toByteArray(), this);
+        if (tunnel == null) {
+            throw new ProtocolException("Unknown tunnel requested");
+        }
+
+        byte[] reply = ForwardReply.newBuilder().setSignature(FORWARD_REMOTE_SIGNATURE).build().toByteArray();
+        ByteBuffer pkt = ByteBuffer.allocate(3 + reply.length);
+
+        pkt.putShort((short) (1 + reply.length));
+        pkt.put(MSG_FORWARD_REPLY);
+        pkt.put(reply);
+        ((Buffer) pkt).flip();
+        send(pkt);
+    }
+
+    private void onMDGPacket(ByteBuffer frame) throws IOException {
+        if (mdg == null) {
+            mdg = new MDGBinaryServer(new MDGBinaryServer.Keys(grid.getPublicKey(), grid.getPrivateKey()), true);
+        }
+
+        if (MDGBinaryServer.isMESG(frame)) {
+            ByteBuffer payload = mdg.openMESG(frame);
+            byte[] buf = payload.array();
+            int offset = payload.position();
+            int length = payload.remaining();
+
+            grid.messagesIn.increment();
+
+            if (tunnel != null) {
+                tunnel.relay(this, buf, offset, length);
+            } else if (length > 0) {
+                onGridMessage(buf[offset], ByteString.copyFrom(buf, offset + 1, length - 1));
+            }
+            return;
+        }
+
+        // REDY takes a nonce, so it's ordered against MESGs, sent by other sessions
+        synchronized (this) {
+            ByteBuffer reply = mdg.onPacket(frame);
+            if (reply != null) {
+                send(reply);
+            }
+        }
+
+        if (mdg.isEstablished() && !ready) {
+            grid.handshakes.increment();
+            synchronized (this) {
+                ready = true;
+            }
+            if (tunnel != null) {
+                tunnel.onReady(this);
+            } else {
+                grid.onClientReady(this);
+            }
+        }
+    }
+
+    private void onGridMessage(byte msgType, ByteString data) throws IOException {
+        switch (msgType) {
+            case Control.MSG_PROTOCOL_VERSION:
+                ProtocolVersion ver = ProtocolVersion.parseFrom(data);
+                sendGridMessage(Control.MSG_PROTOCOL_VERSION, ver);
+                break;
+            case Control.MSG_PING:
+                Ping ping = Ping.parseFrom(data);
+                sendGridMessage(Control.MSG_PONG, Pong.newBuilder().setSeq(ping.getSeq()).build());
+                break;
+            case Control.MSG_CALL_REMOTE:
+                ConnectToPeer call = ConnectToPeer.parseFrom(data);
+                Tunnel t = grid.createTunnel(SDG.bin2hex(mdg.getClientKey()), call.getPeerId());
+                sendGridMessage(Control.MSG_REMOTE_REPLY, peerReply(call.getId(), call.getPeerId(), t));
+                break;
+            case Control.MSG_PAIR_REMOTE:
+                PairRemote pair = PairRemote.parseFrom(data);
+                byte[] peerId = Utils.randomBytes(SDG.KEY_SIZE);
+                Tunnel echo = grid.createTunnel(SDG.bin2hex(mdg.getClientKey()), SDG.bin2hex(peerId));
+                sendGridMessage(Control.MSG_PAIR_REMOTE_REPLY, peerReply(pair.getId(), SDG.bin2hex(peerId), echo));
+                break;
+            default:
+                logger.debug("Unhandled grid message type {}", msgType);
+                break;
+        }
+    }
+
+    private PeerReply peerReply(int id, String peerId, Tunnel t) {
+        PeerInfo.Endpoint server = PeerInfo.Endpoint.newBuilder().setHost(grid.getHost()).setPort(grid.getPort())
+                .build();
+        PeerInfo info = PeerInfo.newBuilder().setPeerId(peerId).setServer(server)
+                .setTunnelId(ByteString.copyFrom(t.getId())).build();
+
+        return PeerReply.newBuilder().setId(id).setResult(0).setPeer(info).build();
+    }
+
+    private void sendGridMessage(byte msgType, AbstractMessage msg) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream(1 + msg.getSerializedSize());
+
+        out.write(msgType);
+        msg.writeTo(out);
+
+        byte[] data = out.toByteArray();
+        sendMESG(data, 0, data.length);
+    }
+
+    /**
+     * Encrypt and send a MESG packet
+     *
+     * @param data buffer, containing the payload
+     * @param offset payload offset in the buffer
+     * @param length payload length
+     */
+    void sendMESG(byte[] data, int offset, int length) {
+        // Nonces must go out in order, so encrypt and enqueue atomically
+        synchronized (this) {
+            send(mdg.sealMESG(data, offset, length));
+        }
+        grid.messagesOut.increment();
+    }
+
+    private synchronized void send(ByteBuffer pkt) {
+        writeQueue.add(pkt);
+        if (!writing) {
+            flush(false);
+        }
+    }
+
+    private void flush(boolean completed) {
+        ByteBuffer[] buffers;
+
+        synchronized (this) {
+            if (writeQueue.isEmpty() || closed) {
+                writing = false;
+                return;
+            }
+            buffers = writeQueue.toArray(new ByteBuffer[writeQueue.size()]);
+            writeQueue.clear();
+            writing = true;
+        }
+
+        socket.write(buffers, 0, buffers.length, 0, null, buffers, writeHandler);
+    }
+}
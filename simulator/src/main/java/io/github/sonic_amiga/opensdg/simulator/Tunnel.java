@@ -0,0 +1,131 @@
+package io.github.sonic_amiga.opensdg.simulator;
+
+import java.util.ArrayDeque;
+
+/**
+ * A forwarding tunnel
+ *
+ * A bridged tunnel connects two forwarded sessions, relaying messages between
+ * them. Messages, sent before the other side is ready, are queued. A non-bridged
+ * tunnel has only one side and echoes all the messages back.
+ *
+ * @author Pavel Fedin
+ */
+class Tunnel {
+    static final int ID_SIZE = 16;
+
+    private final byte[] id;
+    private final boolean bridge;
+
+    private ServerSession first;
+    private ServerSession second;
+    private final ArrayDeque<byte[]> toFirst = new ArrayDeque<byte[]>();
+    private final ArrayDeque<byte[]> toSecond = new ArrayDeque<byte[]>();
+    private boolean firstReady;
+    private boolean secondReady;
+
+    Tunnel(byte[] id, boolean bridge) {
+        this.id = id;
+        this.bridge = bridge;
+    }
+
+    byte[] getId() {
+        return id;
+    }
+
+    /**
+     * Attach a session to the tunnel
+     *
+     * @param session a session to attach
+     * @return true if the tunnel is now complete
+     */
+    synchronized boolean attach(ServerSession session) {
+        if (first == null) {
+            first = session;
+        } else {
+            second = session;
+        }
+        return !bridge || second != null;
+    }
+
+    /**
+     * Called when a session completes encryption handshake
+     *
+     * @param session a session
+     */
+    void onReady(ServerSession session) {
+        ArrayDeque<byte[]> queue;
+
+        synchronized (this) {
+            if (session == first) {
+                firstReady = true;
+                queue = toFirst;
+            } else {
+                secondReady = true;
+                queue = toSecond;
+            }
+        }
+
+        while (true) {
+            byte[] msg;
+
+            synchronized (this) {
+                msg = queue.poll();
+            }
+            if (msg == null) {
+                break;
+            }
+            session.sendMESG(msg, 0, msg.length);
+        }
+    }
+
+    /**
+     * Pass a message to the other side of the tunnel
+     *
+     * @param from the sending session
+     * @param data buffer, containing the message
+     * @param offset message offset in the buffer
+     * @param length message length
+     */
+    void relay(ServerSession from, byte[] data, int offset, int length) {
+        if (!bridge) {
+            // Echo device
+            from.sendMESG(data, offset, length);
+            return;
+        }
+
+        ServerSession to;
+
+        synchronized (this) {
+            boolean fromFirst = from == first;
+
+            to = fromFirst ? second : first;
+            if (to == null || !(fromFirst ? secondReady : firstReady)) {
+                byte[] copy = new byte[length];
+
+                System.arraycopy(data, offset, copy, 0, length);
+                (fromFirst ? toSecond : toFirst).add(copy);
+                return;
+            }
+        }
+
+        to.sendMESG(data, offset, length);
+    }
+
+    /**
+     * Called when a session closes; the other side is closed too
+     *
+     * @param session a session
+     */
+    void onClosed(ServerSession session) {
+        ServerSession other;
+
+        synchronized (this) {
+            other = session == first ? second : first;
+        }
+
+        if (other != null) {
+            other.close();
+        }
+    }
+}